@@ -0,0 +1,83 @@
+package com.blueshift.core.database
+
+import android.content.Context
+import androidx.test.platform.app.InstrumentationRegistry
+import com.blueshift.core.events.BlueshiftEvent
+import com.blueshift.core.events.BlueshiftEventRepositoryImpl
+import com.blueshift.core.network.BlueshiftNetworkRequest
+import com.blueshift.core.network.BlueshiftNetworkRequestRepositoryImpl
+import kotlinx.coroutines.runBlocking
+import org.json.JSONObject
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+
+class BlueshiftSharedStoreTest {
+    private lateinit var context: Context
+    private lateinit var sharedStore: BlueshiftSharedStore
+
+    @Before
+    fun setUp() {
+        context = InstrumentationRegistry.getInstrumentation().targetContext
+        sharedStore = BlueshiftSharedStore.getInstance(context)
+    }
+
+    @After
+    fun tearDown() = runBlocking {
+        BlueshiftEventRepositoryImpl(context).clear()
+        BlueshiftEventRepositoryImpl(context, sharedStore).clear()
+        BlueshiftNetworkRequestRepositoryImpl(context).clear()
+        BlueshiftNetworkRequestRepositoryImpl(context, sharedStore).clear()
+    }
+
+    @Test
+    fun adoptRowsFromOtherStore_movesTheRowsIntoTheSharedStore() = runBlocking {
+        val events = (1..3).map {
+            BlueshiftEvent(eventName = "test_event_$it", eventParams = JSONObject(), timestamp = it.toLong())
+        }
+        BlueshiftEventRepositoryImpl(context).insertEvents(events)
+        BlueshiftNetworkRequestRepositoryImpl(context).insertRequest(request())
+
+        val eventRepository = BlueshiftEventRepositoryImpl(context, sharedStore)
+        val networkRequestRepository = BlueshiftNetworkRequestRepositoryImpl(context, sharedStore)
+        eventRepository.adoptRowsFromOtherStore(context)
+        networkRequestRepository.adoptRowsFromOtherStore(context)
+
+        val batch = eventRepository.readOneBatch(batchCount = 100)
+        assert(batch.map { it.eventName } == listOf("test_event_1", "test_event_2", "test_event_3"))
+        assert(networkRequestRepository.readNextRequest()?.url == request().url)
+
+        // the emptied database files are deleted.
+        assert(!context.getDatabasePath("com.blueshift.events.db").exists())
+        assert(!context.getDatabasePath("com.blueshift.network_request_queue.db").exists())
+    }
+
+    @Test
+    fun adoptRowsFromOtherStore_movesTheRowsOutOfTheSharedStore() = runBlocking {
+        val events = (1..3).map {
+            BlueshiftEvent(eventName = "test_event_$it", eventParams = JSONObject(), timestamp = it.toLong())
+        }
+        BlueshiftEventRepositoryImpl(context, sharedStore).insertEvents(events)
+        BlueshiftNetworkRequestRepositoryImpl(context, sharedStore).insertRequest(request())
+
+        val eventRepository = BlueshiftEventRepositoryImpl(context)
+        val networkRequestRepository = BlueshiftNetworkRequestRepositoryImpl(context)
+        eventRepository.adoptRowsFromOtherStore(context)
+
+        // the requests are still in the shared store, hence it is kept.
+        assert(BlueshiftSharedStore.exists(context))
+
+        networkRequestRepository.adoptRowsFromOtherStore(context)
+
+        val batch = eventRepository.readOneBatch(batchCount = 100)
+        assert(batch.map { it.eventName } == listOf("test_event_1", "test_event_2", "test_event_3"))
+        assert(networkRequestRepository.readNextRequest()?.url == request().url)
+        assert(!BlueshiftSharedStore.exists(context))
+    }
+
+    private fun request() = BlueshiftNetworkRequest(
+        url = "https://example.com/event",
+        method = BlueshiftNetworkRequest.Method.POST,
+        body = JSONObject(),
+    )
+}
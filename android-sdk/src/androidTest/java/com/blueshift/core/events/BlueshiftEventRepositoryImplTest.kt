@@ -1,6 +1,8 @@
 package com.blueshift.core.events
 
 import androidx.test.platform.app.InstrumentationRegistry
+import com.blueshift.core.database.BlueshiftBlobCodec
+import com.blueshift.core.database.BlueshiftStoreQuota
 import kotlinx.coroutines.runBlocking
 import org.json.JSONObject
 import org.junit.After
@@ -109,4 +111,113 @@ class BlueshiftEventRepositoryImplTest {
                 assert((events[i].id - events[i - 1].id) == 1L)
             }
         }
+
+    @Test
+    fun readOneBatch_retrievesOnlyTheEventsThatFitInTheSizeLimit() = runBlocking {
+        val json = "{\"key\":\"val\"}" // 13 bytes
+        for (i in 1..10) {
+            val event = BlueshiftEvent(
+                eventName = "test_event_$i", eventParams = JSONObject(json), timestamp = 0L
+            )
+            repository.insertEvent(event)
+        }
+
+        val events = repository.readOneBatch(batchCount = 10, batchSizeInBytes = 13L * 4)
+        assert(events.size == 4)
+    }
+
+    @Test
+    fun readOneBatch_retrievesOneEventWhenItIsBiggerThanTheSizeLimit() = runBlocking {
+        val event = BlueshiftEvent(
+            eventName = "test_event", eventParams = JSONObject("{\"key\":\"val\"}"), timestamp = 0L
+        )
+        repository.insertEvent(event)
+
+        val events = repository.readOneBatch(batchCount = 10, batchSizeInBytes = 1)
+        assert(events.size == 1)
+    }
+
+    @Test
+    fun insertEvents_evictsTheOldestEventsWhenTheQuotaIsExceeded() = runBlocking {
+        repository.quota = BlueshiftStoreQuota(maxRows = 10)
+
+        val events = (1..60).map {
+            BlueshiftEvent(
+                eventName = "test_event_$it", eventParams = JSONObject(), timestamp = it.toLong()
+            )
+        }
+        repository.insertEvents(events)
+
+        val remaining = repository.readOneBatch(batchCount = 100)
+        assert(remaining.size == 10)
+        assert(remaining[0].eventName == "test_event_51")
+    }
+
+    @Test
+    fun insertEvents_keepsTheLatestEventOfEachNameWhenCollapsing() = runBlocking {
+        repository.quota = BlueshiftStoreQuota(
+            maxRows = 2, evictionPolicy = BlueshiftStoreQuota.EvictionPolicy.COLLAPSE_BY_EVENT_NAME
+        )
+
+        val events = (1..60).map {
+            BlueshiftEvent(
+                eventName = if (it % 2 == 0) "even" else "odd",
+                eventParams = JSONObject(),
+                timestamp = it.toLong()
+            )
+        }
+        repository.insertEvents(events)
+
+        val remaining = repository.readOneBatch(batchCount = 100)
+        assert(remaining.size == 2)
+        assert(remaining.map { it.timestamp } == listOf(59L, 60L))
+    }
+
+    @Test
+    fun insertEvents_storesTheSharedAttributesOnceAndRestoresThemOnRead() = runBlocking {
+        val attributes = "{\"app_name\":\"test\",\"device_id\":\"abc\"}".toByteArray(Charsets.UTF_8)
+        val events = (1..5).map {
+            BlueshiftEvent(
+                eventName = "test_event",
+                eventParams = JSONObject("{\"index\":$it}"),
+                timestamp = it.toLong(),
+                attributesBytes = attributes
+            )
+        }
+        repository.insertEvents(events)
+
+        val stored = repository.readOneBatch(batchCount = 100)
+        assert(stored.size == 5)
+        stored.forEachIndexed { i, event ->
+            val payload = JSONObject(String(event.payloadBytes, Charsets.UTF_8))
+            assert(payload.getInt("index") == i + 1)
+            assert(payload.getString("app_name") == "test")
+            assert(payload.getString("device_id") == "abc")
+        }
+
+        repository.deleteEvents(stored)
+        assert(repository.readOneBatch().isEmpty())
+    }
+
+    @Test
+    fun readOneBatch_dropsTheEventsThatCanNotBeDecoded() = runBlocking {
+        repository.insertEvents(
+            (1..2).map {
+                BlueshiftEvent(
+                    eventName = "test_event_$it", eventParams = JSONObject(), timestamp = it.toLong()
+                )
+            }
+        )
+
+        // the first event claims to be deflated, but its params are not.
+        repository.writableDatabase.execSQL(
+            "UPDATE events_table SET params = X'0102', format = ${BlueshiftBlobCodec.FORMAT_DEFLATE_V1} WHERE timestamp = 1"
+        )
+
+        val events = repository.readOneBatch(batchCount = 100)
+        assert(events.map { it.eventName } == listOf("test_event_2"))
+
+        // the dropped event is gone for good
+        assert(repository.readOneBatch(batchCount = 100).size == 1)
+    }
 }
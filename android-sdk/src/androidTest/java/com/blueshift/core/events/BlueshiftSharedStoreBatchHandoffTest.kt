@@ -0,0 +1,56 @@
+package com.blueshift.core.events
+
+import androidx.test.platform.app.InstrumentationRegistry
+import com.blueshift.core.database.BlueshiftSharedStore
+import com.blueshift.core.network.BlueshiftNetworkRequest
+import com.blueshift.core.network.BlueshiftNetworkRequestRepositoryImpl
+import kotlinx.coroutines.runBlocking
+import org.json.JSONObject
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+
+class BlueshiftSharedStoreBatchHandoffTest {
+    private lateinit var eventRepository: BlueshiftEventRepositoryImpl
+    private lateinit var networkRequestRepository: BlueshiftNetworkRequestRepositoryImpl
+    private lateinit var handoff: BlueshiftSharedStoreBatchHandoff
+
+    @Before
+    fun setUp() {
+        val context = InstrumentationRegistry.getInstrumentation().targetContext
+        val sharedStore = BlueshiftSharedStore.getInstance(context)
+        eventRepository = BlueshiftEventRepositoryImpl(context, sharedStore)
+        networkRequestRepository = BlueshiftNetworkRequestRepositoryImpl(context, sharedStore)
+        handoff = BlueshiftSharedStoreBatchHandoff(eventRepository, networkRequestRepository)
+    }
+
+    @After
+    fun tearDown() = runBlocking {
+        eventRepository.clear()
+        networkRequestRepository.clear()
+    }
+
+    @Test
+    fun moveToRequestQueue_insertsTheRequestAndDeletesTheEvents() = runBlocking {
+        val events = (1..10).map {
+            BlueshiftEvent(eventName = "test_event_$it", eventParams = JSONObject(), timestamp = it.toLong())
+        }
+        eventRepository.insertEvents(events)
+
+        val batch = eventRepository.readOneBatch(batchCount = 100)
+        assert(batch.size == 10)
+
+        val request = BlueshiftNetworkRequest(
+            url = "https://example.com/bulkevents",
+            method = BlueshiftNetworkRequest.Method.POST,
+            bodyBytes = BlueshiftBulkEventPayload.build(batch),
+            priority = BlueshiftNetworkRequest.Priority.BULK
+        )
+        handoff.moveToRequestQueue(batch, request)
+
+        assert(eventRepository.readOneBatch().isEmpty())
+        val queued = networkRequestRepository.readNextRequest()
+        assert(queued?.url == request.url)
+        assert(queued?.bodyBytes?.contentEquals(request.bodyBytes) == true)
+    }
+}
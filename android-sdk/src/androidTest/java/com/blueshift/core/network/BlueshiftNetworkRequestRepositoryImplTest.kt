@@ -1,6 +1,7 @@
 package com.blueshift.core.network
 
 import androidx.test.platform.app.InstrumentationRegistry
+import com.blueshift.core.database.BlueshiftStoreQuota
 import kotlinx.coroutines.runBlocking
 import org.json.JSONObject
 import org.junit.After
@@ -231,4 +232,188 @@ class BlueshiftNetworkRequestRepositoryImplTest {
                 assert(it.url == "https://api.com/1")
             }
         }
+
+    @Test
+    fun readNextRequest_shouldReturnTheHighestPriorityRequestFirst(): Unit = runBlocking {
+        val now = System.currentTimeMillis()
+        val priorities = listOf(
+            BlueshiftNetworkRequest.Priority.BULK,
+            BlueshiftNetworkRequest.Priority.NORMAL,
+            BlueshiftNetworkRequest.Priority.CRITICAL,
+        )
+        for (priority in priorities) {
+            repository.insertRequest(
+                BlueshiftNetworkRequest(
+                    url = "https://example.com/$priority",
+                    method = BlueshiftNetworkRequest.Method.POST,
+                    timestamp = now,
+                    priority = priority
+                )
+            )
+        }
+
+        val request = repository.readNextRequest()
+        assert(request?.priority == BlueshiftNetworkRequest.Priority.CRITICAL)
+    }
+
+    @Test
+    fun readNextRequest_shouldMoveTheWaitingRequestsUpByAge(): Unit = runBlocking {
+        val now = System.currentTimeMillis()
+        repository.priorityAgingMillis = 1000
+        repository.insertRequest(
+            BlueshiftNetworkRequest(
+                url = "https://example.com/bulk",
+                method = BlueshiftNetworkRequest.Method.POST,
+                timestamp = now - 5000,
+                priority = BlueshiftNetworkRequest.Priority.BULK
+            )
+        )
+        repository.insertRequest(
+            BlueshiftNetworkRequest(
+                url = "https://example.com/normal",
+                method = BlueshiftNetworkRequest.Method.POST,
+                timestamp = now,
+                priority = BlueshiftNetworkRequest.Priority.NORMAL
+            )
+        )
+
+        val request = repository.readNextRequest()
+        assert(request?.url == "https://example.com/bulk")
+    }
+
+    @Test
+    fun readNextRequests_shouldReturnTheReadyRequestsInOrderUpToTheLimit(): Unit = runBlocking {
+        val now = System.currentTimeMillis()
+        (1..5).forEach {
+            repository.insertRequest(
+                BlueshiftNetworkRequest(
+                    url = "https://api.com/$it",
+                    method = BlueshiftNetworkRequest.Method.POST,
+                    timestamp = now + it,
+                    // the last request is not ready yet.
+                    retryAttemptTimestamp = if (it == 5) now + 60000 else 0
+                )
+            )
+        }
+
+        val firstPage = repository.readNextRequests(3)
+        assert(firstPage.map { it.url } == listOf("https://api.com/1", "https://api.com/2", "https://api.com/3"))
+
+        repository.deleteRequests(firstPage)
+
+        val secondPage = repository.readNextRequests(3)
+        assert(secondPage.map { it.url } == listOf("https://api.com/4"))
+    }
+
+    @Test
+    fun updateRequests_shouldUpdateAllTheRequests(): Unit = runBlocking {
+        (1..3).forEach {
+            repository.insertRequest(
+                BlueshiftNetworkRequest(
+                    url = "https://api.com/$it",
+                    method = BlueshiftNetworkRequest.Method.POST,
+                )
+            )
+        }
+
+        val requests = repository.readNextRequests(3)
+        requests.forEach { it.retryAttemptTimestamp = System.currentTimeMillis() + 60000 }
+        repository.updateRequests(requests)
+
+        assert(repository.readNextRequests(3).isEmpty())
+    }
+
+    @Test
+    fun insertRequest_neverKeepsMoreRequestsThanTheQuota() = runBlocking {
+        repository.quota = BlueshiftStoreQuota(maxRows = 2)
+
+        (1..3).forEach {
+            repository.insertRequest(
+                BlueshiftNetworkRequest(
+                    url = "https://example.com/$it",
+                    method = BlueshiftNetworkRequest.Method.GET,
+                    timestamp = it.toLong()
+                )
+            )
+
+            assert(repository.readNextRequests(10).size == minOf(it, 2))
+        }
+
+        // the oldest request is evicted first
+        assert(repository.readNextRequests(10).map { it.url }.sorted() == listOf("https://example.com/2", "https://example.com/3"))
+    }
+
+    @Test
+    fun quota_replacesCollapseByEventNameWithDropOldest() {
+        repository.quota = BlueshiftStoreQuota(
+            maxRows = 2, evictionPolicy = BlueshiftStoreQuota.EvictionPolicy.COLLAPSE_BY_EVENT_NAME
+        )
+
+        assert(repository.quota.evictionPolicy == BlueshiftStoreQuota.EvictionPolicy.DROP_OLDEST)
+    }
+
+    @Test
+    fun readNextRequests_readsEachPriorityClassWithoutSortingTheQueue() {
+        val now = System.currentTimeMillis()
+        val cursor = repository.readableDatabase.rawQuery(
+            "EXPLAIN QUERY PLAN SELECT * FROM request_queue_table WHERE priority = 2 AND " +
+                    "retry_balance > 0 AND retry_timestamp < $now ORDER BY timestamp ASC, _id ASC LIMIT 10",
+            null
+        )
+        val plan = StringBuilder()
+        while (cursor.moveToNext()) plan.append(cursor.getString(cursor.getColumnIndexOrThrow("detail")))
+        cursor.close()
+
+        assert(plan.contains("request_queue_table_priority_index")) { plan }
+        assert(!plan.contains("TEMP B-TREE")) { plan }
+    }
+
+    @Test
+    fun writeBack_keepsTheAcknowledgementOfARequestNotDeleted(): Unit = runBlocking {
+        repository.insertRequest(
+            BlueshiftNetworkRequest(url = "https://example.com", method = BlueshiftNetworkRequest.Method.GET)
+        )
+
+        val request = repository.readNextRequest()
+        assert(request?.isAcknowledged == false)
+
+        repository.writeBack(listOfNotNull(request), emptyList(), emptyList())
+
+        assert(repository.readNextRequest()?.isAcknowledged == true)
+    }
+
+    @Test
+    fun readHeldBulkBacklog_returnsTheCreationTimeOfTheOldestHeldRequest(): Unit = runBlocking {
+        listOf(3000L, 2000L, 1000L).forEach {
+            repository.insertRequest(
+                BlueshiftNetworkRequest(
+                    url = "https://example.com/bulk",
+                    method = BlueshiftNetworkRequest.Method.POST,
+                    timestamp = it,
+                    priority = BlueshiftNetworkRequest.Priority.BULK,
+                )
+            )
+        }
+
+        // the bulk request created at 1000 is no longer held back.
+        val backlog = repository.readHeldBulkBacklog(bulkCreatedBefore = 1500)
+
+        assert(backlog.count == 2L)
+        assert(backlog.oldestTimestamp == 2000L)
+        assert(repository.readHeldBulkBacklog(bulkCreatedBefore = 5000).oldestTimestamp == 0L)
+    }
+
+    @Test
+    fun onCreate_doesNotCreateTheReadyIndex() {
+        val cursor = repository.readableDatabase.rawQuery(
+            "SELECT name FROM sqlite_master WHERE type = 'index' AND tbl_name = 'request_queue_table'",
+            null
+        )
+        val indexes = mutableListOf<String>()
+        while (cursor.moveToNext()) indexes.add(cursor.getString(0))
+        cursor.close()
+
+        assert("request_queue_table_priority_index" in indexes) { indexes }
+        assert("request_queue_table_ready_index" !in indexes) { indexes }
+    }
 }
@@ -21,10 +21,24 @@ import com.blueshift.core.BlueshiftLambdaQueue;
 import com.blueshift.core.BlueshiftNetworkRequestQueueManager;
 import com.blueshift.core.app.BlueshiftInstallationStatus;
 import com.blueshift.core.app.BlueshiftInstallationStatusHelper;
+import com.blueshift.core.app.BlueshiftTrimMemoryCallbacks;
+import com.blueshift.core.database.BlueshiftBlobCodec;
+import com.blueshift.core.database.BlueshiftSharedStore;
+import com.blueshift.core.database.BlueshiftStoreQuota;
+import com.blueshift.core.events.BlueshiftBatchHandoff;
+import com.blueshift.core.events.BlueshiftEventBatchPolicy;
+import com.blueshift.core.events.BlueshiftEventBuilder;
+import com.blueshift.core.events.BlueshiftEventCoalescer;
 import com.blueshift.core.events.BlueshiftEventRepositoryImpl;
+import com.blueshift.core.events.BlueshiftEventThrottle;
+import com.blueshift.core.events.BlueshiftSharedStoreBatchHandoff;
+import com.blueshift.core.events.BlueshiftEventWriter;
 import com.blueshift.core.network.BlueshiftNetworkConfiguration;
 import com.blueshift.core.network.BlueshiftNetworkRepositoryImpl;
 import com.blueshift.core.network.BlueshiftNetworkRequestRepositoryImpl;
+import com.blueshift.core.network.BlueshiftNetworkTransport;
+import com.blueshift.core.network.BlueshiftUrlConnectionTransport;
+import com.blueshift.core.schedule.network.BlueshiftConnectivityMonitor;
 import com.blueshift.core.schedule.network.BlueshiftNetworkChangeScheduler;
 import com.blueshift.httpmanager.Request;
 import com.blueshift.inappmessage.InAppActionCallback;
@@ -54,6 +68,7 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -489,15 +504,89 @@ public class Blueshift {
     void initializeEventSyncModule(Context context, Configuration configuration) {
         BlueshiftNetworkChangeScheduler.INSTANCE.scheduleWithJobScheduler(context, configuration);
 
-        try (BlueshiftNetworkRequestRepositoryImpl networkRequestRepository = new BlueshiftNetworkRequestRepositoryImpl(context)) {
-            try (BlueshiftEventRepositoryImpl eventRepository = new BlueshiftEventRepositoryImpl(context)) {
-                BlueshiftEventManager.INSTANCE.initialize(eventRepository, networkRequestRepository, BlueshiftLambdaQueue.INSTANCE);
-            } catch (Exception e) {
-                BlueshiftLogger.e(LOG_TAG, e);
+        int storageFormat = configuration.isStorageCompressionEnabled()
+                ? BlueshiftBlobCodec.FORMAT_DEFLATE_V1
+                : BlueshiftBlobCodec.FORMAT_PLAIN;
+
+        for (Map.Entry<BlueshiftLambdaQueue.Lane, BlueshiftLambdaQueue.LaneConfig> entry : configuration.getEventQueueLaneConfigs().entrySet()) {
+            BlueshiftLambdaQueue.INSTANCE.configureLane(entry.getKey(), entry.getValue());
+        }
+
+        // in single-store mode, both the tables live in one database to move the batches atomically.
+        BlueshiftSharedStore sharedStore = configuration.isSingleStoreEnabled()
+                ? BlueshiftSharedStore.getInstance(context)
+                : null;
+
+        BlueshiftEventBatchPolicy batchPolicy = new BlueshiftEventBatchPolicy(
+                configuration.getBulkEventMaxCount(),
+                configuration.getBulkEventMaxBytes());
+
+        try {
+            // the repositories live as long as the app, as the managers below keep using them.
+            BlueshiftNetworkRequestRepositoryImpl networkRequestRepository = new BlueshiftNetworkRequestRepositoryImpl(context, sharedStore);
+            networkRequestRepository.setQuota(new BlueshiftStoreQuota(
+                    configuration.getRequestQueueMaxRows(),
+                    configuration.getRequestQueueMaxBytes(),
+                    configuration.getStoreEvictionPolicy()));
+            networkRequestRepository.setStorageFormat(storageFormat);
+            networkRequestRepository.setPriorityAgingMillis(configuration.getRequestPriorityAging());
+
+            BlueshiftEventRepositoryImpl eventRepository = new BlueshiftEventRepositoryImpl(context, sharedStore);
+            eventRepository.setQuota(new BlueshiftStoreQuota(
+                    configuration.getEventStoreMaxRows(),
+                    configuration.getEventStoreMaxBytes(),
+                    configuration.getStoreEvictionPolicy()));
+            eventRepository.setStorageFormat(storageFormat);
+
+            BlueshiftEventWriter eventWriter = new BlueshiftEventWriter(
+                    eventRepository,
+                    configuration.getEventGroupCommitWindow(),
+                    configuration.getEventGroupCommitMaxEvents());
+            BlueshiftEventThrottle eventThrottle = new BlueshiftEventThrottle(
+                    configuration.getEventRateLimits(),
+                    configuration.getDroppedEventsReportInterval());
+            BlueshiftEventCoalescer eventCoalescer = new BlueshiftEventCoalescer(
+                    configuration.getEventCoalescingWindow(),
+                    configuration.getRealtimeEventCoalescingWindow());
+            BlueshiftBatchHandoff batchHandoff = sharedStore != null
+                    ? new BlueshiftSharedStoreBatchHandoff(eventRepository, networkRequestRepository)
+                    : null;
+            BlueshiftEventManager.INSTANCE.initialize(eventRepository, networkRequestRepository, BlueshiftLambdaQueue.INSTANCE, eventWriter, batchPolicy, eventThrottle, eventCoalescer, batchHandoff);
+
+            // the events held for coalescing should not be lost when the app goes away.
+            if (configuration.getEventCoalescingWindow() > 0) {
+                BlueshiftTrimMemoryCallbacks.INSTANCE.register(context);
             }
 
-            BlueshiftNetworkRepositoryImpl networkRepository = new BlueshiftNetworkRepositoryImpl();
-            BlueshiftNetworkRequestQueueManager.INSTANCE.initialize(networkRequestRepository, networkRepository);
+            BlueshiftNetworkTransport networkTransport = configuration.getNetworkTransport();
+            if (networkTransport == null) {
+                networkTransport = new BlueshiftUrlConnectionTransport(
+                        configuration.getNetworkConnectTimeout(),
+                        configuration.getNetworkReadTimeout(),
+                        configuration.getRequestCompressionThreshold());
+            }
+            BlueshiftNetworkRepositoryImpl networkRepository = new BlueshiftNetworkRepositoryImpl(networkTransport);
+
+            // the rows queued before the single-store mode was turned on or off are moved into the
+            // store in use, else they would never be sent. The queue is handed to the queue manager
+            // only after that, so that the first sync sees all of them. The events tracked in the
+            // meantime are stored and sent by the sync that follows.
+            BlueshiftExecutor.getInstance().runOnDiskIOThread(() -> {
+                try {
+                    eventRepository.adoptRowsFromOtherStore(context);
+                    networkRequestRepository.adoptRowsFromOtherStore(context);
+                } catch (Exception e) {
+                    BlueshiftLogger.e(LOG_TAG, e);
+                }
+
+                BlueshiftNetworkRequestQueueManager.INSTANCE.initialize(networkRequestRepository, networkRepository, configuration.getMaxInFlightRequests(), configuration.getRealtimeEventBatchThreshold(), batchPolicy);
+                BlueshiftNetworkRequestQueueManager.INSTANCE.configureUploadPolicy(configuration.getUploadPolicy(), context);
+
+                // sync the queue as soon as the network comes back.
+                BlueshiftConnectivityMonitor.INSTANCE.start(context);
+
+                BlueshiftEventManager.INSTANCE.syncAsync();
+            });
         } catch (Exception e) {
             BlueshiftLogger.e(LOG_TAG, e);
         }
@@ -564,22 +653,35 @@ public class Blueshift {
      */
     @SuppressWarnings("WeakerAccess")
     public void trackEvent(@NonNull final String eventName, final HashMap<String, Object> params, final boolean canBatchThisEvent) {
+        //noinspection ConstantValue
+        if (eventName == null) {
+            // Java allows passing null as eventName when calling trackEvent, but Kotlin
+            // will crash the app if eventName is null in the next line.
+            BlueshiftLogger.e(LOG_TAG, "Event name is required. Dropping event.");
+            return;
+        }
+
+        trackEvent(BlueshiftEventBuilder.name(eventName).putAll(params).batch(canBatchThisEvent));
+    }
+
+    /**
+     * Method to send generic events built with the typed {@link BlueshiftEventBuilder}
+     *
+     * @param builder builder holding the event name, params and the batch flag
+     */
+    @SuppressWarnings("WeakerAccess")
+    public void trackEvent(@NonNull final BlueshiftEventBuilder builder) {
         if (Blueshift.isTrackingEnabled(mContext)) {
             String apiKey = BlueshiftUtils.getApiKey(mContext);
             if (apiKey == null || apiKey.isEmpty()) {
                 BlueshiftLogger.e(LOG_TAG, "Please set a valid API key in your configuration object before initialization.");
             } else {
-                //noinspection ConstantValue
-                if (eventName != null) {
-                    // Java allows passing null as eventName when calling trackEvent, but Kotlin
-                    // will crash the app if eventName is null in the next line.
-                    BlueshiftEventManager.INSTANCE.trackEventWithData(mContext, eventName, params, canBatchThisEvent);
-                }
+                BlueshiftEventManager.INSTANCE.trackEventWithBuilder(mContext, builder);
 
                 doAutomaticIdentifyChecks(mContext);
             }
         } else {
-            BlueshiftLogger.i(LOG_TAG, "Blueshift SDK's event tracking is disabled. Dropping event: " + eventName);
+            BlueshiftLogger.i(LOG_TAG, "Blueshift SDK's event tracking is disabled. Dropping event: " + builder.getEventName());
         }
     }
 
@@ -6,15 +6,25 @@ import com.blueshift.BlueshiftAttributesUser
 import com.blueshift.BlueshiftConstants
 import com.blueshift.BlueshiftJSONObject
 import com.blueshift.core.common.BlueshiftAPI
+import com.blueshift.core.common.BlueshiftJsonWriter
 import com.blueshift.core.common.BlueshiftLogger
+import com.blueshift.core.events.BlueshiftBatchHandoff
+import com.blueshift.core.events.BlueshiftBulkEventPayload
 import com.blueshift.core.events.BlueshiftEvent
+import com.blueshift.core.events.BlueshiftEventBatchPolicy
+import com.blueshift.core.events.BlueshiftEventBuilder
+import com.blueshift.core.events.BlueshiftEventCoalescer
+import com.blueshift.core.events.BlueshiftEventParams
 import com.blueshift.core.events.BlueshiftEventRepository
+import com.blueshift.core.events.BlueshiftEventThrottle
+import com.blueshift.core.events.BlueshiftEventWriter
 import com.blueshift.core.network.BlueshiftNetworkRequest
 import com.blueshift.core.network.BlueshiftNetworkRequestRepository
+import com.blueshift.core.network.BlueshiftRequestHeaders
+import com.blueshift.core.schedule.network.BlueshiftConnectivityMonitor
 import com.blueshift.util.CommonUtils
-import com.blueshift.util.NetworkUtils
-import org.json.JSONArray
 import org.json.JSONObject
+import java.util.UUID
 
 object BlueshiftEventManager {
 
@@ -40,14 +50,45 @@ object BlueshiftEventManager {
             null
         }
 
+    private var _eventWriter: BlueshiftEventWriter? = null
+    private val eventWriter: BlueshiftEventWriter?
+        get() = _eventWriter ?: run {
+            BlueshiftLogger.d("$TAG eventWriter is null! Did you forget to initialize the SDK?")
+            null
+        }
+
+    private var batchPolicy = BlueshiftEventBatchPolicy()
+    private var eventThrottle = BlueshiftEventThrottle()
+    private var eventCoalescer = BlueshiftEventCoalescer()
+    private var batchHandoff: BlueshiftBatchHandoff? = null
+
+    /**
+     * @param eventWriter the group-commit stage used for writing batch events. When not provided,
+     * the batch events are written to the [eventRepository] as soon as they are tracked.
+     * @param batchPolicy the count and size limits of a bulk event request.
+     * @param eventThrottle the per event name rate limits and sampling. No limits by default.
+     * @param eventCoalescer merges the repeated identical events. Off by default.
+     * @param batchHandoff moves the events into the request queue atomically. When not provided,
+     * the bulk request is inserted first and the events are deleted after that.
+     */
     fun initialize(
         eventRepository: BlueshiftEventRepository,
         networkRequestRepository: BlueshiftNetworkRequestRepository,
-        blueshiftLambdaQueue: BlueshiftLambdaQueue
+        blueshiftLambdaQueue: BlueshiftLambdaQueue,
+        eventWriter: BlueshiftEventWriter = BlueshiftEventWriter(eventRepository, windowMillis = 0),
+        batchPolicy: BlueshiftEventBatchPolicy = BlueshiftEventBatchPolicy(),
+        eventThrottle: BlueshiftEventThrottle = BlueshiftEventThrottle(),
+        eventCoalescer: BlueshiftEventCoalescer = BlueshiftEventCoalescer(),
+        batchHandoff: BlueshiftBatchHandoff? = null,
     ) {
         this._eventRepository = eventRepository
         this._networkRequestRepository = networkRequestRepository
         this._blueshiftLambdaQueue = blueshiftLambdaQueue
+        this._eventWriter = eventWriter
+        this.batchPolicy = batchPolicy
+        this.eventThrottle = eventThrottle
+        this.eventCoalescer = eventCoalescer
+        this.batchHandoff = batchHandoff
     }
 
     /**
@@ -58,27 +99,145 @@ object BlueshiftEventManager {
     fun trackEventWithData(
         context: Context, eventName: String, data: HashMap<String, Any>?, isBatchEvent: Boolean
     ) {
-        val eventParams = BlueshiftJSONObject()
-        eventParams.put(BlueshiftConstants.KEY_EVENT, eventName)
-        eventParams.put(BlueshiftConstants.KEY_TIMESTAMP, CommonUtils.getCurrentUtcTimestamp())
+        if (!eventThrottle.tryAcquire(eventName)) {
+            BlueshiftLogger.d("$TAG: Rate limit reached. Dropping event $eventName.")
+            return
+        }
+
+        track(context, eventName, BlueshiftEventParams.fromMap(data), isBatchEvent)
+    }
+
+    /**
+     * Tracks the event built with a [BlueshiftEventBuilder].
+     */
+    fun trackEventWithBuilder(context: Context, builder: BlueshiftEventBuilder) {
+        if (!eventThrottle.tryAcquire(builder.eventName)) {
+            BlueshiftLogger.d("$TAG: Rate limit reached. Dropping event ${builder.eventName}.")
+            return
+        }
+
+        track(context, builder.eventName, builder.build(), builder.isBatchEvent)
+    }
+
+    /**
+     * Only the event name, the serialized params and the tracking time are captured on the caller's
+     * thread. The enrichment (app and user attributes, connectivity check) happens inside the
+     * [BlueshiftLambdaQueue] consumer so that this call stays cheap for the main thread.
+     */
+    private fun track(
+        context: Context, eventName: String, params: BlueshiftEventParams, isBatchEvent: Boolean
+    ) {
+        val appContext = context.applicationContext ?: context
+        val timestamp = System.currentTimeMillis()
+
+        val isCoalescing = eventCoalescer.offer(eventName, params, timestamp, isBatchEvent) {
+            pushEvent(appContext, it.eventName, coalescedParams(it), it.firstTimestamp, it.isBatchEvent)
+        }
+
+        if (!isCoalescing) pushEvent(appContext, eventName, params, timestamp, isBatchEvent)
+
+        eventThrottle.takeReport()?.let { report ->
+            // the report is not subject to the rate limits, and it is never urgent.
+            val reportParams = BlueshiftEventParams.fromMap(
+                mapOf(BlueshiftEventThrottle.KEY_DROPPED_EVENTS to JSONObject(report))
+            )
+            pushEvent(appContext, BlueshiftEventThrottle.REPORT_EVENT_NAME, reportParams, timestamp, true)
+        }
+    }
+
+    private fun coalescedParams(group: BlueshiftEventCoalescer.Group): BlueshiftEventParams {
+        // a single event goes out as it was tracked.
+        if (group.count == 1) return group.params
+
+        return group.params + BlueshiftEventParams.fromMap(
+            mapOf(
+                BlueshiftEventCoalescer.KEY_COUNT to group.count,
+                BlueshiftEventCoalescer.KEY_FIRST_TIMESTAMP to CommonUtils.getUtcTimestamp(group.firstTimestamp),
+                BlueshiftEventCoalescer.KEY_LAST_TIMESTAMP to CommonUtils.getUtcTimestamp(group.lastTimestamp),
+            )
+        )
+    }
+
+    private fun pushEvent(
+        appContext: Context,
+        eventName: String,
+        params: BlueshiftEventParams,
+        timestamp: Long,
+        isBatchEvent: Boolean
+    ) {
+        blueshiftLambdaQueue?.push(laneFor(isBatchEvent)) {
+            val blueshiftEvent = buildEvent(appContext, eventName, params, timestamp)
+
+            // We should insert an event as batch event in two cases.
+            // 1. If the app asks us to make it a batch event
+            // 2. If the app didn't ask, but we had no internet connection at the time of tracking
+            val isConnected = BlueshiftConnectivityMonitor.isConnected(appContext)
+            processEvent(blueshiftEvent, isBatchEvent || !isConnected)
+        }
+    }
+
+    fun buildEvent(
+        context: Context, eventName: String, data: Map<String, Any>?, timestamp: Long
+    ): BlueshiftEvent {
+        return buildEvent(context, eventName, BlueshiftEventParams.fromMap(data), timestamp)
+    }
+
+    /**
+     * Builds the event payload by adding the app and user attributes to the params. This method
+     * reads from the disk and system services, hence should not be called on the main thread.
+     *
+     * The attributes are kept apart from the event params, so that the events sharing the same
+     * attributes can store them only once. The params win when both have the same key.
+     */
+    fun buildEvent(
+        context: Context, eventName: String, params: BlueshiftEventParams, timestamp: Long
+    ): BlueshiftEvent {
+        val uuid = UUID.randomUUID().toString()
+        val writer = BlueshiftJsonWriter.obtain()
+        val eventParamsBytes = try {
+            writer.beginObject()
+            if (BlueshiftEvent.KEY_EVENT_UUID !in params.keys) {
+                writer.name(BlueshiftEvent.KEY_EVENT_UUID).value(uuid)
+            }
+            if (BlueshiftConstants.KEY_EVENT !in params.keys) {
+                writer.name(BlueshiftConstants.KEY_EVENT).value(eventName)
+            }
+            if (BlueshiftConstants.KEY_TIMESTAMP !in params.keys) {
+                writer.name(BlueshiftConstants.KEY_TIMESTAMP).value(CommonUtils.getUtcTimestamp(timestamp))
+            }
+            writer.rawMembers(params.bytes)
+            writer.endObject()
+            writer.toByteArray()
+        } finally {
+            BlueshiftJsonWriter.recycle(writer)
+        }
+
+        val attributes = BlueshiftJSONObject()
 
         val appInfo = BlueshiftAttributesApp.getInstance().sync(context)
-        eventParams.putAll(appInfo)
+        attributes.putAll(appInfo)
 
         val userInfo = BlueshiftAttributesUser.getInstance().sync(context)
-        eventParams.putAll(userInfo)
+        attributes.putAll(userInfo)
 
-        data?.forEach { eventParams.put(it.key, it.value) }
+        attributes.remove(BlueshiftConstants.KEY_EVENT)
+        attributes.remove(BlueshiftConstants.KEY_TIMESTAMP)
+        attributes.remove(BlueshiftEvent.KEY_EVENT_UUID)
+        params.keys.forEach { attributes.remove(it) }
 
-        val isConnected = NetworkUtils.isConnected(context)
-        val blueshiftEvent = BlueshiftEvent(
-            eventName = eventName, eventParams = eventParams, timestamp = System.currentTimeMillis()
-        )
+        val attributesBytes = if (attributes.length() > 0) {
+            attributes.toString().toByteArray(Charsets.UTF_8)
+        } else {
+            null
+        }
 
-        // We should insert an event as batch event in two cases.
-        // 1. If the app asks us to make it a batch event
-        // 2. If the app didn't ask, but we had no internet connection at the time of tracking
-        enqueueEvent(blueshiftEvent, isBatchEvent || !isConnected)
+        return BlueshiftEvent(
+            eventName = eventName,
+            timestamp = timestamp,
+            eventParamsBytes = eventParamsBytes,
+            attributesBytes = attributesBytes,
+            uuid = uuid,
+        )
     }
 
     /**
@@ -86,25 +245,46 @@ object BlueshiftEventManager {
      * the method will call the sync method to send the event to the server (if the event is real-time)
      */
     fun enqueueEvent(event: BlueshiftEvent, isBatchEvent: Boolean) {
-        blueshiftLambdaQueue?.push {
-            trackEvent(event, isBatchEvent)
-            // let's not call sync for bulk events.
-            // the sync will be called by the scheduler when it's time.
-            if (!isBatchEvent) BlueshiftNetworkRequestQueueManager.sync()
+        if (!eventThrottle.tryAcquire(event.eventName)) {
+            BlueshiftLogger.d("$TAG: Rate limit reached. Dropping event ${event.eventName}.")
+            return
+        }
+
+        blueshiftLambdaQueue?.push(laneFor(isBatchEvent)) { processEvent(event, isBatchEvent) }
+    }
+
+    private fun laneFor(isBatchEvent: Boolean): BlueshiftLambdaQueue.Lane {
+        return if (isBatchEvent) {
+            BlueshiftLambdaQueue.Lane.BATCH_EVENTS
+        } else {
+            BlueshiftLambdaQueue.Lane.REALTIME_EVENTS
         }
     }
 
+    private suspend fun processEvent(event: BlueshiftEvent, isBatchEvent: Boolean) {
+        trackEvent(event, isBatchEvent)
+        // let's not call sync for bulk events.
+        // the sync will be called by the scheduler when it's time.
+        if (!isBatchEvent) BlueshiftNetworkRequestQueueManager.sync()
+    }
+
     suspend fun trackEvent(event: BlueshiftEvent, isBatchEvent: Boolean) {
         if (isBatchEvent) {
             BlueshiftLogger.d("$TAG: Inserting 1 batch event -> ${event.eventName}")
-            eventRepository?.insertEvent(event)
+            eventWriter?.write(event)
         } else {
+            // flush barrier: the batch events tracked before this event should reach the db first.
+            eventWriter?.flush()
+
             val request = BlueshiftNetworkRequest(
                 url = BlueshiftAPI.eventURL(),
-                header = JSONObject(mapOf("Content-Type" to "application/json")),
+                headerBytes = BlueshiftRequestHeaders.JSON_CONTENT_TYPE,
                 authorizationRequired = true,
                 method = BlueshiftNetworkRequest.Method.POST,
-                body = event.eventParams,
+                timestamp = System.currentTimeMillis(),
+                bodyBytes = event.payloadBytes,
+                priority = BlueshiftNetworkRequest.Priority.NORMAL,
+                idempotencyKey = event.uuid ?: UUID.randomUUID().toString(),
             )
 
             BlueshiftLogger.d("$TAG: Inserting 1 real-time event -> ${event.eventName}")
@@ -117,7 +297,7 @@ object BlueshiftEventManager {
      * once added to the db, the method will call the sync method to send the event to the server.
      */
     fun enqueueCampaignEvent(queryString: String) {
-        blueshiftLambdaQueue?.push {
+        blueshiftLambdaQueue?.push(BlueshiftLambdaQueue.Lane.CAMPAIGN_EVENTS) {
             trackCampaignEvent(queryString)
             BlueshiftNetworkRequestQueueManager.sync()
         }
@@ -128,48 +308,80 @@ object BlueshiftEventManager {
             val request = BlueshiftNetworkRequest(
                 url = BlueshiftAPI.trackURL(queryString),
                 method = BlueshiftNetworkRequest.Method.GET,
+                timestamp = System.currentTimeMillis(),
+                priority = BlueshiftNetworkRequest.Priority.CRITICAL,
+                idempotencyKey = UUID.randomUUID().toString(),
             )
             networkRequestRepository?.insertRequest(request)
         }
     }
 
     /**
-     * Deletes ALL entries from the batch events table as well as the network requests table.
+     * Hands the events waiting for their coalescing window to the queue right away. Called when
+     * the process may go away soon, ex: the app going to the background.
+     */
+    fun flushPendingEvents() {
+        eventCoalescer.flush()
+    }
+
+    /**
+     * Syncs the request queue on the [BlueshiftLambdaQueue.Lane.MAINTENANCE] lane.
+     */
+    fun syncAsync() {
+        blueshiftLambdaQueue?.push(BlueshiftLambdaQueue.Lane.MAINTENANCE) {
+            BlueshiftNetworkRequestQueueManager.sync()
+        }
+    }
+
+    /**
+     * Deletes ALL entries from the batch events table as well as the network requests table. The
+     * events tracked before this call are cleared too, even when their lanes are still busy.
      */
     fun clearAsync() {
-        blueshiftLambdaQueue?.push { clear() }
+        blueshiftLambdaQueue?.pushBarrier { clear() }
     }
 
     suspend fun clear() {
+        eventCoalescer.discard()
+        eventWriter?.discard()
         eventRepository?.clear()
         networkRequestRepository?.clear()
     }
 
     suspend fun buildAndEnqueueBatchEvents() {
+        // make sure the events waiting in the group-commit buffer are part of the batches.
+        eventWriter?.flush()
+
         while (true) {
-            val events = eventRepository?.readOneBatch() ?: break
+            val events = eventRepository?.readOneBatch(
+                batchCount = batchPolicy.maxCount, batchSizeInBytes = batchPolicy.maxBytes
+            ) ?: break
             if (events.isEmpty()) break
 
-            val eventsArray = JSONArray()
-            events.forEach { eventsArray.put(it.eventParams) }
+            // the stored params are spliced into the payload as they are, without parsing them.
+            val bulkEventPayload = BlueshiftBulkEventPayload.build(events)
 
-            BlueshiftLogger.d("$TAG: Creating 1 bulk event with ${eventsArray.length()} event(s). Events = $eventsArray")
-
-            val bulkEventPayload = JSONObject().apply {
-                put("events", eventsArray)
-            }
+            BlueshiftLogger.d("$TAG: Creating 1 bulk event with ${events.size} event(s). Size = ${bulkEventPayload.size} bytes")
 
             val request = BlueshiftNetworkRequest(
                 url = BlueshiftAPI.bulkEventsURL(),
-                header = JSONObject(mapOf("Content-Type" to "application/json")),
+                headerBytes = BlueshiftRequestHeaders.JSON_CONTENT_TYPE,
                 authorizationRequired = true,
                 method = BlueshiftNetworkRequest.Method.POST,
-                body = bulkEventPayload,
+                timestamp = System.currentTimeMillis(),
+                bodyBytes = bulkEventPayload,
+                priority = BlueshiftNetworkRequest.Priority.BULK,
+                idempotencyKey = UUID.randomUUID().toString(),
             )
 
-            networkRequestRepository?.insertRequest(request)
+            val handoff = batchHandoff
+            if (handoff != null) {
+                handoff.moveToRequestQueue(events, request)
+            } else {
+                networkRequestRepository?.insertRequest(request)
 
-            eventRepository?.deleteEvents(events)
+                eventRepository?.deleteEvents(events)
+            }
         }
     }
 }
\ No newline at end of file
@@ -1,33 +1,215 @@
 package com.blueshift.core
 
 import com.blueshift.core.common.BlueshiftLogger
+import com.blueshift.core.common.BlueshiftMetrics
+import kotlinx.coroutines.CompletableDeferred
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.awaitAll
 import kotlinx.coroutines.channels.Channel
 import kotlinx.coroutines.launch
-import kotlinx.coroutines.runBlocking
 
+/**
+ * Runs the pushed blocks in the background, one lane at a time. Each [Lane] has its own queue
+ * and consumer, so the lanes run in parallel while the blocks inside a lane run in the order
+ * they were pushed.
+ */
 object BlueshiftLambdaQueue {
-    private val channel = Channel<suspend () -> Unit>(Channel.UNLIMITED)
-    private val coroutineScope = CoroutineScope(Dispatchers.Default)
+    enum class Lane {
+        BATCH_EVENTS, REALTIME_EVENTS, CAMPAIGN_EVENTS, MAINTENANCE
+    }
+
+    /**
+     * What happens when a block is pushed into a full lane.
+     *
+     * - [DROP_OLDEST] drops the oldest block waiting in the lane.
+     * - [DROP_NEWEST] drops the pushed block.
+     * - [SUSPEND] suspends the callers of [send] until there is space. [push] can not suspend
+     * its caller (usually the main thread), hence the block is kept in the lane beyond the
+     * capacity, still in the order it was pushed, up to twice the capacity. Beyond that hard
+     * cap the oldest block waiting in the lane is dropped, like [DROP_OLDEST].
+     *
+     * The dropped blocks are counted in [BlueshiftMetrics.DROPPED_BLOCKS].
+     */
+    enum class OverflowPolicy {
+        DROP_OLDEST, DROP_NEWEST, SUSPEND
+    }
+
+    data class LaneConfig(
+        val capacity: Int = Channel.UNLIMITED,
+        val overflowPolicy: OverflowPolicy = OverflowPolicy.SUSPEND,
+    )
+
+    private const val TAG = "LambdaQueue"
+    private val coroutineScope = CoroutineScope(SupervisorJob() + Dispatchers.Default)
+    private val laneConfigs = mutableMapOf<Lane, LaneConfig>()
+    private val lanes = mutableMapOf<Lane, LaneQueue>()
+
+    /**
+     * Sets the capacity and overflow policy of a lane. The lane is created on its first push,
+     * hence the configuration should be done before pushing anything into the lane.
+     */
+    fun configureLane(lane: Lane, config: LaneConfig) {
+        synchronized(lanes) {
+            if (lanes.containsKey(lane)) {
+                BlueshiftLogger.d("$TAG: Lane $lane is already running. Ignoring the new configuration.")
+            } else {
+                laneConfigs[lane] = config
+            }
+        }
+    }
+
+    fun push(lane: Lane = Lane.MAINTENANCE, block: suspend () -> Unit) {
+        laneFor(lane).offer(block, isBarrier = false)
+    }
+
+    /**
+     * Same as [push], but suspends the caller when the lane is full and its policy is SUSPEND.
+     */
+    suspend fun send(lane: Lane = Lane.MAINTENANCE, block: suspend () -> Unit) {
+        laneFor(lane).send(block)
+    }
 
-    init {
-        coroutineScope.launch {
-            for (block in channel) {
+    /**
+     * Runs the [block] on the [Lane.MAINTENANCE] lane once the blocks pushed before this call have
+     * run, on every lane. The other lanes wait for the [block] to finish before running the blocks
+     * pushed after this call. A barrier is never dropped by the overflow policy of a lane.
+     */
+    fun pushBarrier(block: suspend () -> Unit) {
+        val isDone = CompletableDeferred<Unit>()
+
+        // the barriers are pushed into the lanes under one lock, so that two barriers can not
+        // reach the lanes in a different order and wait for each other.
+        synchronized(lanes) {
+            val arrivals = Lane.values().filter { it != Lane.MAINTENANCE }.mapNotNull { lane ->
+                // a lane that was never used has nothing to wait for.
+                val laneQueue = lanes[lane] ?: return@mapNotNull null
+                val hasArrived = CompletableDeferred<Unit>()
+                laneQueue.offer({
+                    hasArrived.complete(Unit)
+                    isDone.await()
+                }, isBarrier = true)
+                hasArrived
+            }
+
+            laneFor(Lane.MAINTENANCE).offer({
                 try {
+                    arrivals.awaitAll()
                     block()
-                } catch (e: Exception) {
-                    BlueshiftLogger.e(e.stackTraceToString())
+                } finally {
+                    isDone.complete(Unit)
                 }
+            }, isBarrier = true)
+        }
+    }
+
+    private fun laneFor(lane: Lane): LaneQueue {
+        return synchronized(lanes) {
+            lanes.getOrPut(lane) {
+                val laneQueue = LaneQueue(lane, laneConfigs[lane] ?: LaneConfig())
+                coroutineScope.launch { laneQueue.consume() }
+                laneQueue
             }
         }
     }
 
-    fun push(block: suspend () -> Unit) {
-        channel.trySend {
-            runBlocking {
-                block()
+    internal class Entry(val block: suspend () -> Unit, val isBarrier: Boolean)
+
+    /**
+     * A FIFO of blocks with one consumer. The queue is guarded by its own lock and the consumer is
+     * woken up through a conflated channel, so that pushing never suspends nor reorders the blocks.
+     */
+    internal class LaneQueue(private val lane: Lane, config: LaneConfig) {
+        private val capacity = if (config.capacity == Channel.UNLIMITED) {
+            Int.MAX_VALUE
+        } else {
+            config.capacity.coerceAtLeast(1)
+        }
+        private val overflowPolicy = config.overflowPolicy
+
+        // the blocks pushed into a full SUSPEND lane are kept up to this size.
+        private val hardCapacity = if (capacity == Int.MAX_VALUE) {
+            Int.MAX_VALUE
+        } else {
+            (capacity.toLong() * 2).coerceAtMost(Int.MAX_VALUE.toLong()).toInt()
+        }
+        private val entries = ArrayDeque<Entry>()
+        private val hasEntries = Channel<Unit>(Channel.CONFLATED)
+        private val hasSpace = Channel<Unit>(Channel.CONFLATED)
+
+        fun offer(block: suspend () -> Unit, isBarrier: Boolean) {
+            synchronized(entries) {
+                if (!isBarrier && entries.size >= capacity) {
+                    when (overflowPolicy) {
+                        OverflowPolicy.DROP_OLDEST -> {
+                            dropOldest()
+                            BlueshiftLogger.d("$TAG: Lane $lane is full. Dropping the oldest block.")
+                        }
+
+                        OverflowPolicy.DROP_NEWEST -> {
+                            BlueshiftMetrics.increment(BlueshiftMetrics.DROPPED_BLOCKS)
+                            BlueshiftLogger.d("$TAG: Lane $lane is full. Dropping the new block.")
+                            return
+                        }
+
+                        OverflowPolicy.SUSPEND -> if (entries.size >= hardCapacity) {
+                            dropOldest()
+                            BlueshiftLogger.e(
+                                "$TAG: Lane $lane is over its hard cap ($hardCapacity). Dropping the oldest block."
+                            )
+                        } else {
+                            BlueshiftLogger.d("$TAG: Lane $lane is full. Keeping the block beyond the capacity.")
+                        }
+                    }
+                }
+
+                entries.addLast(Entry(block, isBarrier))
             }
-        }.isSuccess
+
+            hasEntries.trySend(Unit)
+        }
+
+        val size: Int
+            get() = synchronized(entries) { entries.size }
+
+        private fun dropOldest() {
+            val index = entries.indexOfFirst { !it.isBarrier }
+            if (index >= 0) {
+                entries.removeAt(index)
+                BlueshiftMetrics.increment(BlueshiftMetrics.DROPPED_BLOCKS)
+            }
+        }
+
+        suspend fun send(block: suspend () -> Unit) {
+            while (true) {
+                synchronized(entries) {
+                    if (overflowPolicy != OverflowPolicy.SUSPEND || entries.size < capacity) {
+                        offer(block, isBarrier = false)
+                        return
+                    }
+                }
+
+                hasSpace.receive()
+            }
+        }
+
+        suspend fun consume() {
+            while (true) {
+                val entry = synchronized(entries) { entries.removeFirstOrNull() }
+                if (entry == null) {
+                    hasEntries.receive()
+                    continue
+                }
+
+                hasSpace.trySend(Unit)
+
+                try {
+                    entry.block()
+                } catch (e: Exception) {
+                    BlueshiftLogger.e(e.stackTraceToString())
+                }
+            }
+        }
     }
 }
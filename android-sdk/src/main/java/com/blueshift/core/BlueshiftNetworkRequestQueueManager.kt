@@ -1,11 +1,31 @@
 package com.blueshift.core
 
+import android.content.Context
+import android.os.BatteryManager
+import com.blueshift.core.common.BlueshiftAPI
 import com.blueshift.core.common.BlueshiftLogger
+import com.blueshift.core.common.BlueshiftLruSet
+import com.blueshift.core.events.BlueshiftBulkEventPayload
+import com.blueshift.core.events.BlueshiftEventBatchPolicy
+import com.blueshift.core.network.BlueshiftCircuitBreaker
 import com.blueshift.core.network.BlueshiftNetworkConfiguration
 import com.blueshift.core.network.BlueshiftNetworkRepository
 import com.blueshift.core.network.BlueshiftNetworkRequest
 import com.blueshift.core.network.BlueshiftNetworkRequestRepository
+import com.blueshift.core.network.BlueshiftRequestBacklog
+import com.blueshift.core.network.BlueshiftRequestHeaders
+import com.blueshift.core.network.BlueshiftRetryBackoff
+import com.blueshift.core.schedule.network.BlueshiftConnectivityMonitor
+import com.blueshift.core.schedule.network.BlueshiftUploadPolicy
+import kotlinx.coroutines.NonCancellable
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.currentCoroutineContext
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.withContext
 import java.net.HttpURLConnection.HTTP_OK
+import java.util.UUID
 import java.util.concurrent.atomic.AtomicBoolean
 
 object BlueshiftNetworkRequestQueueManager {
@@ -13,18 +33,66 @@ object BlueshiftNetworkRequestQueueManager {
     private lateinit var networkRequestRepository: BlueshiftNetworkRequestRepository
     private lateinit var networkRepository: BlueshiftNetworkRepository
     private val isSyncing = AtomicBoolean(false) // to prevent concurrent access to the sync method
+    private val isSyncRequested = AtomicBoolean(false) // a sync was skipped while one was running
     private val lock = Any() // to prevent concurrent access to the database
+    private const val ACKNOWLEDGED_KEYS_CAPACITY = 256
+    private const val PAGE_SIZE_PER_IN_FLIGHT_REQUEST = 4
+    private val HTTP_SERVER_ERRORS = 500..599
 
+    // the bulk event request is rejected for its content, which may be due to a single member.
+    private val HTTP_VALIDATION_ERRORS = setOf(400, 413, 422)
+    const val DEFAULT_MAX_IN_FLIGHT_REQUESTS = 1
+
+    @Volatile
+    private var maxInFlightRequests = DEFAULT_MAX_IN_FLIGHT_REQUESTS
+
+    // when more real-time event requests than this are ready, they are sent as bulk event requests.
+    @Volatile
+    private var realtimeBatchThreshold = 0
+
+    // the limits of the bulk event requests made by folding the real-time event requests.
+    @Volatile
+    private var batchPolicy = BlueshiftEventBatchPolicy()
+    private var circuitBreaker = BlueshiftCircuitBreaker()
+    private var retryBackoff = BlueshiftRetryBackoff()
+
+    @Volatile
+    var uploadPolicy = BlueshiftUploadPolicy()
+        private set
+
+    @Volatile
+    private var appContext: Context? = null // for reading the charging state
+
+    // idempotency keys of the requests the server accepted, to recognize them without reading the
+    // database again. The acknowledgement is also stored in the request row by writeBack().
+    private val acknowledgedKeys = BlueshiftLruSet<String>(ACKNOWLEDGED_KEYS_CAPACITY)
+
+    @JvmOverloads
     fun initialize(
         networkRequestRepository: BlueshiftNetworkRequestRepository,
-        networkRepository: BlueshiftNetworkRepository
+        networkRepository: BlueshiftNetworkRepository,
+        maxInFlightRequests: Int = DEFAULT_MAX_IN_FLIGHT_REQUESTS,
+        realtimeBatchThreshold: Int = 0,
+        batchPolicy: BlueshiftEventBatchPolicy = BlueshiftEventBatchPolicy(),
+        circuitBreaker: BlueshiftCircuitBreaker = BlueshiftCircuitBreaker(),
+        retryBackoff: BlueshiftRetryBackoff = BlueshiftRetryBackoff(),
     ) {
         synchronized(lock) {
             this.networkRequestRepository = networkRequestRepository
             this.networkRepository = networkRepository
+            this.maxInFlightRequests = maxInFlightRequests.coerceAtLeast(1)
+            this.realtimeBatchThreshold = realtimeBatchThreshold
+            this.batchPolicy = batchPolicy
+            this.circuitBreaker = circuitBreaker
+            this.retryBackoff = retryBackoff
         }
     }
 
+    fun configureUploadPolicy(uploadPolicy: BlueshiftUploadPolicy, context: Context?) {
+        this.uploadPolicy = uploadPolicy
+        this.appContext = context?.applicationContext
+    }
+
     suspend fun insertNewRequest(request: BlueshiftNetworkRequest) {
         networkRequestRepository.insertRequest(request)
     }
@@ -41,7 +109,40 @@ object BlueshiftNetworkRequestQueueManager {
         return networkRequestRepository.readNextRequest()
     }
 
-    suspend fun sync() {
+    /**
+     * @return the requests the next sync would send now, not counting the ones waiting for their
+     * retry time or held back by the upload policy
+     */
+    suspend fun readBacklog(): BlueshiftRequestBacklog {
+        return networkRequestRepository.readBacklog(System.currentTimeMillis(), bulkCreatedBefore())
+    }
+
+    /**
+     * @return the bulk requests the upload policy holds back at the moment, none if it does not
+     */
+    suspend fun readHeldBulkBacklog(): BlueshiftRequestBacklog {
+        val bulkCreatedBefore = bulkCreatedBefore()
+        if (bulkCreatedBefore == Long.MAX_VALUE) return BlueshiftRequestBacklog(0, 0)
+
+        return networkRequestRepository.readHeldBulkBacklog(bulkCreatedBefore)
+    }
+
+    /**
+     * Sends the ready requests in the queue.
+     *
+     * @param maxRequests the number of requests after which the sync stops, 0 for no limit
+     * @param deadline the epoch time after which the sync does not pick new requests
+     * @return the number of requests taken from the queue
+     */
+    suspend fun sync(maxRequests: Int = 0, deadline: Long = Long.MAX_VALUE): Int {
+        var requestCount = 0
+
+        // the queue is handed over once the rows of the other store are adopted, see Blueshift.
+        if (!::networkRequestRepository.isInitialized) {
+            BlueshiftLogger.d("$TAG: The request queue is not ready yet. Skipping the sync.")
+            return requestCount
+        }
+
         // Do not initiate the sync process if the authorization value is not available.
         //
         // Reason: If the authorization value is not set, it means that the SDK is not initialized
@@ -52,56 +153,379 @@ object BlueshiftNetworkRequestQueueManager {
         // initializing the SDK would cause compliance issues. Hence we're blocking the sync completely
         // until we get the authorization value set.
         BlueshiftNetworkConfiguration.authorization?.let { basicAuth ->
-            // Prevent concurrent access to the sync method.
-            if (!isSyncing.compareAndSet(false, true)) {
-                BlueshiftLogger.d("$TAG: Sync is in-progress... Skipping the duplicate sync call.")
-                return
+            while (true) {
+                // Prevent concurrent access to the sync method. The running sync is asked to go
+                // again instead, as it may have read its last page before the new request came.
+                if (!isSyncing.compareAndSet(false, true)) {
+                    isSyncRequested.set(true)
+                    BlueshiftLogger.d("$TAG: Sync is in-progress... Asking it to sync again.")
+                    return requestCount
+                }
+
+                try {
+                    do {
+                        isSyncRequested.set(false)
+                        requestCount = syncPages(basicAuth, maxRequests, deadline, requestCount)
+                    } while (isSyncRequested.get() && !isLimitReached(maxRequests, deadline, requestCount))
+                } finally {
+                    isSyncing.set(false)
+                }
+
+                // a sync asked for between the check above and the reset of isSyncing.
+                if (!isSyncRequested.get() || isLimitReached(maxRequests, deadline, requestCount)) break
             }
+        }
 
-            try {
-                while (true) {
-                    // break the look when networkRequest is null.
-                    val networkRequest = readNextRequest() ?: break
-                    BlueshiftLogger.d("$TAG: Dequeue -> (Request ID: ${networkRequest.id})")
+        return requestCount
+    }
 
-                    if (networkRequest.authorizationRequired) {
-                        networkRequest.authorization = basicAuth
-                    }
+    private fun isLimitReached(maxRequests: Int, deadline: Long, requestCount: Int): Boolean {
+        return maxRequests in 1..requestCount || System.currentTimeMillis() >= deadline
+    }
 
-                    val response = networkRepository.makeNetworkRequest(
-                        networkRequest = networkRequest
-                    )
+    /**
+     * Sends the ready requests page by page, until the queue is drained or the limits are reached.
+     *
+     * @return the number of requests taken from the queue, including the [requestCount] so far
+     */
+    private suspend fun syncPages(
+        basicAuth: String, maxRequests: Int, deadline: Long, requestCount: Int
+    ): Int {
+        var count = requestCount
+        while (maxRequests <= 0 || count < maxRequests) {
+            // the requests of a page are written back before reading the next one,
+            // hence the sync can stop between the pages without losing the progress.
+            if (System.currentTimeMillis() >= deadline) {
+                BlueshiftLogger.d("$TAG: Sync deadline reached after $count request(s).")
+                break
+            }
 
-                    if (response.responseCode == HTTP_OK) {
-                        BlueshiftLogger.d("$TAG: Remove -> (Request ID: ${networkRequest.id})")
-                        deleteRequest(networkRequest)
-                    } else if (response.responseCode == 0) {
-                        BlueshiftLogger.d("$TAG: No internet connection. Pause sync!")
-                        break
-                    } else {
-                        networkRequest.retryAttemptBalance--
+            var limit = pageSize()
+            if (maxRequests > 0) limit = minOf(limit, maxRequests - count)
 
-                        if (networkRequest.retryAttemptBalance > 0) {
-                            val intervalMs =
-                                BlueshiftNetworkConfiguration.requestRetryIntervalInMilliseconds
+            // break the loop when there are no more requests to send.
+            val networkRequests = networkRequestRepository.readNextRequests(
+                limit, bulkCreatedBefore()
+            )
+            if (networkRequests.isEmpty()) break
 
-                            networkRequest.retryAttemptTimestamp =
-                                System.currentTimeMillis() + intervalMs
+            count += networkRequests.size
+            if (!dispatch(networkRequests, basicAuth)) break
+        }
+
+        return count
+    }
+
+    // the bulk requests are held back as asked by the upload policy.
+    private fun bulkCreatedBefore(): Long {
+        val policy = uploadPolicy
+        if (!policy.deferBulkUntilUnmeteredOrCharging) return Long.MAX_VALUE
+
+        return policy.bulkCreatedBefore(
+            System.currentTimeMillis(), BlueshiftConnectivityMonitor.isUnmetered(), isCharging()
+        )
+    }
+
+    private fun isCharging(): Boolean {
+        val batteryManager = appContext?.getSystemService(Context.BATTERY_SERVICE) as? BatteryManager
+        return batteryManager?.isCharging == true
+    }
+
+    private fun pageSize(): Int {
+        val pageSize = maxInFlightRequests * PAGE_SIZE_PER_IN_FLIGHT_REQUEST
+        // read enough requests to fill a bulk event request when folding them.
+        return if (realtimeBatchThreshold > 0) {
+            maxOf(pageSize, batchPolicy.maxCount)
+        } else {
+            pageSize
+        }
+    }
 
-                            // reset authorization to avoid storing it in db
-                            networkRequest.authorization = null
+    /**
+     * [REJECTED] and [FAILED] are the outcomes of a folded request only, see [sendFolded].
+     */
+    private enum class Outcome { SENT, ACKNOWLEDGED, RETRY, DROPPED, OFFLINE, DEFERRED, HELD, REJECTED, FAILED }
 
-                            BlueshiftLogger.d("$TAG: Retry later -> (Request ID: ${networkRequest.id})")
-                            updateRequest(networkRequest)
-                        } else {
-                            BlueshiftLogger.d("$TAG: Retry limit exceeded! Remove -> (Request ID: ${networkRequest.id})")
-                            deleteRequest(networkRequest)
+    /**
+     * Sends the [networkRequests] with up to [maxInFlightRequests] of them in flight at a time. The
+     * requests are started in the order they were read, so a request never starts ahead of an
+     * older request of the same priority class. The outcomes are written to the database in one
+     * batch after all the requests are complete. See [fold] for the real-time event requests.
+     *
+     * @return false if the sync should pause, due to the lack of internet connection or because
+     * none of the requests could be sent
+     */
+    private suspend fun dispatch(
+        networkRequests: List<BlueshiftNetworkRequest>, basicAuth: String
+    ): Boolean {
+        val outcomes = arrayOfNulls<Outcome>(networkRequests.size)
+        val isOffline = AtomicBoolean(false)
+        val inFlight = Semaphore(maxInFlightRequests)
+
+        try {
+            coroutineScope {
+                for (unit in fold(networkRequests)) {
+                    inFlight.acquire()
+
+                    // do not start the remaining requests once a request finds no internet connection.
+                    if (isOffline.get()) {
+                        inFlight.release()
+                        break
+                    }
+
+                    launch {
+                        try {
+                            val members = unit.map { networkRequests[it] }
+                            val unitOutcomes = if (members.size == 1) {
+                                listOf(send(members[0], basicAuth))
+                            } else {
+                                sendFolded(members, basicAuth)
+                            }
+
+                            if (Outcome.OFFLINE in unitOutcomes) isOffline.set(true)
+                            unitOutcomes.forEachIndexed { i, outcome -> outcomes[unit[i]] = outcome }
+                        } finally {
+                            inFlight.release()
                         }
                     }
                 }
-            } finally {
-                isSyncing.set(false)
             }
+        } finally {
+            // the outcomes are written back even when the sync is cancelled midway, else the
+            // completed requests of this page would be sent again by the next sync.
+            withContext(NonCancellable) {
+                writeBack(networkRequests, outcomes)
+            }
+        }
+
+        if (isOffline.get()) {
+            BlueshiftLogger.d("$TAG: No internet connection. Pause sync!")
+            return false
+        }
+
+        // the requests held back by a probing circuit breaker are read again in the next page.
+        // Stop if nothing else happened, to avoid reading them over and over.
+        if (outcomes.all { it == null || it == Outcome.HELD }) {
+            BlueshiftLogger.d("$TAG: No request could be sent. Pause sync!")
+            return false
+        }
+
+        return true
+    }
+
+    private suspend fun writeBack(
+        networkRequests: List<BlueshiftNetworkRequest>, outcomes: Array<Outcome?>
+    ) {
+        val acknowledged = mutableListOf<BlueshiftNetworkRequest>()
+        val retries = mutableListOf<BlueshiftNetworkRequest>()
+        val completed = mutableListOf<BlueshiftNetworkRequest>()
+        networkRequests.forEachIndexed { index, networkRequest ->
+            when (outcomes[index]) {
+                Outcome.RETRY, Outcome.DEFERRED -> retries.add(networkRequest)
+                Outcome.SENT -> {
+                    acknowledged.add(networkRequest)
+                    completed.add(networkRequest)
+                }
+
+                Outcome.ACKNOWLEDGED, Outcome.DROPPED -> completed.add(networkRequest)
+                else -> {} // not sent, stays in the queue as it is.
+            }
+        }
+
+        networkRequestRepository.writeBack(acknowledged, retries, completed)
+    }
+
+    private fun isRealtimeEvent(networkRequest: BlueshiftNetworkRequest): Boolean {
+        return networkRequest.method == BlueshiftNetworkRequest.Method.POST &&
+                networkRequest.url == BlueshiftAPI.eventURL() &&
+                networkRequest.bodyBytes != null &&
+                !networkRequest.isAcknowledged &&
+                networkRequest.idempotencyKey?.let { it in acknowledgedKeys } != true
+    }
+
+    /**
+     * Groups the indices of the [networkRequests] into the units sent together. Each request is a
+     * unit of its own, unless the page has more than [realtimeBatchThreshold] real-time event
+     * requests. Those are then folded into units within the limits of the [batchPolicy], each placed
+     * at the position of its first member.
+     */
+    private fun fold(networkRequests: List<BlueshiftNetworkRequest>): List<List<Int>> {
+        val isFoldable = networkRequests.map { isRealtimeEvent(it) }
+        if (realtimeBatchThreshold <= 0 || isFoldable.count { it } <= realtimeBatchThreshold) {
+            return networkRequests.indices.map { listOf(it) }
+        }
+
+        val policy = batchPolicy
+        val units = mutableListOf<List<Int>>()
+        var batch = mutableListOf<Int>()
+        var batchBytes = 0L
+        for (index in networkRequests.indices) {
+            if (!isFoldable[index]) {
+                units.add(listOf(index))
+                continue
+            }
+
+            val size = networkRequests[index].bodyBytes?.size ?: 0
+            val isFull = batch.size >= policy.maxCount || batchBytes + size > policy.maxBytes
+            if (batch.isNotEmpty() && isFull) {
+                batch = mutableListOf()
+                batchBytes = 0
+            }
+
+            // the batch takes its place in the order when its first member is added.
+            if (batch.isEmpty()) units.add(batch)
+            batch.add(index)
+            batchBytes += size
+        }
+
+        return units
+    }
+
+    /**
+     * Sends the real-time event requests as one bulk event request. If the server rejects the bulk
+     * request for its content (4xx validation errors), the requests are sent one by one, so that
+     * one bad event does not keep the others from being sent. Any other failure (ex: 5xx, timeout
+     * or a paused endpoint) counts as one failure for all the members, as sending them one by one
+     * would only hit the failing endpoint once per member.
+     */
+    private suspend fun sendFolded(
+        members: List<BlueshiftNetworkRequest>, basicAuth: String
+    ): List<Outcome> {
+        // the same members make the same key, so that a folded request sent again is recognized.
+        val memberKeys = members.joinToString(",") { it.idempotencyKey ?: "${it.id}" }
+        val bulkRequest = BlueshiftNetworkRequest(
+            url = BlueshiftAPI.bulkEventsURL(),
+            headerBytes = BlueshiftRequestHeaders.JSON_CONTENT_TYPE,
+            authorizationRequired = true,
+            method = BlueshiftNetworkRequest.Method.POST,
+            timestamp = System.currentTimeMillis(),
+            bodyBytes = BlueshiftBulkEventPayload.buildFromPayloads(members.map { it.bodyBytes!! }),
+            idempotencyKey = UUID.nameUUIDFromBytes(memberKeys.toByteArray()).toString(),
+        )
+
+        BlueshiftLogger.d("$TAG: Folding ${members.size} real-time event(s) into 1 bulk event.")
+
+        when (val bulkOutcome = send(bulkRequest, basicAuth, isFolded = true)) {
+            Outcome.SENT, Outcome.ACKNOWLEDGED -> {
+                members.forEach { member -> member.idempotencyKey?.let { acknowledgedKeys.add(it) } }
+                return members.map { Outcome.SENT }
+            }
+
+            Outcome.DEFERRED -> {
+                members.forEach { it.retryAttemptTimestamp = bulkRequest.retryAttemptTimestamp }
+                return members.map { Outcome.DEFERRED }
+            }
+
+            Outcome.FAILED -> {
+                BlueshiftLogger.d("$TAG: Bulk event failed. Retrying the ${members.size} real-time event(s) later.")
+                return members.map { retryLater(it) }
+            }
+
+            Outcome.REJECTED -> {
+                BlueshiftLogger.d("$TAG: Bulk event rejected. Sending the ${members.size} real-time event(s) one by one.")
+                val outcomes = mutableListOf<Outcome>()
+                for (member in members) {
+                    val outcome = send(member, basicAuth)
+                    outcomes.add(outcome)
+                    if (outcome == Outcome.OFFLINE) break
+                }
+                // the members after an offline one are not sent and stay in the queue as they are.
+                while (outcomes.size < members.size) outcomes.add(Outcome.HELD)
+                return outcomes
+            }
+
+            // OFFLINE or HELD, the members stay in the queue as they are.
+            else -> return members.map { bulkOutcome }
+        }
+    }
+
+    /**
+     * @param isFolded true for a bulk request made by [sendFolded]. Its failures are returned as
+     * [Outcome.REJECTED] or [Outcome.FAILED], as the retries are kept by its members.
+     */
+    private suspend fun send(
+        networkRequest: BlueshiftNetworkRequest, basicAuth: String, isFolded: Boolean = false
+    ): Outcome {
+        BlueshiftLogger.d("$TAG: Dequeue -> (Request ID: ${networkRequest.id})")
+
+        val idempotencyKey = networkRequest.idempotencyKey
+        if (networkRequest.isAcknowledged || (idempotencyKey != null && idempotencyKey in acknowledgedKeys)) {
+            BlueshiftLogger.d("$TAG: Already acknowledged. Remove -> (Request ID: ${networkRequest.id})")
+            return Outcome.ACKNOWLEDGED
+        }
+
+        // a cancelled sync does not start new requests. A request already started is awaited even
+        // when the sync gets cancelled, so that its outcome is recorded and a completed request is
+        // not sent again. The transport timeouts bound that wait.
+        if (!currentCoroutineContext().isActive) return Outcome.HELD
+
+        val endpoint = BlueshiftCircuitBreaker.endpointOf(networkRequest)
+        if (!circuitBreaker.allowRequest(endpoint)) {
+            val reopensAt = circuitBreaker.reopensAt(endpoint)
+            if (reopensAt == 0L) return Outcome.HELD
+
+            // wait for the breaker to close without using up a retry attempt.
+            networkRequest.retryAttemptTimestamp = reopensAt
+            BlueshiftLogger.d("$TAG: Endpoint paused. Retry later -> (Request ID: ${networkRequest.id})")
+            return Outcome.DEFERRED
+        }
+
+        if (networkRequest.authorizationRequired) {
+            networkRequest.authorization = basicAuth
+        }
+
+        val response = withContext(NonCancellable) {
+            networkRepository.makeNetworkRequest(networkRequest = networkRequest)
+        }
+
+        // reset authorization to avoid storing it in db
+        networkRequest.authorization = null
+
+        when (response.responseCode) {
+            in HTTP_SERVER_ERRORS -> circuitBreaker.recordFailure(endpoint)
+            0, -1 -> circuitBreaker.recordNoResponse(endpoint)
+            else -> circuitBreaker.recordSuccess(endpoint)
+        }
+
+        return if (response.responseCode == HTTP_OK) {
+            idempotencyKey?.let { acknowledgedKeys.add(it) }
+            BlueshiftLogger.d("$TAG: Remove -> (Request ID: ${networkRequest.id})")
+            Outcome.SENT
+        } else if (response.responseCode == 0) {
+            Outcome.OFFLINE
+        } else if (isFolded) {
+            if (response.responseCode in HTTP_VALIDATION_ERRORS) Outcome.REJECTED else Outcome.FAILED
+        } else {
+            retryLater(networkRequest)
+        }
+    }
+
+    /**
+     * Uses up one retry attempt of the [networkRequest] after a failure.
+     *
+     * @return [Outcome.RETRY] with the time of the next attempt set, or [Outcome.DROPPED] when no
+     * attempts are left
+     */
+    private fun retryLater(networkRequest: BlueshiftNetworkRequest): Outcome {
+        networkRequest.retryAttemptBalance--
+
+        return if (networkRequest.retryAttemptBalance > 0) {
+            val attempt = BlueshiftNetworkRequest.DEFAULT_RETRY_ATTEMPT_BALANCE -
+                    networkRequest.retryAttemptBalance
+            val intervalMs = retryBackoff.nextDelayMillis(
+                attempt,
+                BlueshiftNetworkConfiguration.requestRetryIntervalInMilliseconds,
+                BlueshiftNetworkConfiguration.requestRetryMaxIntervalInMilliseconds
+            )
+
+            networkRequest.retryAttemptTimestamp =
+                System.currentTimeMillis() + intervalMs
+
+            BlueshiftLogger.d("$TAG: Retry later -> (Request ID: ${networkRequest.id})")
+            Outcome.RETRY
+        } else {
+            BlueshiftLogger.d("$TAG: Retry limit exceeded! Remove -> (Request ID: ${networkRequest.id})")
+            Outcome.DROPPED
         }
     }
 }
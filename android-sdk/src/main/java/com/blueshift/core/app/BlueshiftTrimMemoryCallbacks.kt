@@ -0,0 +1,35 @@
+package com.blueshift.core.app
+
+import android.content.ComponentCallbacks2
+import android.content.Context
+import android.content.res.Configuration
+import com.blueshift.core.BlueshiftEventManager
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Writes out the events held in memory by the event manager (ex: the events waiting for their
+ * coalescing window) when the app goes to the background or the system runs low on memory, as
+ * the process may be killed soon after either of them.
+ */
+object BlueshiftTrimMemoryCallbacks : ComponentCallbacks2 {
+    private val isRegistered = AtomicBoolean(false)
+
+    fun register(context: Context) {
+        if (isRegistered.compareAndSet(false, true)) {
+            context.applicationContext.registerComponentCallbacks(this)
+        }
+    }
+
+    // TRIM_MEMORY_UI_HIDDEN is the app going to the background, the other levels are memory
+    // pressure. Either way, the events should not stay in memory.
+    override fun onTrimMemory(level: Int) {
+        BlueshiftEventManager.flushPendingEvents()
+    }
+
+    override fun onLowMemory() {
+        BlueshiftEventManager.flushPendingEvents()
+    }
+
+    override fun onConfigurationChanged(newConfig: Configuration) {
+    }
+}
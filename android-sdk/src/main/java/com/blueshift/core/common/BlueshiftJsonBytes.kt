@@ -0,0 +1,42 @@
+package com.blueshift.core.common
+
+/**
+ * Helpers for working with serialized (UTF-8) JSON without parsing it.
+ */
+object BlueshiftJsonBytes {
+    private const val OPEN_BRACE = '{'.code.toByte()
+    private const val CLOSE_BRACE = '}'.code.toByte()
+    private const val COMMA = ','.code.toByte()
+
+    /**
+     * Merges two serialized JSON objects into one. The objects are expected to not share any keys.
+     * When one of them is missing or empty, the other one is returned as it is.
+     */
+    fun merge(first: ByteArray, second: ByteArray?): ByteArray {
+        if (second == null || isEmptyObject(second)) return first
+        if (isEmptyObject(first)) return second
+
+        val firstEnd = first.lastIndexOf(CLOSE_BRACE)
+        val secondStart = second.indexOf(OPEN_BRACE) + 1
+        val secondLength = second.size - secondStart
+
+        val result = ByteArray(firstEnd + 1 + secondLength)
+        System.arraycopy(first, 0, result, 0, firstEnd)
+        result[firstEnd] = COMMA
+        System.arraycopy(second, secondStart, result, firstEnd + 1, secondLength)
+
+        return result
+    }
+
+    private fun isEmptyObject(bytes: ByteArray): Boolean {
+        val start = bytes.indexOf(OPEN_BRACE)
+        val end = bytes.lastIndexOf(CLOSE_BRACE)
+        if (start < 0 || end <= start) return true
+
+        for (i in start + 1 until end) {
+            if (!Character.isWhitespace(bytes[i].toInt())) return false
+        }
+
+        return true
+    }
+}
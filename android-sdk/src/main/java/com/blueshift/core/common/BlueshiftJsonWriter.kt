@@ -0,0 +1,227 @@
+package com.blueshift.core.common
+
+import org.json.JSONArray
+import org.json.JSONObject
+
+/**
+ * Writes the members of a JSON object straight into a growable UTF-8 byte buffer, without boxing
+ * the values or building an intermediate [JSONObject]. The values are written the same way
+ * [JSONObject.toString] writes them, so both produce the same bytes.
+ *
+ * The writers are pooled, see [obtain] and [recycle].
+ */
+class BlueshiftJsonWriter private constructor() {
+    private var buffer = ByteArray(INITIAL_CAPACITY)
+    private var hasMembers = false
+
+    var size = 0
+        private set
+
+    fun reset() {
+        size = 0
+        hasMembers = false
+    }
+
+    fun beginObject(): BlueshiftJsonWriter {
+        writeByte('{')
+        hasMembers = false
+        return this
+    }
+
+    fun endObject(): BlueshiftJsonWriter {
+        writeByte('}')
+        return this
+    }
+
+    fun name(name: String): BlueshiftJsonWriter {
+        if (hasMembers) writeByte(',')
+        hasMembers = true
+        writeQuoted(name)
+        writeByte(':')
+        return this
+    }
+
+    fun value(value: String?): BlueshiftJsonWriter {
+        if (value == null) writeAscii("null") else writeQuoted(value)
+        return this
+    }
+
+    fun value(value: Long): BlueshiftJsonWriter {
+        if (value == Long.MIN_VALUE) {
+            writeAscii(value.toString())
+            return this
+        }
+
+        var number = value
+        if (number < 0) {
+            writeByte('-')
+            number = -number
+        }
+
+        // write the digits in reverse order and flip them, to avoid creating a string.
+        val start = size
+        do {
+            writeByte('0' + (number % 10).toInt())
+            number /= 10
+        } while (number > 0)
+        buffer.reverse(start, size)
+
+        return this
+    }
+
+    fun value(value: Double): BlueshiftJsonWriter {
+        // JSON has no representation for NaN and infinity
+        if (value.isNaN() || value.isInfinite()) {
+            writeAscii("null")
+        } else {
+            writeAscii(JSONObject.numberToString(value))
+        }
+        return this
+    }
+
+    fun value(value: Boolean): BlueshiftJsonWriter {
+        writeAscii(if (value) "true" else "false")
+        return this
+    }
+
+    /**
+     * Writes any value the way [JSONObject] serializes it when it is put as it is.
+     */
+    fun value(value: Any?): BlueshiftJsonWriter {
+        when (value) {
+            null, JSONObject.NULL -> writeAscii("null")
+            is String -> writeQuoted(value)
+            is Boolean -> value(value)
+            is Long -> value(value)
+            is Int -> value(value.toLong())
+            is Short -> value(value.toLong())
+            is Byte -> value(value.toLong())
+            is Double -> value(value)
+            is Float -> {
+                if (value.isNaN() || value.isInfinite()) writeAscii("null")
+                else writeAscii(JSONObject.numberToString(value))
+            }
+            is Number -> writeAscii(JSONObject.numberToString(value))
+            is JSONObject, is JSONArray -> writeString(value.toString())
+            else -> writeQuoted(value.toString())
+        }
+        return this
+    }
+
+    /**
+     * Appends the members of another object, already serialized without the braces.
+     */
+    fun rawMembers(bytes: ByteArray): BlueshiftJsonWriter {
+        if (bytes.isEmpty()) return this
+
+        if (hasMembers) writeByte(',')
+        hasMembers = true
+        ensureCapacity(bytes.size)
+        System.arraycopy(bytes, 0, buffer, size, bytes.size)
+        size += bytes.size
+        return this
+    }
+
+    fun toByteArray(): ByteArray {
+        return buffer.copyOf(size)
+    }
+
+    private fun writeQuoted(string: String) {
+        writeByte('"')
+        writeUtf8(string, escape = true)
+        writeByte('"')
+    }
+
+    private fun writeString(string: String) {
+        writeUtf8(string, escape = false)
+    }
+
+    // UTF-8 encoding, with the lone surrogates replaced by '?' the way String.toByteArray() does.
+    private fun writeUtf8(string: String, escape: Boolean) {
+        var i = 0
+        while (i < string.length) {
+            val c = string[i]
+            when {
+                escape && (c == '"' || c == '\\' || c == '/') -> {
+                    writeByte('\\')
+                    writeByte(c)
+                }
+                escape && c.code <= 0x1F -> writeControlChar(c)
+                c.code < 0x80 -> writeRaw(c.code)
+                c.code < 0x800 -> {
+                    writeRaw(0xC0 or (c.code shr 6))
+                    writeRaw(0x80 or (c.code and 0x3F))
+                }
+                c.isHighSurrogate() && i + 1 < string.length && string[i + 1].isLowSurrogate() -> {
+                    val codePoint = Character.toCodePoint(c, string[++i])
+                    writeRaw(0xF0 or (codePoint shr 18))
+                    writeRaw(0x80 or ((codePoint shr 12) and 0x3F))
+                    writeRaw(0x80 or ((codePoint shr 6) and 0x3F))
+                    writeRaw(0x80 or (codePoint and 0x3F))
+                }
+                c.isSurrogate() -> writeByte('?')
+                else -> {
+                    writeRaw(0xE0 or (c.code shr 12))
+                    writeRaw(0x80 or ((c.code shr 6) and 0x3F))
+                    writeRaw(0x80 or (c.code and 0x3F))
+                }
+            }
+            i++
+        }
+    }
+
+    private fun writeControlChar(c: Char) {
+        when (c) {
+            '\b' -> writeAscii("\\b")
+            '\t' -> writeAscii("\\t")
+            '\n' -> writeAscii("\\n")
+            '\u000C' -> writeAscii("\\f")
+            '\r' -> writeAscii("\\r")
+            else -> writeAscii(String.format("\\u%04x", c.code))
+        }
+    }
+
+    private fun writeAscii(string: String) {
+        ensureCapacity(string.length)
+        for (c in string) buffer[size++] = c.code.toByte()
+    }
+
+    private fun writeByte(c: Char) {
+        writeRaw(c.code)
+    }
+
+    private fun writeRaw(byte: Int) {
+        ensureCapacity(1)
+        buffer[size++] = byte.toByte()
+    }
+
+    private fun ensureCapacity(extra: Int) {
+        if (size + extra > buffer.size) {
+            buffer = buffer.copyOf(maxOf(buffer.size * 2, size + extra))
+        }
+    }
+
+    companion object {
+        private const val INITIAL_CAPACITY = 256
+        private const val MAX_POOLED_CAPACITY = 64 * 1024
+        private const val MAX_POOL_SIZE = 4
+        private val pool = ArrayDeque<BlueshiftJsonWriter>(MAX_POOL_SIZE)
+
+        fun obtain(): BlueshiftJsonWriter {
+            return synchronized(pool) { pool.removeLastOrNull() } ?: BlueshiftJsonWriter()
+        }
+
+        /**
+         * Returns the writer to the pool. The writer should not be used after this call.
+         */
+        fun recycle(writer: BlueshiftJsonWriter) {
+            // do not hold on to the buffers grown by unusually large events.
+            if (writer.buffer.size > MAX_POOLED_CAPACITY) return
+
+            writer.reset()
+            synchronized(pool) {
+                if (pool.size < MAX_POOL_SIZE) pool.addLast(writer)
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.blueshift.core.common
+
+/**
+ * A thread safe set that keeps only the [capacity] most recently added values.
+ */
+class BlueshiftLruSet<T>(private val capacity: Int) {
+    private val map = object : LinkedHashMap<T, Boolean>(capacity, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<T, Boolean>?): Boolean {
+            return size > capacity
+        }
+    }
+
+    fun add(value: T) {
+        synchronized(map) { map[value] = true }
+    }
+
+    operator fun contains(value: T): Boolean {
+        return synchronized(map) { map.containsKey(value) }
+    }
+
+    fun clear() {
+        synchronized(map) { map.clear() }
+    }
+}
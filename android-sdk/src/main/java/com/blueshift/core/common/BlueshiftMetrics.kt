@@ -0,0 +1,45 @@
+package com.blueshift.core.common
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * In-memory counters that make the internal behaviour of the SDK (ex: data loss due to eviction)
+ * visible. The counters start from 0 on every app launch.
+ */
+object BlueshiftMetrics {
+    const val EVICTED_EVENTS = "evicted_events"
+    const val EVICTED_REQUESTS = "evicted_requests"
+    const val DROPPED_EVENTS = "dropped_events"
+    const val DROPPED_BLOCKS = "dropped_blocks"
+    const val DROPPED_BUFFERED_EVENTS = "dropped_buffered_events"
+    const val CORRUPTED_EVENTS = "corrupted_events"
+    const val CIRCUIT_BREAKER_OPENED = "circuit_breaker_opened"
+    const val CIRCUIT_BREAKER_STATE = "circuit_breaker_state"
+
+    private val counters = ConcurrentHashMap<String, AtomicLong>()
+
+    fun increment(name: String, delta: Long = 1): Long {
+        return counter(name).addAndGet(delta)
+    }
+
+    fun set(name: String, value: Long) {
+        counter(name).set(value)
+    }
+
+    fun get(name: String): Long {
+        return counters[name]?.get() ?: 0
+    }
+
+    fun snapshot(): Map<String, Long> {
+        return counters.mapValues { it.value.get() }
+    }
+
+    fun reset() {
+        counters.clear()
+    }
+
+    private fun counter(name: String): AtomicLong {
+        return counters[name] ?: counters.putIfAbsent(name, AtomicLong()) ?: counters[name]!!
+    }
+}
@@ -0,0 +1,122 @@
+package com.blueshift.core.database
+
+import java.io.ByteArrayOutputStream
+import java.util.zip.DataFormatException
+import java.util.zip.Deflater
+import java.util.zip.Inflater
+
+/**
+ * Encodes the JSON blobs stored in the db. Every row stores the format it was written with, so the
+ * rows written with an older format stay readable after the format in use is changed.
+ */
+object BlueshiftBlobCodec {
+    /**
+     * UTF-8 JSON bytes, as they are.
+     */
+    const val FORMAT_PLAIN = 0
+
+    /**
+     * Deflate (zlib) with the preset dictionary [DICTIONARY_V1].
+     */
+    const val FORMAT_DEFLATE_V1 = 1
+
+    private const val BUFFER_SIZE = 4096
+
+    /**
+     * The keys and values that repeat in every event. The most frequent ones are placed at the end
+     * as zlib finds the closer matches cheaper. DO NOT modify this literal, the rows written with
+     * [FORMAT_DEFLATE_V1] need the exact same dictionary to be read. It is kept as a literal, and
+     * not built from the key constants, so that renaming a key does not change it. Add a new
+     * format with a new dictionary instead.
+     */
+    private val DICTIONARY_V1 = (
+            "\"previous_app_version\":\"app_updated_at\":\"app_installed_at\":\"firstname\":" +
+                    "\"lastname\":\"gender\":\"joined_at\":\"facebook_id\":\"education\":" +
+                    "\"date_of_birth\":\"unsubscribed_push\":\"screen_viewed\":\"sku\":" +
+                    "\"category_id\":\"quantity\":\"latitude\":\"longitude\":\"email\":" +
+                    "\"customer_id\":\"advertising_id\":\"limit_ad_tracking\":\"country_code\":" +
+                    "\"language_code\":\"network_carrier\":\"enable_inapp\":\"enable_push\":" +
+                    "\"device_token\":\"firebase_instance_id\":\"device_manufacturer\":" +
+                    "\"os_name\":\"app_name\":\"app_version\":\"bsft_sdk_version\":" +
+                    "\"device_type\":\"device_id\":\"timestamp\":\"event\":" +
+                    "\"android\",\"Android true,false,"
+            ).toByteArray(Charsets.UTF_8)
+
+    fun encode(bytes: ByteArray, format: Int): ByteArray {
+        return when (format) {
+            FORMAT_DEFLATE_V1 -> deflate(bytes, DICTIONARY_V1)
+            else -> bytes
+        }
+    }
+
+    /**
+     * Same as [encode], but keeps the bytes as they are when the encoding does not make them smaller.
+     *
+     * @return the format that was actually used, and the encoded bytes
+     */
+    fun encodeCompact(bytes: ByteArray, format: Int): Pair<Int, ByteArray> {
+        if (format == FORMAT_PLAIN) return Pair(FORMAT_PLAIN, bytes)
+
+        val encoded = encode(bytes, format)
+        return if (encoded.size < bytes.size) Pair(format, encoded) else Pair(FORMAT_PLAIN, bytes)
+    }
+
+    /**
+     * @throws DataFormatException when the blob is corrupted, or was written with another dictionary
+     */
+    fun decode(bytes: ByteArray, format: Int): ByteArray {
+        return when (format) {
+            FORMAT_DEFLATE_V1 -> inflate(bytes, DICTIONARY_V1)
+            else -> bytes
+        }
+    }
+
+    private fun deflate(bytes: ByteArray, dictionary: ByteArray): ByteArray {
+        val deflater = Deflater(Deflater.BEST_SPEED)
+        try {
+            deflater.setDictionary(dictionary)
+            deflater.setInput(bytes)
+            deflater.finish()
+
+            val outputStream = ByteArrayOutputStream(bytes.size / 2 + 16)
+            val buffer = ByteArray(BUFFER_SIZE)
+            while (!deflater.finished()) {
+                val count = deflater.deflate(buffer)
+                outputStream.write(buffer, 0, count)
+            }
+
+            return outputStream.toByteArray()
+        } finally {
+            deflater.end()
+        }
+    }
+
+    private fun inflate(bytes: ByteArray, dictionary: ByteArray): ByteArray {
+        val inflater = Inflater()
+        try {
+            inflater.setInput(bytes)
+
+            val outputStream = ByteArrayOutputStream(bytes.size * 4)
+            val buffer = ByteArray(BUFFER_SIZE)
+            while (!inflater.finished()) {
+                val count = inflater.inflate(buffer)
+                if (count > 0) {
+                    outputStream.write(buffer, 0, count)
+                } else if (inflater.needsDictionary()) {
+                    try {
+                        inflater.setDictionary(dictionary)
+                    } catch (e: IllegalArgumentException) {
+                        // the checksum of the dictionary does not match the one in the blob
+                        throw DataFormatException("Unknown dictionary: ${e.message}")
+                    }
+                } else if (inflater.needsInput()) {
+                    throw DataFormatException("Unexpected end of the compressed blob")
+                }
+            }
+
+            return outputStream.toByteArray()
+        } finally {
+            inflater.end()
+        }
+    }
+}
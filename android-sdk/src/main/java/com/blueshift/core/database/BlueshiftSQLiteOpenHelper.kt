@@ -3,6 +3,7 @@ package com.blueshift.core.database
 import android.content.ContentValues
 import android.content.Context
 import android.database.Cursor
+import android.database.sqlite.SQLiteDatabase
 import android.database.sqlite.SQLiteDatabase.CursorFactory
 import android.database.sqlite.SQLiteOpenHelper
 import android.text.TextUtils
@@ -10,9 +11,122 @@ import com.blueshift.core.common.BlueshiftLogger
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.withContext
 
+/**
+ * When a [sharedStore] is given, the table lives in that store instead of the database [name].
+ */
 abstract class BlueshiftSQLiteOpenHelper<T : BlueshiftSQLiteModel?>(
-    context: Context?, name: String?, factory: CursorFactory?, version: Int
-) : SQLiteOpenHelper(context, name, factory, version) {
+    context: Context?,
+    name: String?,
+    factory: CursorFactory?,
+    private val schemaVersion: Int,
+    private val sharedStore: BlueshiftSharedStore? = null,
+) : SQLiteOpenHelper(context, name, factory, schemaVersion) {
+    override fun getWritableDatabase(): SQLiteDatabase {
+        return sharedStore?.prepare(this, tableName, schemaVersion) ?: super.getWritableDatabase()
+    }
+
+    override fun getReadableDatabase(): SQLiteDatabase {
+        return sharedStore?.prepare(this, tableName, schemaVersion) ?: super.getReadableDatabase()
+    }
+
+    /**
+     * The tables of this helper moved by [adoptRowsFromOtherStore], the referenced tables first.
+     */
+    protected open val queuedTables: List<String>
+        get() = listOf(tableName)
+
+    /**
+     * Moves the rows left in the other store into the one in use: from the database [name] into the
+     * shared store in single-store mode, or back into [name] once that mode is turned off. Without
+     * this, the rows queued before toggling the mode would never be sent.
+     *
+     * The rows are copied before they are deleted from the other store, hence a crash in between
+     * may copy them twice, but never loses them.
+     */
+    fun adoptRowsFromOtherStore(context: Context) {
+        synchronized(this) {
+            if (sharedStore != null) {
+                val name = databaseName ?: return
+                if (!context.getDatabasePath(name).exists()) return
+
+                // opened through its own helper, so that an old file is upgraded before the copy.
+                val ownStore = OwnStoreHelper(context, name)
+                try {
+                    moveRows(from = ownStore.writableDatabase, to = writableDatabase)
+                } finally {
+                    ownStore.close()
+                }
+
+                context.deleteDatabase(name)
+            } else {
+                if (!BlueshiftSharedStore.exists(context)) return
+
+                val store = BlueshiftSharedStore.getInstance(context)
+                moveRows(from = store.prepare(this, tableName, schemaVersion), to = writableDatabase)
+                store.deleteIfEmpty(context)
+            }
+        }
+    }
+
+    private fun moveRows(from: SQLiteDatabase, to: SQLiteDatabase) {
+        var count = 0
+        to.beginTransaction()
+        try {
+            for (table in queuedTables) {
+                // the ids are given again by the new table, in the order of the old ones.
+                val cursor = from.query(table, null, null, null, null, null, "rowid")
+                while (cursor.moveToNext()) {
+                    val contentValues = ContentValues()
+                    for (index in 0 until cursor.columnCount) {
+                        val column = cursor.getColumnName(index)
+                        if (column == ID) continue
+
+                        when (cursor.getType(index)) {
+                            Cursor.FIELD_TYPE_INTEGER -> contentValues.put(column, cursor.getLong(index))
+                            Cursor.FIELD_TYPE_FLOAT -> contentValues.put(column, cursor.getDouble(index))
+                            Cursor.FIELD_TYPE_STRING -> contentValues.put(column, cursor.getString(index))
+                            Cursor.FIELD_TYPE_BLOB -> contentValues.put(column, cursor.getBlob(index))
+                            else -> contentValues.putNull(column)
+                        }
+                    }
+
+                    val id = to.insertWithOnConflict(table, null, contentValues, SQLiteDatabase.CONFLICT_IGNORE)
+                    if (id != ID_DEFAULT) count++
+                }
+                cursor.close()
+            }
+
+            to.setTransactionSuccessful()
+        } finally {
+            to.endTransaction()
+        }
+
+        from.beginTransaction()
+        try {
+            queuedTables.forEach { from.delete(it, null, null) }
+            from.setTransactionSuccessful()
+        } finally {
+            from.endTransaction()
+        }
+
+        if (count > 0) BlueshiftLogger.d("$TAG: Moved $count record(s) of $tableName from the other store")
+    }
+
+    /**
+     * Opens the database [name] with the schema of this helper, while the helper itself uses the
+     * shared store.
+     */
+    private inner class OwnStoreHelper(context: Context, name: String) :
+        SQLiteOpenHelper(context, name, null, schemaVersion) {
+        override fun onCreate(db: SQLiteDatabase?) {
+            this@BlueshiftSQLiteOpenHelper.onCreate(db)
+        }
+
+        override fun onUpgrade(db: SQLiteDatabase?, oldVersion: Int, newVersion: Int) {
+            this@BlueshiftSQLiteOpenHelper.onUpgrade(db, oldVersion, newVersion)
+        }
+    }
+
     protected fun buildCreateTableQuery(): String? {
         var query: String? = null
         val tableName = tableName
@@ -38,6 +152,66 @@ abstract class BlueshiftSQLiteOpenHelper<T : BlueshiftSQLiteModel?>(
         return query
     }
 
+    /**
+     * Deletes the rows matching the [selection] in the given [orderBy] order until the table is
+     * back within the [quota]. Should be called while holding the lock on this helper, inside the
+     * transaction that inserted the rows, so that the table never stays above the quota.
+     *
+     * @return the number of deleted rows
+     */
+    protected fun evictRows(
+        db: SQLiteDatabase,
+        quota: BlueshiftStoreQuota,
+        sizeColumn: String,
+        orderBy: String,
+        selection: String? = null,
+    ): Int {
+        var rowCount = 0L
+        var byteCount = 0L
+        val countCursor = db.rawQuery("SELECT COUNT(*), TOTAL($sizeColumn) FROM $tableName", null)
+        if (countCursor.moveToFirst()) {
+            rowCount = countCursor.getLong(0)
+            byteCount = countCursor.getLong(1)
+        }
+        countCursor.close()
+
+        val excessRows = if (quota.maxRows > 0) rowCount - quota.maxRows else 0L
+        val excessBytes = if (quota.maxBytes > 0) byteCount - quota.maxBytes else 0L
+        if (excessRows <= 0 && excessBytes <= 0) return 0
+
+        val ids = mutableListOf<String>()
+        var freedBytes = 0L
+        val cursor = db.query(
+            tableName, arrayOf(ID, sizeColumn), selection, null, null, null, orderBy
+        )
+        while ((ids.size < excessRows || freedBytes < excessBytes) && cursor.moveToNext()) {
+            ids.add("${cursor.getLong(0)}")
+            freedBytes += cursor.getLong(1)
+        }
+        cursor.close()
+
+        val count = deleteByIds(db, ids)
+
+        BlueshiftLogger.d("$TAG: Evicted $count record(s) from $tableName to stay within $quota")
+
+        return count
+    }
+
+    /**
+     * Deletes the rows with the given ids, in chunks that fit in the SQL variable limit.
+     *
+     * @return the number of deleted rows
+     */
+    protected fun deleteByIds(db: SQLiteDatabase, ids: List<String>): Int {
+        var count = 0
+        ids.chunked(MAX_SQL_VARIABLES).forEach { chunk ->
+            val placeholder = chunk.joinToString { "?" }
+            count += db.delete(tableName, "$ID IN ($placeholder)", chunk.toTypedArray())
+        }
+
+        return count
+    }
+
     protected fun getId(cursor: Cursor): Long {
         return getLong(cursor, ID)
     }
@@ -154,5 +328,6 @@ abstract class BlueshiftSQLiteOpenHelper<T : BlueshiftSQLiteModel?>(
         const val _AND = " AND"
         const val _OR_ = " OR "
         const val _OR = " OR"
+        private const val MAX_SQL_VARIABLES = 500
     }
 }
@@ -0,0 +1,125 @@
+package com.blueshift.core.database
+
+import android.content.ContentValues
+import android.content.Context
+import android.database.DatabaseUtils
+import android.database.sqlite.SQLiteDatabase
+import android.database.sqlite.SQLiteOpenHelper
+
+/**
+ * A single WAL database that hosts the tables of more than one [BlueshiftSQLiteOpenHelper], so that
+ * a change spanning those tables can be made in one transaction.
+ *
+ * The hosted tables keep their own schema versions (in [SCHEMA_TABLE]), hence each helper creates
+ * and upgrades its table with its usual onCreate and onUpgrade, the first time it uses the store.
+ */
+class BlueshiftSharedStore private constructor(
+    context: Context?
+) : SQLiteOpenHelper(context, DATABASE_NAME, null, DATABASE_VERSION) {
+    private val preparedTables = HashSet<String>()
+
+    init {
+        setWriteAheadLoggingEnabled(true)
+    }
+
+    override fun onCreate(db: SQLiteDatabase?) {
+        db?.execSQL("CREATE TABLE IF NOT EXISTS $SCHEMA_TABLE ($TABLE_NAME TEXT PRIMARY KEY, $VERSION INTEGER)")
+    }
+
+    override fun onUpgrade(db: SQLiteDatabase?, oldVersion: Int, newVersion: Int) {
+        // the hosted tables are upgraded by their helpers, see prepare()
+    }
+
+    /**
+     * Creates or upgrades the table of the [helper] to [version] if not done yet.
+     *
+     * @return the database hosting the table
+     */
+    fun prepare(helper: SQLiteOpenHelper, tableName: String, version: Int): SQLiteDatabase {
+        val db = writableDatabase
+
+        synchronized(preparedTables) {
+            if (preparedTables.contains(tableName)) return db
+
+            db.beginTransaction()
+            try {
+                var currentVersion = 0
+                val cursor = db.query(
+                    SCHEMA_TABLE, arrayOf(VERSION), "$TABLE_NAME = ?", arrayOf(tableName), null, null, null
+                )
+                if (cursor.moveToFirst()) currentVersion = cursor.getInt(0)
+                cursor.close()
+
+                if (currentVersion == 0) {
+                    helper.onCreate(db)
+                } else if (currentVersion < version) {
+                    helper.onUpgrade(db, currentVersion, version)
+                }
+
+                if (currentVersion != version) {
+                    val contentValues = ContentValues()
+                    contentValues.put(TABLE_NAME, tableName)
+                    contentValues.put(VERSION, version)
+                    db.insertWithOnConflict(SCHEMA_TABLE, null, contentValues, SQLiteDatabase.CONFLICT_REPLACE)
+                }
+
+                db.setTransactionSuccessful()
+            } finally {
+                db.endTransaction()
+            }
+
+            preparedTables.add(tableName)
+        }
+
+        return db
+    }
+
+    /**
+     * Deletes the store once none of its tables has a row left, for example after the rows were
+     * moved out when the single-store mode was turned off.
+     */
+    fun deleteIfEmpty(context: Context) {
+        synchronized(preparedTables) {
+            val db = writableDatabase
+            val tables = mutableListOf<String>()
+            val cursor = db.rawQuery(
+                "SELECT name FROM sqlite_master WHERE type = 'table' AND name NOT LIKE 'sqlite_%' " +
+                        "AND name NOT IN ('$SCHEMA_TABLE', 'android_metadata')",
+                null
+            )
+            while (cursor.moveToNext()) tables.add(cursor.getString(0))
+            cursor.close()
+
+            if (tables.all { DatabaseUtils.queryNumEntries(db, it) == 0L }) {
+                close()
+                preparedTables.clear()
+                context.deleteDatabase(DATABASE_NAME)
+            }
+        }
+    }
+
+    companion object {
+        private const val DATABASE_NAME = "com.blueshift.store.db"
+        private const val DATABASE_VERSION = 1
+        private const val SCHEMA_TABLE = "schema_versions"
+        private const val TABLE_NAME = "table_name"
+        private const val VERSION = "version"
+
+        @Volatile
+        private var instance: BlueshiftSharedStore? = null
+
+        /**
+         * One instance per process, as more than one helper on the same file is not safe.
+         */
+        fun exists(context: Context): Boolean {
+            return context.getDatabasePath(DATABASE_NAME).exists()
+        }
+
+        @JvmStatic
+        fun getInstance(context: Context): BlueshiftSharedStore {
+            return instance ?: synchronized(this) {
+                instance ?: BlueshiftSharedStore(context.applicationContext).also { instance = it }
+            }
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.blueshift.core.database
+
+/**
+ * Limits the number of rows and the total size of a table. A value of 0 means no limit. When the
+ * table goes above the limits, rows are removed as per the [evictionPolicy].
+ */
+data class BlueshiftStoreQuota(
+    val maxRows: Int = 0,
+    val maxBytes: Long = 0,
+    val evictionPolicy: EvictionPolicy = EvictionPolicy.DROP_OLDEST,
+) {
+    val isUnlimited: Boolean
+        get() = maxRows <= 0 && maxBytes <= 0
+
+    enum class EvictionPolicy {
+        /**
+         * Removes the oldest rows first.
+         */
+        DROP_OLDEST,
+
+        /**
+         * Removes the rows with the lowest priority first, oldest first within a priority.
+         */
+        DROP_LOWEST_PRIORITY,
+
+        /**
+         * Removes the older copies of the events with the same name first, keeping the latest
+         * one of each name. Falls back to [DROP_OLDEST] when that is not enough. Applies to the
+         * events only, the request queue uses [DROP_OLDEST] instead.
+         */
+        COLLAPSE_BY_EVENT_NAME,
+    }
+}
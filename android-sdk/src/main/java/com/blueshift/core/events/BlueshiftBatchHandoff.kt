@@ -0,0 +1,11 @@
+package com.blueshift.core.events
+
+import com.blueshift.core.network.BlueshiftNetworkRequest
+
+/**
+ * Moves a batch of events out of the events table and into the request queue, as one bulk
+ * event request.
+ */
+interface BlueshiftBatchHandoff {
+    suspend fun moveToRequestQueue(events: List<BlueshiftEvent>, request: BlueshiftNetworkRequest)
+}
@@ -0,0 +1,42 @@
+package com.blueshift.core.events
+
+/**
+ * Builds the body of a bulk event request by splicing the stored params (and the attributes) of
+ * the events directly into a `{"events":[...]}` buffer. The params are never parsed or serialized
+ * again.
+ */
+object BlueshiftBulkEventPayload {
+    private val PREFIX = "{\"events\":[".toByteArray(Charsets.UTF_8)
+    private val SUFFIX = "]}".toByteArray(Charsets.UTF_8)
+    private const val SEPARATOR = ','.code.toByte()
+
+    fun build(events: List<BlueshiftEvent>): ByteArray {
+        return buildFromPayloads(events.map { it.payloadBytes })
+    }
+
+    /**
+     * Same as [build], for the events that are already serialized, ex: the bodies of the real-time
+     * event requests.
+     */
+    fun buildFromPayloads(payloads: List<ByteArray>): ByteArray {
+        var size = PREFIX.size + SUFFIX.size + maxOf(payloads.size - 1, 0)
+        payloads.forEach { size += it.size }
+
+        val payload = ByteArray(size)
+        var offset = 0
+
+        System.arraycopy(PREFIX, 0, payload, offset, PREFIX.size)
+        offset += PREFIX.size
+
+        payloads.forEachIndexed { index, params ->
+            if (index > 0) payload[offset++] = SEPARATOR
+
+            System.arraycopy(params, 0, payload, offset, params.size)
+            offset += params.size
+        }
+
+        System.arraycopy(SUFFIX, 0, payload, offset, SUFFIX.size)
+
+        return payload
+    }
+}
@@ -1,11 +1,50 @@
 package com.blueshift.core.events
 
+import com.blueshift.core.common.BlueshiftJsonBytes
 import com.blueshift.core.database.BlueshiftSQLiteModel
 import org.json.JSONObject
 
-data class BlueshiftEvent(
+/**
+ * An event waiting to be sent as part of a bulk event request. The params can be provided either
+ * as a [JSONObject] (when tracking) or as the UTF-8 bytes stored in the db (when reading). The other
+ * representation is created only when it is accessed for the first time.
+ *
+ * The app and user attributes are kept apart from the event specific params in [attributesBytes],
+ * as they rarely change between events and are stored only once for all the events sharing them.
+ */
+class BlueshiftEvent(
     override val id: Long = -1,
     val eventName: String,
-    val eventParams: JSONObject,
+    eventParams: JSONObject? = null,
     val timestamp: Long,
-) : BlueshiftSQLiteModel()
+    eventParamsBytes: ByteArray? = null,
+    val attributesBytes: ByteArray? = null,
+    val uuid: String? = null, // available only until the event is stored, the payload carries it
+) : BlueshiftSQLiteModel() {
+    val eventParams: JSONObject by lazy {
+        eventParams ?: eventParamsBytes?.let { JSONObject(String(it, Charsets.UTF_8)) } ?: JSONObject()
+    }
+
+    val eventParamsBytes: ByteArray by lazy {
+        eventParamsBytes ?: (eventParams ?: JSONObject()).toString().toByteArray(Charsets.UTF_8)
+    }
+
+    /**
+     * The event params and the attributes together, as they are sent to the server.
+     */
+    val payloadBytes: ByteArray by lazy {
+        BlueshiftJsonBytes.merge(this.eventParamsBytes, attributesBytes)
+    }
+
+    override fun toString(): String {
+        return "BlueshiftEvent(id=$id, eventName=$eventName, timestamp=$timestamp, uuid=$uuid)"
+    }
+
+    companion object {
+        /**
+         * The key of the unique id added to the payload of every event, for the server to drop
+         * the copies of an event that was sent more than once.
+         */
+        const val KEY_EVENT_UUID = "bsft_event_uuid"
+    }
+}
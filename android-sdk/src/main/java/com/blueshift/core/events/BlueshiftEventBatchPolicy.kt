@@ -0,0 +1,15 @@
+package com.blueshift.core.events
+
+/**
+ * Decides how many events go into one bulk event request. A batch is closed when it has
+ * [maxCount] events or when adding the next event would take it above [maxBytes].
+ */
+data class BlueshiftEventBatchPolicy(
+    val maxCount: Int = DEFAULT_MAX_COUNT,
+    val maxBytes: Long = DEFAULT_MAX_BYTES,
+) {
+    companion object {
+        const val DEFAULT_MAX_COUNT = 100
+        const val DEFAULT_MAX_BYTES = 512 * 1024L // 512 KB
+    }
+}
@@ -0,0 +1,100 @@
+package com.blueshift.core.events
+
+import android.content.Context
+import com.blueshift.Blueshift
+import com.blueshift.core.common.BlueshiftJsonWriter
+import com.blueshift.core.common.BlueshiftLogger
+
+/**
+ * Typed builder for tracking custom events. The params are written straight into a pooled JSON
+ * byte buffer as they are put, without boxing them into a map first.
+ *
+ * ```
+ * BlueshiftEventBuilder.name("level_completed")
+ *     .putLong("level", 12)
+ *     .putString("mode", "hard")
+ *     .batch(true)
+ *     .track(context)
+ * ```
+ *
+ * Each key should be put once, a repeated key is ignored. A null value is left out, the way
+ * JSONObject.put(key, null) does. A builder can be tracked only once.
+ */
+class BlueshiftEventBuilder private constructor(val eventName: String) {
+    private var writer: BlueshiftJsonWriter? = BlueshiftJsonWriter.obtain()
+    private val keys = HashSet<String>()
+
+    var isBatchEvent = false
+        private set
+
+    fun putString(key: String, value: String?) = apply { if (value != null) nameOf(key)?.value(value) }
+
+    fun putLong(key: String, value: Long) = apply { nameOf(key)?.value(value) }
+
+    fun putInt(key: String, value: Int) = apply { nameOf(key)?.value(value.toLong()) }
+
+    fun putDouble(key: String, value: Double) = apply { nameOf(key)?.value(value) }
+
+    fun putBoolean(key: String, value: Boolean) = apply { nameOf(key)?.value(value) }
+
+    /**
+     * Puts a value of any other type (ex: [org.json.JSONObject] or [org.json.JSONArray]) the way
+     * [org.json.JSONObject] writes it.
+     */
+    fun put(key: String, value: Any?) = apply { if (value != null) nameOf(key)?.value(value) }
+
+    fun putAll(params: Map<String, Any?>?) = apply {
+        params?.forEach { (key, value) -> put(key, value) }
+    }
+
+    /**
+     * @param isBatchEvent true to send the event as part of a bulk event request later, false to
+     * send it right away
+     */
+    fun batch(isBatchEvent: Boolean) = apply { this.isBatchEvent = isBatchEvent }
+
+    /**
+     * Tracks the event through [Blueshift.trackEvent].
+     */
+    fun track(context: Context) {
+        Blueshift.getInstance(context).trackEvent(this)
+    }
+
+    /**
+     * @return the params written so far. Releases the buffer, so the builder can not be used after.
+     */
+    fun build(): BlueshiftEventParams {
+        val writer = writer ?: run {
+            BlueshiftLogger.e("$TAG: The event $eventName is already built.")
+            return BlueshiftEventParams.EMPTY
+        }
+
+        this.writer = null
+        val params = BlueshiftEventParams(writer.toByteArray(), keys)
+        BlueshiftJsonWriter.recycle(writer)
+        return params
+    }
+
+    private fun nameOf(key: String): BlueshiftJsonWriter? {
+        val writer = writer ?: run {
+            BlueshiftLogger.e("$TAG: The event $eventName is already built. Ignoring $key.")
+            return null
+        }
+
+        if (!keys.add(key)) {
+            BlueshiftLogger.d("$TAG: Ignoring the repeated key $key of event $eventName.")
+            return null
+        }
+
+        return writer.name(key)
+    }
+
+    companion object {
+        private const val TAG = "EventBuilder"
+
+        @JvmStatic
+        fun name(eventName: String): BlueshiftEventBuilder {
+            return BlueshiftEventBuilder(eventName)
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.blueshift.core.events
+
+import com.blueshift.core.common.BlueshiftLogger
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+
+/**
+ * Merges the identical events (same name, params and path) tracked within the window of the first
+ * one into a single [Group]. The group is handed out once the window ends, with the number of
+ * events merged into it and the time of the first and the last one.
+ *
+ * The batch events wait for [windowMillis]. The real-time events wait for [realtimeWindowMillis]
+ * (never longer than [windowMillis]), so that they are delayed by a short window only.
+ *
+ * The groups of a path go out in the order of their first event: when the window of a group ends,
+ * the older groups of its path go out with it. The events carrying their own
+ * [BlueshiftEvent.KEY_EVENT_UUID] are never held, as they can not be merged. Such an event hands
+ * out the waiting groups of its path first, as those were tracked before it. Call [flush] when the
+ * process may go away (ex: the app goes to the background), so that the waiting groups are not lost.
+ *
+ * Setting [windowMillis] to 0 turns the coalescing off.
+ */
+class BlueshiftEventCoalescer @JvmOverloads constructor(
+    private val windowMillis: Long = 0,
+    realtimeWindowMillis: Long = windowMillis,
+) {
+    private val realtimeWindowMillis = minOf(windowMillis, realtimeWindowMillis)
+
+    class Group(
+        val eventName: String,
+        val params: BlueshiftEventParams,
+        val isBatchEvent: Boolean,
+        val firstTimestamp: Long,
+    ) {
+        var count = 1
+            internal set
+        var lastTimestamp = firstTimestamp
+            internal set
+
+        internal var job: Job? = null
+        internal var onWindowEnd: ((Group) -> Unit)? = null
+    }
+
+    private data class Key(val eventName: String, val params: BlueshiftEventParams, val isBatchEvent: Boolean)
+
+    private val lock = Any()
+    private val pending = LinkedHashMap<Key, Group>() // in the order of their first event
+    private val coroutineScope = CoroutineScope(SupervisorJob() + Dispatchers.Default)
+
+    /**
+     * @param onWindowEnd called with the group once the coalescing window of the event ends
+     * @return false when the event is not held and should be processed right away, else true
+     */
+    fun offer(
+        eventName: String,
+        params: BlueshiftEventParams,
+        timestamp: Long,
+        isBatchEvent: Boolean,
+        onWindowEnd: (Group) -> Unit
+    ): Boolean {
+        val window = if (isBatchEvent) windowMillis else realtimeWindowMillis
+        if (window <= 0) return false
+
+        synchronized(lock) {
+            if (BlueshiftEvent.KEY_EVENT_UUID in params.keys) {
+                // the waiting groups of its path were tracked first, hence they go out first.
+                handOutPending(isBatchEvent, until = null)
+                return false
+            }
+
+            val key = Key(eventName, params, isBatchEvent)
+            val group = pending[key]
+            if (group != null) {
+                group.count++
+                group.lastTimestamp = timestamp
+                return true
+            }
+
+            val newGroup = Group(eventName, params, isBatchEvent, timestamp)
+            newGroup.onWindowEnd = onWindowEnd
+            newGroup.job = coroutineScope.launch {
+                delay(window)
+                synchronized(lock) {
+                    if (pending[key] === newGroup) handOutPending(isBatchEvent, until = newGroup)
+                }
+            }
+            pending[key] = newGroup
+        }
+
+        return true
+    }
+
+    /**
+     * Hands out the groups waiting for their window to end, right away.
+     */
+    fun flush() {
+        synchronized(lock) {
+            handOutPending(isBatchEvent = true, until = null)
+            handOutPending(isBatchEvent = false, until = null)
+        }
+    }
+
+    /**
+     * Drops the events waiting for their window to end.
+     */
+    fun discard() {
+        synchronized(lock) {
+            pending.values.forEach { it.job?.cancel() }
+            pending.clear()
+        }
+    }
+
+    // hands out the groups of the path in their order, up to and including [until] (all of them
+    // when null). Should be called only while holding the lock, so that a newer event can not go
+    // out first.
+    private fun handOutPending(isBatchEvent: Boolean, until: Group?) {
+        val groups = mutableListOf<Group>()
+        val iterator = pending.values.iterator()
+        while (iterator.hasNext()) {
+            val group = iterator.next()
+            if (group.isBatchEvent != isBatchEvent) continue
+
+            iterator.remove()
+            groups.add(group)
+            if (group === until) break
+        }
+
+        for (group in groups) {
+            group.job?.cancel()
+
+            try {
+                group.onWindowEnd?.invoke(group)
+            } catch (e: Exception) {
+                BlueshiftLogger.e("$TAG: ${e.stackTraceToString()}")
+            }
+        }
+    }
+
+    companion object {
+        private const val TAG = "EventCoalescer"
+        const val KEY_COUNT = "bsft_coalesced_count"
+        const val KEY_FIRST_TIMESTAMP = "bsft_first_timestamp"
+        const val KEY_LAST_TIMESTAMP = "bsft_last_timestamp"
+    }
+}
@@ -0,0 +1,66 @@
+package com.blueshift.core.events
+
+import com.blueshift.core.common.BlueshiftJsonWriter
+
+/**
+ * The params of a tracked event, serialized as the members of a JSON object (without the braces)
+ * along with their [keys]. Two params are equal when their bytes are.
+ */
+class BlueshiftEventParams(
+    val bytes: ByteArray,
+    val keys: Set<String>,
+) {
+    /**
+     * @return the members of both params. The keys of [other] should not be present in this one.
+     */
+    operator fun plus(other: BlueshiftEventParams): BlueshiftEventParams {
+        if (other.keys.isEmpty()) return this
+        if (keys.isEmpty()) return other
+
+        val writer = BlueshiftJsonWriter.obtain()
+        try {
+            writer.rawMembers(bytes).rawMembers(other.bytes)
+            return BlueshiftEventParams(writer.toByteArray(), keys + other.keys)
+        } finally {
+            BlueshiftJsonWriter.recycle(writer)
+        }
+    }
+
+    override fun equals(other: Any?): Boolean {
+        return other is BlueshiftEventParams && bytes.contentEquals(other.bytes)
+    }
+
+    override fun hashCode(): Int {
+        return bytes.contentHashCode()
+    }
+
+    companion object {
+        @JvmField
+        val EMPTY = BlueshiftEventParams(ByteArray(0), emptySet())
+
+        /**
+         * Serializes the legacy map params. The values are written the way a [org.json.JSONObject]
+         * writes them, hence the null values are left out, as JSONObject.put(key, null) does.
+         */
+        @JvmStatic
+        fun fromMap(map: Map<String, Any?>?): BlueshiftEventParams {
+            if (map.isNullOrEmpty()) return EMPTY
+
+            val writer = BlueshiftJsonWriter.obtain()
+            try {
+                val keys = HashSet<String>()
+                for ((key, value) in map) {
+                    if (value == null) continue
+
+                    writer.name(key).value(value)
+                    keys.add(key)
+                }
+                if (keys.isEmpty()) return EMPTY
+
+                return BlueshiftEventParams(writer.toByteArray(), keys)
+            } finally {
+                BlueshiftJsonWriter.recycle(writer)
+            }
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.blueshift.core.events
+
+/**
+ * Limits how many events of one name get tracked.
+ *
+ * @param eventsPerSecond the rate at which the token bucket refills. 0 means no rate limit.
+ * @param burst the number of events that can be tracked at once before the rate limit applies.
+ * @param sampleRate the fraction of the events to keep (0.0 to 1.0), applied before the rate limit.
+ */
+data class BlueshiftEventRateLimit(
+    val eventsPerSecond: Double = 0.0,
+    val burst: Int = 1,
+    val sampleRate: Double = 1.0,
+)
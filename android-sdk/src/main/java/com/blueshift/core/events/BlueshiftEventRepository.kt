@@ -2,7 +2,11 @@ package com.blueshift.core.events
 
 interface BlueshiftEventRepository {
     suspend fun insertEvent(event: BlueshiftEvent)
+    suspend fun insertEvents(events: List<BlueshiftEvent>)
     suspend fun deleteEvents(events: List<BlueshiftEvent>)
-    suspend fun readOneBatch(batchCount: Int = 100) : List<BlueshiftEvent>
+    suspend fun readOneBatch(
+        batchCount: Int = BlueshiftEventBatchPolicy.DEFAULT_MAX_COUNT,
+        batchSizeInBytes: Long = BlueshiftEventBatchPolicy.DEFAULT_MAX_BYTES,
+    ): List<BlueshiftEvent>
     suspend fun clear()
 }
\ No newline at end of file
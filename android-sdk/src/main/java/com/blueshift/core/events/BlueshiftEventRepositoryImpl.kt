@@ -4,59 +4,265 @@ import android.content.ContentValues
 import android.content.Context
 import android.database.Cursor
 import android.database.sqlite.SQLiteDatabase
+import com.blueshift.core.common.BlueshiftLogger
+import com.blueshift.core.common.BlueshiftMetrics
+import com.blueshift.core.database.BlueshiftBlobCodec
+import com.blueshift.core.database.BlueshiftSharedStore
 import com.blueshift.core.database.BlueshiftSQLiteOpenHelper
+import com.blueshift.core.database.BlueshiftStoreQuota
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.withContext
-import org.json.JSONObject
+import java.security.MessageDigest
+import java.util.zip.DataFormatException
 
-class BlueshiftEventRepositoryImpl(
-    context: Context?
+class BlueshiftEventRepositoryImpl @JvmOverloads constructor(
+    context: Context?,
+    sharedStore: BlueshiftSharedStore? = null,
 ) : BlueshiftSQLiteOpenHelper<BlueshiftEvent>(
-    context, "com.blueshift.events.db", null, 1
+    context, "com.blueshift.events.db", null, DATABASE_VERSION, sharedStore
 ), BlueshiftEventRepository {
+    /**
+     * Limits the size of the events table. Unlimited by default.
+     */
+    var quota = BlueshiftStoreQuota()
+
+    /**
+     * The format used for storing the params of new events. See [BlueshiftBlobCodec].
+     */
+    var storageFormat = BlueshiftBlobCodec.FORMAT_PLAIN
+
+    private val oldestFirst = "$TIMESTAMP ASC, $ID ASC"
+
+    // recently used attribute snapshots, to avoid reading or writing them for every event.
+    private val snapshotCache = HashMap<String, ByteArray>()
+
+    // the snapshots are moved first, as the events refer to them.
+    override val queuedTables: List<String>
+        get() = listOf(SNAPSHOT_TABLE, tableName)
+
     override fun onCreate(db: SQLiteDatabase?) {
         db?.execSQL(buildCreateTableQuery())
+        createSnapshotTable(db)
+    }
+
+    private fun createSnapshotTable(db: SQLiteDatabase?) {
+        db?.execSQL("CREATE TABLE IF NOT EXISTS $SNAPSHOT_TABLE ($SNAPSHOT_HASH TEXT PRIMARY KEY, $SNAPSHOT_PARAMS BLOB)")
+        db?.execSQL("CREATE INDEX IF NOT EXISTS ${tableName}_${SNAPSHOT_ID}_index ON $tableName ($SNAPSHOT_ID)")
     }
 
     override fun onUpgrade(db: SQLiteDatabase?, oldVersion: Int, newVersion: Int) {
+        if (oldVersion < 2) {
+            // v2: per-row size of the params, used for capping the bulk requests by size.
+            db?.execSQL("ALTER TABLE $tableName ADD COLUMN $SIZE ${FieldType.Integer}")
+            db?.execSQL("UPDATE $tableName SET $SIZE = length($PARAMS)")
+        }
+
+        if (oldVersion < 3) {
+            // v3: format of the params blob. The existing rows are plain json.
+            db?.execSQL("ALTER TABLE $tableName ADD COLUMN $FORMAT ${FieldType.Integer}")
+        }
+
+        if (oldVersion < 4) {
+            // v4: app and user attributes stored once per distinct set. The existing rows have
+            // the attributes inside their params, hence no snapshot.
+            db?.execSQL("ALTER TABLE $tableName ADD COLUMN $SNAPSHOT_ID ${FieldType.Text}")
+            createSnapshotTable(db)
+        }
     }
 
     override fun getContentValues(obj: BlueshiftEvent): ContentValues {
         val contentValues = ContentValues()
         if (obj.id != ID_DEFAULT) contentValues.put(ID, obj.id)
         contentValues.put(NAME, obj.eventName)
-        contentValues.put(PARAMS, obj.eventParams.toString().toByteArray(charset = Charsets.UTF_8))
+        val (format, params) = BlueshiftBlobCodec.encodeCompact(obj.eventParamsBytes, storageFormat)
+        contentValues.put(PARAMS, params)
+        contentValues.put(FORMAT, format)
+        contentValues.put(SIZE, obj.payloadBytes.size)
+        contentValues.put(SNAPSHOT_ID, obj.attributesBytes?.let { snapshotIdOf(it) })
         contentValues.put(TIMESTAMP, obj.timestamp)
         return contentValues
     }
 
+    /**
+     * @throws DataFormatException when the params of the event can not be decoded
+     */
     override fun getObject(cursor: Cursor): BlueshiftEvent {
         val id = cursor.getLong(cursor.getColumnIndexOrThrow(ID))
         val name = cursor.getString(cursor.getColumnIndexOrThrow(NAME)) ?: ""
-        var paramsJson = JSONObject()
-        val paramsByes = cursor.getBlob(cursor.getColumnIndexOrThrow(PARAMS))
-        paramsByes?.let {
-            val params = String(it, charset = Charsets.UTF_8)
-            paramsJson = JSONObject(params)
+        // the params are kept as bytes, they get parsed only if someone asks for the json.
+        val paramsBytes = cursor.getBlob(cursor.getColumnIndexOrThrow(PARAMS))?.let {
+            val format = cursor.getInt(cursor.getColumnIndexOrThrow(FORMAT))
+            BlueshiftBlobCodec.decode(it, format)
         }
         val timestamp = cursor.getLong(cursor.getColumnIndexOrThrow(TIMESTAMP))
+        val snapshotId = cursor.getString(cursor.getColumnIndexOrThrow(SNAPSHOT_ID))
 
-        return BlueshiftEvent(id, name, paramsJson, timestamp)
+        return BlueshiftEvent(
+            id = id,
+            eventName = name,
+            timestamp = timestamp,
+            eventParamsBytes = paramsBytes,
+            attributesBytes = snapshotId?.let { readSnapshot(it) },
+        )
     }
 
     override val tableName: String = "events_table"
     override val fields: Map<String, FieldType> = mapOf(
-        NAME to FieldType.Text, PARAMS to FieldType.Blob, TIMESTAMP to FieldType.Integer
+        NAME to FieldType.Text,
+        PARAMS to FieldType.Blob,
+        TIMESTAMP to FieldType.Integer,
+        SIZE to FieldType.Integer,
+        FORMAT to FieldType.Integer,
+        SNAPSHOT_ID to FieldType.Text,
     )
 
     companion object {
+        private const val TAG = "EventRepository"
+        private const val DATABASE_VERSION = 4
         private const val NAME = "name"
         private const val PARAMS = "params"
         private const val TIMESTAMP = "timestamp"
+        private const val SIZE = "size"
+        private const val FORMAT = "format"
+        private const val SNAPSHOT_ID = "snapshot_id"
+        private const val SNAPSHOT_TABLE = "attribute_snapshots"
+        private const val SNAPSHOT_HASH = "hash"
+        private const val SNAPSHOT_PARAMS = "params"
+        private const val SNAPSHOT_CACHE_SIZE = 16
     }
 
     override suspend fun insertEvent(event: BlueshiftEvent) {
-        insert(event)
+        insertEvents(listOf(event))
+    }
+
+    override suspend fun insertEvents(events: List<BlueshiftEvent>) {
+        if (events.isEmpty()) return
+
+        withContext(Dispatchers.IO) {
+            synchronized(this@BlueshiftEventRepositoryImpl) {
+                val db = writableDatabase
+                // one compiled statement is reused for all the rows inside a single transaction
+                val statement = db.compileStatement(
+                    "INSERT INTO $tableName ($NAME, $PARAMS, $TIMESTAMP, $SIZE, $FORMAT, $SNAPSHOT_ID) VALUES (?, ?, ?, ?, ?, ?)"
+                )
+                val snapshotStatement = db.compileStatement(
+                    "INSERT OR IGNORE INTO $SNAPSHOT_TABLE ($SNAPSHOT_HASH, $SNAPSHOT_PARAMS) VALUES (?, ?)"
+                )
+
+                db.beginTransaction()
+                try {
+                    for (event in events) {
+                        val paramsBytes = event.eventParamsBytes
+                        val (format, params) = BlueshiftBlobCodec.encodeCompact(paramsBytes, storageFormat)
+
+                        val attributesBytes = event.attributesBytes
+                        val snapshotId = attributesBytes?.let { snapshotIdOf(it) }
+                        if (snapshotId != null && !snapshotCache.containsKey(snapshotId)) {
+                            snapshotStatement.clearBindings()
+                            snapshotStatement.bindString(1, snapshotId)
+                            snapshotStatement.bindBlob(2, attributesBytes)
+                            snapshotStatement.executeInsert()
+                            cacheSnapshot(snapshotId, attributesBytes)
+                        }
+
+                        statement.clearBindings()
+                        statement.bindString(1, event.eventName)
+                        statement.bindBlob(2, params)
+                        statement.bindLong(3, event.timestamp)
+                        statement.bindLong(4, event.payloadBytes.size.toLong())
+                        statement.bindLong(5, format.toLong())
+                        if (snapshotId != null) statement.bindString(6, snapshotId)
+                        statement.executeInsert()
+                    }
+
+                    if (!quota.isUnlimited) evictEvents(db)
+
+                    db.setTransactionSuccessful()
+                } catch (e: Exception) {
+                    // the snapshots inserted by this transaction are rolled back with it.
+                    snapshotCache.clear()
+                    throw e
+                } finally {
+                    db.endTransaction()
+                    statement.close()
+                    snapshotStatement.close()
+                }
+            }
+        }
+    }
+
+    private fun evictEvents(db: SQLiteDatabase) {
+        var count = 0
+        if (quota.evictionPolicy == BlueshiftStoreQuota.EvictionPolicy.COLLAPSE_BY_EVENT_NAME) {
+            // remove the older copies first, keeping the latest event of each name.
+            val olderCopies = "$ID NOT IN (SELECT MAX($ID) FROM $tableName GROUP BY $NAME)"
+            count += evictRows(db, quota, SIZE, oldestFirst, olderCopies)
+        }
+
+        // batch events have no priorities, so the oldest events are the lowest priority ones.
+        count += evictRows(db, quota, SIZE, oldestFirst)
+
+        if (count > 0) {
+            deleteUnusedSnapshots(db)
+
+            val total = BlueshiftMetrics.increment(BlueshiftMetrics.EVICTED_EVENTS, count.toLong())
+            BlueshiftLogger.d("$TAG: Evicted $count event(s) due to quota. Total evicted = $total")
+        }
+    }
+
+    private fun snapshotIdOf(attributesBytes: ByteArray): String {
+        val digest = MessageDigest.getInstance("SHA-1").digest(attributesBytes)
+        return digest.joinToString(separator = "") { "%02x".format(it) }
+    }
+
+    private fun cacheSnapshot(snapshotId: String, attributesBytes: ByteArray) {
+        if (snapshotCache.size >= SNAPSHOT_CACHE_SIZE) snapshotCache.clear()
+        snapshotCache[snapshotId] = attributesBytes
+    }
+
+    // should be called while holding the lock on this repository
+    private fun readSnapshot(snapshotId: String): ByteArray? {
+        snapshotCache[snapshotId]?.let { return it }
+
+        var attributesBytes: ByteArray? = null
+        val cursor = readableDatabase.query(
+            SNAPSHOT_TABLE,
+            arrayOf(SNAPSHOT_PARAMS),
+            "$SNAPSHOT_HASH = ?",
+            arrayOf(snapshotId),
+            null,
+            null,
+            null
+        )
+
+        if (cursor.moveToFirst()) {
+            attributesBytes = cursor.getBlob(0)
+        }
+
+        cursor.close()
+
+        attributesBytes?.let { cacheSnapshot(snapshotId, it) }
+
+        return attributesBytes
+    }
+
+    // should be called while holding the lock on this repository
+    private fun deleteUnusedSnapshots(db: SQLiteDatabase) {
+        db.execSQL(
+            "DELETE FROM $SNAPSHOT_TABLE WHERE $SNAPSHOT_HASH NOT IN " +
+                    "(SELECT $SNAPSHOT_ID FROM $tableName WHERE $SNAPSHOT_ID IS NOT NULL)"
+        )
+        snapshotCache.clear()
+    }
+
+    /**
+     * Same as [deleteEvents], for the callers already holding a transaction on [db].
+     */
+    internal fun deleteEvents(db: SQLiteDatabase, events: List<BlueshiftEvent>) {
+        synchronized(this) {
+            deleteByIds(db, events.map { "${it.id}" })
+            deleteUnusedSnapshots(db)
+        }
     }
 
     override suspend fun deleteEvents(events: List<BlueshiftEvent>) {
@@ -74,21 +280,64 @@ class BlueshiftEventRepositoryImpl(
         placeholder.delete(placeholder.length - 2, placeholder.length)
 
         deleteAll(whereClause = "$ID IN ($placeholder)", selectionArgs = ids.toTypedArray())
+
+        withContext(Dispatchers.IO) {
+            synchronized(this@BlueshiftEventRepositoryImpl) {
+                deleteUnusedSnapshots(writableDatabase)
+            }
+        }
     }
 
-    override suspend fun readOneBatch(batchCount: Int): List<BlueshiftEvent> {
+    override suspend fun readOneBatch(batchCount: Int, batchSizeInBytes: Long): List<BlueshiftEvent> {
         return withContext(Dispatchers.IO) {
-            synchronized(this) {
-                val events = mutableListOf<BlueshiftEvent>()
-                val cursor = readableDatabase.query(
-                    tableName, null, null, null, null, null, "$TIMESTAMP ASC", "$batchCount"
+            synchronized(this@BlueshiftEventRepositoryImpl) {
+                val db = readableDatabase
+
+                // Find how many of the next events fit in the size limit by reading only the size
+                // column. The first event is always taken, so that an event bigger than the limit
+                // does not block the queue forever.
+                var count = 0
+                var totalSize = 0L
+                val sizeCursor = db.query(
+                    tableName, arrayOf(SIZE), null, null, null, null, oldestFirst, "$batchCount"
                 )
 
-                while (cursor.moveToNext()) {
-                    events.add(getObject(cursor))
+                while (sizeCursor.moveToNext()) {
+                    totalSize += sizeCursor.getLong(0)
+                    if (count > 0 && totalSize > batchSizeInBytes) break
+                    count++
+                }
+
+                sizeCursor.close()
+
+                val events = mutableListOf<BlueshiftEvent>()
+                val corruptedIds = mutableListOf<String>()
+                if (count > 0) {
+                    val cursor = db.query(
+                        tableName, null, null, null, null, null, oldestFirst, "$count"
+                    )
+
+                    while (cursor.moveToNext()) {
+                        try {
+                            events.add(getObject(cursor))
+                        } catch (e: DataFormatException) {
+                            BlueshiftLogger.e("$TAG: Could not decode the params of event ${getId(cursor)}. ${e.message}")
+                            corruptedIds.add("${getId(cursor)}")
+                        }
+                    }
+
+                    cursor.close()
                 }
 
-                cursor.close()
+                // an event without its params is not worth sending, drop it instead of sending {}.
+                if (corruptedIds.isNotEmpty()) {
+                    val writableDb = writableDatabase
+                    val dropped = deleteByIds(writableDb, corruptedIds)
+                    deleteUnusedSnapshots(writableDb)
+
+                    val total = BlueshiftMetrics.increment(BlueshiftMetrics.CORRUPTED_EVENTS, dropped.toLong())
+                    BlueshiftLogger.d("$TAG: Dropped $dropped event(s) that could not be decoded. Total dropped = $total")
+                }
 
                 events
             }
@@ -98,6 +347,11 @@ class BlueshiftEventRepositoryImpl(
     override suspend fun clear() {
         withContext(Dispatchers.IO) {
             deleteAll(whereClause = null, selectionArgs = null)
+
+            synchronized(this@BlueshiftEventRepositoryImpl) {
+                writableDatabase.delete(SNAPSHOT_TABLE, null, null)
+                snapshotCache.clear()
+            }
         }
     }
 }
\ No newline at end of file
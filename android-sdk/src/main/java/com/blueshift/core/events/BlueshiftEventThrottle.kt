@@ -0,0 +1,91 @@
+package com.blueshift.core.events
+
+import com.blueshift.core.common.BlueshiftMetrics
+
+/**
+ * Drops the events that go above their [BlueshiftEventRateLimit] before they reach the enrichment,
+ * the db and the network. The sampler is deterministic, a sample rate of 0.25 keeps exactly every
+ * fourth event of that name. The dropped events are counted under [BlueshiftMetrics.DROPPED_EVENTS]
+ * and, when [reportIntervalMillis] is set, handed out per event name by [takeReport].
+ */
+class BlueshiftEventThrottle @JvmOverloads constructor(
+    limits: Map<String, BlueshiftEventRateLimit> = emptyMap(),
+    private val reportIntervalMillis: Long = 0,
+    private val clock: () -> Long = { System.nanoTime() / 1_000_000 },
+) {
+    // a copy, so that the later changes made to the configuration do not apply half way.
+    private val limits = HashMap(limits)
+    private class State(var tokens: Double, var refilledAt: Long) {
+        var seen = 0L
+    }
+
+    private val states = HashMap<String, State>()
+    private val dropped = HashMap<String, Long>()
+    private var reportedAt = clock()
+
+    /**
+     * @return true if the event can be tracked, false if it should be dropped
+     */
+    fun tryAcquire(eventName: String): Boolean {
+        val limit = limits[eventName] ?: return true
+
+        synchronized(this) {
+            val now = clock()
+            val state = states.getOrPut(eventName) { State(limit.burst.toDouble(), now) }
+
+            if (!isSampled(state, limit.sampleRate) || !takeToken(state, limit, now)) {
+                BlueshiftMetrics.increment(BlueshiftMetrics.DROPPED_EVENTS)
+                if (reportIntervalMillis > 0) dropped[eventName] = (dropped[eventName] ?: 0) + 1
+                return false
+            }
+
+            return true
+        }
+    }
+
+    /**
+     * @return the number of dropped events per event name since the last report, or null when it
+     * is not time to report yet or nothing was dropped
+     */
+    fun takeReport(): Map<String, Long>? {
+        if (reportIntervalMillis <= 0) return null
+
+        synchronized(this) {
+            val now = clock()
+            if (dropped.isEmpty() || now - reportedAt < reportIntervalMillis) return null
+
+            val report = HashMap(dropped)
+            dropped.clear()
+            reportedAt = now
+            return report
+        }
+    }
+
+    private fun isSampled(state: State, sampleRate: Double): Boolean {
+        if (sampleRate >= 1.0) return true
+        if (sampleRate <= 0.0) return false
+
+        // keep the event when it takes the running total of the kept events to the next integer.
+        state.seen++
+        return (state.seen * sampleRate).toLong() > ((state.seen - 1) * sampleRate).toLong()
+    }
+
+    private fun takeToken(state: State, limit: BlueshiftEventRateLimit, now: Long): Boolean {
+        if (limit.eventsPerSecond <= 0.0) return true
+
+        val elapsed = (now - state.refilledAt).coerceAtLeast(0)
+        state.tokens = (state.tokens + elapsed * limit.eventsPerSecond / 1000)
+            .coerceAtMost(limit.burst.coerceAtLeast(1).toDouble())
+        state.refilledAt = now
+
+        if (state.tokens < 1.0) return false
+
+        state.tokens -= 1.0
+        return true
+    }
+
+    companion object {
+        const val REPORT_EVENT_NAME = "bsft_dropped_events"
+        const val KEY_DROPPED_EVENTS = "dropped_events"
+    }
+}
@@ -0,0 +1,121 @@
+package com.blueshift.core.events
+
+import com.blueshift.core.common.BlueshiftLogger
+import com.blueshift.core.common.BlueshiftMetrics
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+
+/**
+ * Group-commit stage that sits between the [com.blueshift.core.BlueshiftLambdaQueue] and the
+ * [BlueshiftEventRepository]. The events are gathered for [windowMillis] or until [maxEvents]
+ * events are buffered (whichever happens first) and are then written in a single transaction.
+ *
+ * Setting [windowMillis] to 0 (or [maxEvents] to 1) makes the writer write-through.
+ *
+ * A failed commit keeps the events in the buffer for the next one. When the commits keep failing,
+ * the buffer holds up to [maxBufferedEvents] events, and the oldest ones are dropped beyond that.
+ * The dropped events are counted under [BlueshiftMetrics.DROPPED_BUFFERED_EVENTS].
+ */
+class BlueshiftEventWriter @JvmOverloads constructor(
+    private val eventRepository: BlueshiftEventRepository,
+    private val windowMillis: Long = DEFAULT_WINDOW_MILLIS,
+    private val maxEvents: Int = DEFAULT_MAX_EVENTS,
+    maxBufferedEvents: Int = DEFAULT_MAX_BUFFERED_EVENTS,
+) {
+    private val maxBufferedEvents = maxBufferedEvents.coerceAtLeast(maxEvents)
+    private val mutex = Mutex()
+    private val buffer = mutableListOf<BlueshiftEvent>()
+    private val coroutineScope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private var flushJob: Job? = null
+
+    suspend fun write(event: BlueshiftEvent) {
+        mutex.withLock {
+            buffer.add(event)
+            dropOverflow()
+
+            if (windowMillis <= 0 || buffer.size >= maxEvents) {
+                cancelScheduledFlush()
+                commit()
+            } else if (flushJob == null) {
+                flushJob = coroutineScope.launch {
+                    delay(windowMillis)
+                    try {
+                        mutex.withLock {
+                            flushJob = null
+                            commit()
+                        }
+                    } catch (e: CancellationException) {
+                        // cancelled by a flush or a discard, they take care of the buffer.
+                        throw e
+                    } catch (e: Exception) {
+                        BlueshiftLogger.e("$TAG: ${e.stackTraceToString()}")
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Flush barrier. Writes all the buffered events to the repository before returning. Call this
+     * before reading from or clearing the events repository.
+     */
+    suspend fun flush() {
+        mutex.withLock {
+            cancelScheduledFlush()
+            commit()
+        }
+    }
+
+    /**
+     * Drops the buffered events without writing them to the repository.
+     */
+    suspend fun discard() {
+        mutex.withLock {
+            cancelScheduledFlush()
+            buffer.clear()
+        }
+    }
+
+    // should be called only while holding the mutex
+    private fun dropOverflow() {
+        val count = buffer.size - maxBufferedEvents
+        if (count <= 0) return
+
+        buffer.subList(0, count).clear()
+
+        val total = BlueshiftMetrics.increment(BlueshiftMetrics.DROPPED_BUFFERED_EVENTS, count.toLong())
+        BlueshiftLogger.e("$TAG: The inserts are failing. Dropped $count buffered event(s). Total dropped = $total")
+    }
+
+    private fun cancelScheduledFlush() {
+        flushJob?.cancel()
+        flushJob = null
+    }
+
+    // should be called only while holding the mutex
+    private suspend fun commit() {
+        if (buffer.isEmpty()) return
+
+        val events = buffer.toList()
+
+        BlueshiftLogger.d("$TAG: Inserting ${events.size} batch event(s) in one transaction.")
+        eventRepository.insertEvents(events)
+
+        // a failed insert leaves the events in the buffer for the next commit.
+        buffer.clear()
+    }
+
+    companion object {
+        private const val TAG = "EventWriter"
+        const val DEFAULT_WINDOW_MILLIS = 50L
+        const val DEFAULT_MAX_EVENTS = 200
+        const val DEFAULT_MAX_BUFFERED_EVENTS = 2000
+    }
+}
@@ -0,0 +1,40 @@
+package com.blueshift.core.events
+
+import com.blueshift.core.network.BlueshiftNetworkRequest
+import com.blueshift.core.network.BlueshiftNetworkRequestRepositoryImpl
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+
+/**
+ * Inserts the bulk event request and deletes its events in a single transaction. Both repositories
+ * must be hosted by the same [com.blueshift.core.database.BlueshiftSharedStore], so that a crash in
+ * between can neither lose nor duplicate the events.
+ */
+class BlueshiftSharedStoreBatchHandoff(
+    private val eventRepository: BlueshiftEventRepositoryImpl,
+    private val networkRequestRepository: BlueshiftNetworkRequestRepositoryImpl,
+) : BlueshiftBatchHandoff {
+    override suspend fun moveToRequestQueue(
+        events: List<BlueshiftEvent>, request: BlueshiftNetworkRequest
+    ) {
+        withContext(Dispatchers.IO) {
+            // The repositories take their lock first and then wait for the database, hence the
+            // locks are taken here before starting the transaction to avoid a deadlock.
+            synchronized(networkRequestRepository) {
+                synchronized(eventRepository) {
+                    // both return the shared store's database, after making sure their table exists.
+                    eventRepository.writableDatabase
+                    val db = networkRequestRepository.writableDatabase
+                    db.beginTransaction()
+                    try {
+                        networkRequestRepository.insertRequest(db, request)
+                        eventRepository.deleteEvents(db, events)
+                        db.setTransactionSuccessful()
+                    } finally {
+                        db.endTransaction()
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.blueshift.core.network
+
+import com.blueshift.core.common.BlueshiftLogger
+import com.blueshift.core.common.BlueshiftMetrics
+
+/**
+ * Pauses the requests to an endpoint (ex: the event api) after [failureThreshold] server errors
+ * in a row. Once [openMillis] is over, one request is let through to probe the endpoint. A success
+ * closes the breaker, a failure opens it again.
+ *
+ * The state of each endpoint is published as [BlueshiftMetrics.CIRCUIT_BREAKER_STATE] followed by
+ * the endpoint, with the [State.ordinal] as the value.
+ */
+class BlueshiftCircuitBreaker(
+    private val failureThreshold: Int = DEFAULT_FAILURE_THRESHOLD,
+    private val openMillis: Long = DEFAULT_OPEN_MILLIS,
+    private val clock: () -> Long = { System.currentTimeMillis() },
+) {
+    enum class State { CLOSED, OPEN, HALF_OPEN }
+
+    private class Circuit {
+        var state = State.CLOSED
+        var failures = 0
+        var openUntil = 0L
+        var isProbing = false
+    }
+
+    private val circuits = HashMap<String, Circuit>()
+
+    /**
+     * @return true if a request can be sent to the [endpoint] now
+     */
+    fun allowRequest(endpoint: String): Boolean {
+        synchronized(this) {
+            val circuit = circuits[endpoint] ?: return true
+            if (circuit.state == State.OPEN && clock() >= circuit.openUntil) {
+                setState(endpoint, circuit, State.HALF_OPEN)
+            }
+
+            return when (circuit.state) {
+                State.CLOSED -> true
+                State.OPEN -> false
+                State.HALF_OPEN -> {
+                    // let only one request probe the endpoint.
+                    val isAllowed = !circuit.isProbing
+                    circuit.isProbing = true
+                    isAllowed
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the time at which the [endpoint] takes requests again, 0 if it does now
+     */
+    fun reopensAt(endpoint: String): Long {
+        synchronized(this) {
+            val circuit = circuits[endpoint] ?: return 0
+            return if (circuit.state == State.OPEN) circuit.openUntil else 0
+        }
+    }
+
+    fun recordSuccess(endpoint: String) {
+        synchronized(this) {
+            val circuit = circuits[endpoint] ?: return
+            circuit.failures = 0
+            circuit.isProbing = false
+            setState(endpoint, circuit, State.CLOSED)
+        }
+    }
+
+    fun recordFailure(endpoint: String) {
+        synchronized(this) {
+            val circuit = circuits.getOrPut(endpoint) { Circuit() }
+            circuit.failures++
+            circuit.isProbing = false
+
+            if (circuit.state == State.HALF_OPEN || circuit.failures >= failureThreshold) {
+                circuit.openUntil = clock() + openMillis
+                if (circuit.state != State.OPEN) {
+                    BlueshiftMetrics.increment(BlueshiftMetrics.CIRCUIT_BREAKER_OPENED)
+                    BlueshiftLogger.d("$TAG: Pausing the requests to $endpoint for $openMillis ms.")
+                }
+                setState(endpoint, circuit, State.OPEN)
+            }
+        }
+    }
+
+    /**
+     * For the requests that got no response from the server (ex: no internet connection). They
+     * say nothing about the endpoint, other than that the probe is over.
+     */
+    fun recordNoResponse(endpoint: String) {
+        synchronized(this) {
+            circuits[endpoint]?.isProbing = false
+        }
+    }
+
+    fun state(endpoint: String): State {
+        return synchronized(this) { circuits[endpoint]?.state ?: State.CLOSED }
+    }
+
+    private fun setState(endpoint: String, circuit: Circuit, state: State) {
+        circuit.state = state
+        BlueshiftMetrics.set("${BlueshiftMetrics.CIRCUIT_BREAKER_STATE}.$endpoint", state.ordinal.toLong())
+    }
+
+    companion object {
+        private const val TAG = "CircuitBreaker"
+        const val DEFAULT_FAILURE_THRESHOLD = 5
+        const val DEFAULT_OPEN_MILLIS = 60 * 1000L // 1 minute
+
+        /**
+         * The endpoint of a request is its url without the query, ex: [com.blueshift.core.common.BlueshiftAPI.eventURL].
+         */
+        fun endpointOf(networkRequest: BlueshiftNetworkRequest): String {
+            return networkRequest.url.substringBefore('?')
+        }
+    }
+}
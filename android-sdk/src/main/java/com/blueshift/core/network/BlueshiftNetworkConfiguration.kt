@@ -7,7 +7,9 @@ import com.blueshift.core.common.BlueshiftAPI
 
 object BlueshiftNetworkConfiguration {
     var authorization: String? = null
-    var requestRetryIntervalInMilliseconds: Long = 5 * (60 * 1000) // 5 Minutes
+    var requestRetryIntervalInMilliseconds: Long = 5 * (60 * 1000) // 5 Minutes, doubles on every retry
+    var requestRetryMaxIntervalInMilliseconds: Long = 60 * (60 * 1000) // 1 Hour
+    @Deprecated("Not updated by the SDK", ReplaceWith("BlueshiftConnectivityMonitor.isConnected(context)"))
     var isConnected = true
 
     fun setDatacenter(region: BlueshiftRegion) {
@@ -4,44 +4,19 @@ import com.blueshift.core.common.BlueshiftLogger
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.withContext
 import java.io.IOException
-import java.net.URL
-import javax.net.ssl.HttpsURLConnection
 
-class BlueshiftNetworkRepositoryImpl : BlueshiftNetworkRepository {
+class BlueshiftNetworkRepositoryImpl @JvmOverloads constructor(
+    private val transport: BlueshiftNetworkTransport = BlueshiftUrlConnectionTransport(),
+) : BlueshiftNetworkRepository {
 
     override suspend fun makeNetworkRequest(networkRequest: BlueshiftNetworkRequest): BlueshiftNetworkResponse {
         return withContext(Dispatchers.IO) {
-            var response: BlueshiftNetworkResponse
-            var connection: HttpsURLConnection? = null
+            BlueshiftLogger.d("$TAG: $networkRequest")
 
-            try {
-                val url = URL(networkRequest.url)
-                connection = url.openConnection() as HttpsURLConnection
-
-                BlueshiftLogger.d("$TAG: $networkRequest")
-
-                if (networkRequest.authorizationRequired) {
-                    val authorization = networkRequest.authorization
-                    authorization?.let { connection.setRequestProperty("Authorization", it) }
-                }
-
-                networkRequest.header?.let { headers ->
-                    headers.keys().forEach { key ->
-                        connection.setRequestProperty(key, headers.optString(key))
-                    }
-                }
-
-                when (networkRequest.method) {
-                    BlueshiftNetworkRequest.Method.GET -> prepareGetRequest(connection)
-                    BlueshiftNetworkRequest.Method.POST -> preparePostRequest(
-                        connection, networkRequest
-                    )
-                }
-
-                connection.connect()
-                response = readResponseFromHttpsConnection(connection)
+            val response = try {
+                transport.execute(networkRequest)
             } catch (e: Exception) {
-                response = when (e) {
+                when (e) {
                     is IOException -> {
                         BlueshiftNetworkResponse(responseCode = 0, responseBody = "IOException")
                     }
@@ -50,13 +25,6 @@ class BlueshiftNetworkRepositoryImpl : BlueshiftNetworkRepository {
                         BlueshiftNetworkResponse(responseCode = -1, responseBody = "${e.message}")
                     }
                 }
-            } finally {
-                connection?.let {
-                    try {
-                        it.disconnect()
-                    } catch (_: Exception) {
-                    }
-                }
             }
 
             BlueshiftLogger.d("$TAG: $response")
@@ -65,45 +33,8 @@ class BlueshiftNetworkRepositoryImpl : BlueshiftNetworkRepository {
         }
     }
 
-    private fun prepareGetRequest(connection: HttpsURLConnection) {
-        connection.requestMethod = "GET"
-    }
-
-    private fun preparePostRequest(
-        connection: HttpsURLConnection, request: BlueshiftNetworkRequest
-    ) {
-        connection.doOutput = true
-        connection.requestMethod = "POST"
-
-        request.body?.let { bodyJson ->
-            val bodyBytes = bodyJson.toString().toByteArray()
-            val outputStream = connection.outputStream
-            outputStream.write(bodyBytes)
-            outputStream.flush()
-        }
-    }
-
-    private fun readResponseFromHttpsConnection(connection: HttpsURLConnection): BlueshiftNetworkResponse {
-        val responseCode = connection.responseCode
-
-        val responseBody = try {
-            val inputStream = connection.inputStream
-            inputStream.bufferedReader().readText()
-        } catch (e: Exception) {
-            try {
-                val errorStream = connection.errorStream
-                errorStream.bufferedReader().readText()
-            } catch (ex: Exception) {
-                BlueshiftLogger.d("$TAG - Error reading error stream: $ex")
-                ""
-            }
-        }
-
-
-        return BlueshiftNetworkResponse(responseCode = responseCode, responseBody = responseBody)
-    }
-
     companion object {
         private const val TAG = "NetworkRepository"
+        const val IDEMPOTENCY_KEY_HEADER = "Idempotency-Key"
     }
-}
\ No newline at end of file
+}
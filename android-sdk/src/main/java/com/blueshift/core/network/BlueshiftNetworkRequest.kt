@@ -3,18 +3,88 @@ package com.blueshift.core.network
 import com.blueshift.core.database.BlueshiftSQLiteModel
 import org.json.JSONObject
 
-data class BlueshiftNetworkRequest(
+/**
+ * The body can be provided either as a [JSONObject] or as raw UTF-8 bytes. The bytes are what get
+ * stored in the db and written to the connection, the json is created from them only when someone
+ * reads the [body] property. The same goes for the [header] and the [headerBytes], see
+ * [BlueshiftRequestHeaders] for their encoding.
+ */
+class BlueshiftNetworkRequest(
     override val id: Long = -1,
     val url: String,
     val method: Method,
-    val header: JSONObject? = null,
-    val body: JSONObject? = null,
+    header: JSONObject? = null,
+    body: JSONObject? = null,
     var authorization: String? = null, // should add it from network config when needed
     val authorizationRequired: Boolean = false, // for db to store if auth is required
-    var retryAttemptBalance: Int = 3,
+    var retryAttemptBalance: Int = DEFAULT_RETRY_ATTEMPT_BALANCE,
     var retryAttemptTimestamp: Long = 0, // epoch timestamp
     val timestamp: Long = 0, // epoch timestamp
+    bodyBytes: ByteArray? = null,
+    val priority: Priority = Priority.NORMAL,
+    val idempotencyKey: String? = null, // sent as a header, stays the same across the retries
+    val responseHandling: ResponseHandling = ResponseHandling.DISCARD_SUCCESS_BODY, // not stored
+    headerBytes: ByteArray? = null,
+    var isAcknowledged: Boolean = false, // accepted by the server, deleted without sending it again
 ) : BlueshiftSQLiteModel() {
+    val header: JSONObject? by lazy {
+        header ?: headerBytes?.let { BlueshiftRequestHeaders.toJson(it) }
+    }
+
+    val headerBytes: ByteArray? by lazy {
+        headerBytes ?: header?.let { BlueshiftRequestHeaders.encode(it) }
+    }
+
+    fun forEachHeader(action: (name: String, value: String) -> Unit) {
+        headerBytes?.let { BlueshiftRequestHeaders.forEach(it, action) }
+    }
+
+    val body: JSONObject? by lazy {
+        body ?: bodyBytes?.let { JSONObject(String(it, Charsets.UTF_8)) }
+    }
+
+    val bodyBytes: ByteArray? by lazy {
+        bodyBytes ?: body?.toString()?.toByteArray(Charsets.UTF_8)
+    }
+
+    override fun toString(): String {
+        return "BlueshiftNetworkRequest(id=$id, url=$url, method=$method, headerSize=${headerBytes?.size ?: 0}, " +
+                "bodySize=${bodyBytes?.size ?: 0}, authorizationRequired=$authorizationRequired, " +
+                "retryAttemptBalance=$retryAttemptBalance, retryAttemptTimestamp=$retryAttemptTimestamp, " +
+                "timestamp=$timestamp, priority=$priority, idempotencyKey=$idempotencyKey, isAcknowledged=$isAcknowledged)"
+    }
+
+    companion object {
+        const val DEFAULT_RETRY_ATTEMPT_BALANCE = 3
+    }
+
+    /**
+     * The order in which the queued requests are sent. A lower [value] goes first.
+     */
+    enum class Priority(val value: Int) {
+        CRITICAL(0), // campaign tracking (push clicks, deliveries, etc.)
+        NORMAL(1), // real-time events
+        BULK(2); // bulk events
+
+        companion object {
+            fun fromValue(value: Int): Priority {
+                return entries.firstOrNull { it.value == value } ?: NORMAL
+            }
+        }
+    }
+
+    /**
+     * What the transport does with the body of the response.
+     */
+    enum class ResponseHandling {
+        // the body is decoded and returned in full.
+        READ_BODY,
+
+        // the body of a 2xx response is drained without decoding it, as the sync only needs the
+        // status code. The error bodies are decoded up to a capped length, for logging.
+        DISCARD_SUCCESS_BODY,
+    }
+
     enum class Method {
         GET, POST;
 
@@ -5,5 +5,52 @@ interface BlueshiftNetworkRequestRepository {
     suspend fun updateRequest(networkRequest: BlueshiftNetworkRequest)
     suspend fun deleteRequest(networkRequest: BlueshiftNetworkRequest)
     suspend fun readNextRequest(): BlueshiftNetworkRequest?
+
+    /**
+     * Reads up to [limit] requests that are ready to be sent, in the order [readNextRequest]
+     * would return them. The bulk requests are included only if they were created before
+     * [bulkCreatedBefore].
+     */
+    suspend fun readNextRequests(
+        limit: Int, bulkCreatedBefore: Long = Long.MAX_VALUE
+    ): List<BlueshiftNetworkRequest>
+
+    /**
+     * Reads the size of the requests [readNextRequests] would return at [readyBefore] for the
+     * same [bulkCreatedBefore], without the limit.
+     */
+    suspend fun readBacklog(
+        readyBefore: Long = Long.MAX_VALUE, bulkCreatedBefore: Long = Long.MAX_VALUE
+    ): BlueshiftRequestBacklog
+
+    /**
+     * Reads the size of the bulk requests [readNextRequests] holds back for the given
+     * [bulkCreatedBefore], ie. those created at or after it.
+     */
+    suspend fun readHeldBulkBacklog(bulkCreatedBefore: Long): BlueshiftRequestBacklog
+
+    suspend fun updateRequests(networkRequests: List<BlueshiftNetworkRequest>) {
+        networkRequests.forEach { updateRequest(it) }
+    }
+
+    suspend fun deleteRequests(networkRequests: List<BlueshiftNetworkRequest>) {
+        networkRequests.forEach { deleteRequest(it) }
+    }
+
+    /**
+     * Writes the outcomes of a sync in one go. The [acknowledged] requests (accepted by the
+     * server) are marked first, so that a request whose delete fails is deleted without sending
+     * it when it is read again. Then the [retries] are updated and the [completed] are deleted.
+     */
+    suspend fun writeBack(
+        acknowledged: List<BlueshiftNetworkRequest>,
+        retries: List<BlueshiftNetworkRequest>,
+        completed: List<BlueshiftNetworkRequest>,
+    ) {
+        acknowledged.forEach { it.isAcknowledged = true }
+        updateRequests(acknowledged + retries)
+        deleteRequests(completed)
+    }
+
     suspend fun clear()
-}
\ No newline at end of file
+}
@@ -4,22 +4,104 @@ import android.content.ContentValues
 import android.content.Context
 import android.database.Cursor
 import android.database.sqlite.SQLiteDatabase
+import android.database.sqlite.SQLiteException
+import com.blueshift.core.common.BlueshiftLogger
+import com.blueshift.core.common.BlueshiftMetrics
+import com.blueshift.core.database.BlueshiftBlobCodec
+import com.blueshift.core.database.BlueshiftSharedStore
 import com.blueshift.core.database.BlueshiftSQLiteOpenHelper
+import com.blueshift.core.database.BlueshiftStoreQuota
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.withContext
-import org.json.JSONObject
+import java.util.zip.DataFormatException
 
-class BlueshiftNetworkRequestRepositoryImpl(
-    context: Context?
+class BlueshiftNetworkRequestRepositoryImpl @JvmOverloads constructor(
+    context: Context?,
+    sharedStore: BlueshiftSharedStore? = null,
 ) : BlueshiftSQLiteOpenHelper<BlueshiftNetworkRequest>(
-    context, "com.blueshift.network_request_queue.db", null, 1
+    context, "com.blueshift.network_request_queue.db", null, DATABASE_VERSION, sharedStore
 ), BlueshiftNetworkRequestRepository {
+    /**
+     * Limits the size of the request queue. Unlimited by default. The requests do not carry the
+     * event name, hence [BlueshiftStoreQuota.EvictionPolicy.COLLAPSE_BY_EVENT_NAME] is not
+     * supported here and is replaced by [BlueshiftStoreQuota.EvictionPolicy.DROP_OLDEST].
+     */
+    var quota = BlueshiftStoreQuota()
+        set(value) {
+            field = if (value.evictionPolicy == BlueshiftStoreQuota.EvictionPolicy.COLLAPSE_BY_EVENT_NAME) {
+                BlueshiftLogger.d("$TAG: COLLAPSE_BY_EVENT_NAME does not apply to the request queue. Using DROP_OLDEST.")
+                value.copy(evictionPolicy = BlueshiftStoreQuota.EvictionPolicy.DROP_OLDEST)
+            } else {
+                value
+            }
+        }
+
+    /**
+     * The format used for storing the body of new requests. See [BlueshiftBlobCodec].
+     */
+    var storageFormat = BlueshiftBlobCodec.FORMAT_PLAIN
+
+    /**
+     * A queued request moves up by one priority class for every [priorityAgingMillis] it waits, so
+     * that the bulk requests do not starve behind a steady flow of real-time ones.
+     */
+    var priorityAgingMillis = DEFAULT_PRIORITY_AGING_MILLIS
+
+    private val oldestFirst = "$TIMESTAMP ASC, $ID ASC"
+
+    private val lowestPriorityFirst = "$PRIORITY DESC, $oldestFirst"
+
     override fun onCreate(db: SQLiteDatabase?) {
         db?.execSQL(buildCreateTableQuery())
+        createPriorityIndex(db)
+    }
+
+    // serves the per priority class reads of readNextRequests() in their timestamp order.
+    private fun createPriorityIndex(db: SQLiteDatabase?) {
+        db?.execSQL("CREATE INDEX IF NOT EXISTS ${tableName}_${PRIORITY}_index ON $tableName ($PRIORITY, $TIMESTAMP)")
     }
 
     override fun onUpgrade(db: SQLiteDatabase?, oldVersion: Int, newVersion: Int) {
+        if (oldVersion < 2) {
+            // v2: per-row size of the header and body, used for enforcing the quota.
+            db?.execSQL("ALTER TABLE $tableName ADD COLUMN $SIZE ${FieldType.Integer}")
+            db?.execSQL("UPDATE $tableName SET $SIZE = IFNULL(length($HEADER), 0) + IFNULL(length($BODY), 0)")
+        }
+
+        if (oldVersion < 3) {
+            // v3: format of the body blob. The existing rows are plain json.
+            db?.execSQL("ALTER TABLE $tableName ADD COLUMN $BODY_FORMAT ${FieldType.Integer}")
+        }
+
+        if (oldVersion < 4) {
+            // v4: priority class of the request. The existing rows get it from their url and method.
+            val critical = BlueshiftNetworkRequest.Priority.CRITICAL.value
+            val normal = BlueshiftNetworkRequest.Priority.NORMAL.value
+            val bulk = BlueshiftNetworkRequest.Priority.BULK.value
+            db?.execSQL("ALTER TABLE $tableName ADD COLUMN $PRIORITY ${FieldType.Integer} DEFAULT $normal")
+            db?.execSQL(
+                "UPDATE $tableName SET $PRIORITY = CASE WHEN $METHOD = 'GET' THEN $critical " +
+                        "WHEN $URL LIKE '%/bulkevents' THEN $bulk ELSE $normal END"
+            )
+            createPriorityIndex(db)
+        }
 
+        if (oldVersion < 5) {
+            // v5: idempotency key of the request. The existing rows are sent without one.
+            db?.execSQL("ALTER TABLE $tableName ADD COLUMN $IDEMPOTENCY_KEY ${FieldType.Text}")
+        }
+
+        if (oldVersion < 7) {
+            // v7: requests accepted by the server but not deleted yet.
+            db?.execSQL("ALTER TABLE $tableName ADD COLUMN $ACKNOWLEDGED ${FieldType.Integer}")
+        }
+
+        if (oldVersion < 8) {
+            // v8: drops the index on (retry_balance, retry_timestamp, timestamp) added in v6. Its
+            // leading column is only ever compared as a range, hence it served neither the filter
+            // nor the order of readNextRequests(), which reads through the priority index.
+            db?.execSQL("DROP INDEX IF EXISTS ${tableName}_ready_index")
+        }
     }
 
     override fun getContentValues(obj: BlueshiftNetworkRequest): ContentValues {
@@ -27,51 +109,63 @@ class BlueshiftNetworkRequestRepositoryImpl(
         if (obj.id != ID_DEFAULT) contentValues.put(ID, obj.id)
         contentValues.put(URL, obj.url)
         contentValues.put(METHOD, obj.method.name)
-        obj.header?.let {
-            contentValues.put(HEADER, it.toString().toByteArray(charset = Charsets.UTF_8))
+        var size = 0
+        obj.headerBytes?.let {
+            contentValues.put(HEADER, it)
+            size += it.size
         }
-        obj.body?.let {
-            contentValues.put(BODY, it.toString().toByteArray(charset = Charsets.UTF_8))
+        obj.bodyBytes?.let {
+            val (format, body) = BlueshiftBlobCodec.encodeCompact(it, storageFormat)
+            contentValues.put(BODY, body)
+            contentValues.put(BODY_FORMAT, format)
+            size += it.size
         }
+        contentValues.put(SIZE, size)
         contentValues.put(AUTH_REQUIRED, if (obj.authorizationRequired) 1 else 0)
         contentValues.put(RETRY_BALANCE, obj.retryAttemptBalance)
         contentValues.put(RETRY_TIMESTAMP, obj.retryAttemptTimestamp)
         contentValues.put(TIMESTAMP, obj.timestamp)
+        contentValues.put(PRIORITY, obj.priority.value)
+        contentValues.put(IDEMPOTENCY_KEY, obj.idempotencyKey)
+        contentValues.put(ACKNOWLEDGED, if (obj.isAcknowledged) 1 else 0)
 
         return contentValues
     }
 
+    /**
+     * @throws DataFormatException when the body of the request can not be decoded
+     */
     override fun getObject(cursor: Cursor): BlueshiftNetworkRequest {
         val id = cursor.getLong(cursor.getColumnIndexOrThrow(ID))
         val url = cursor.getString(cursor.getColumnIndexOrThrow(URL))
         val method = cursor.getString(cursor.getColumnIndexOrThrow(METHOD))
-        var headerJson: JSONObject? = null
+        // the header and the body are kept as bytes, they get parsed only if someone asks for them.
         val headerBytes = cursor.getBlob(cursor.getColumnIndexOrThrow(HEADER))
-        headerBytes?.let {
-            val headerString = String(it, Charsets.UTF_8)
-            headerJson = JSONObject(headerString)
-        }
-        var bodyJson: JSONObject? = null
-        val bodyBytes = cursor.getBlob(cursor.getColumnIndexOrThrow(BODY))
-        bodyBytes?.let {
-            val bodyString = String(it, Charsets.UTF_8)
-            bodyJson = JSONObject(bodyString)
+        val bodyBytes = cursor.getBlob(cursor.getColumnIndexOrThrow(BODY))?.let {
+            val format = cursor.getInt(cursor.getColumnIndexOrThrow(BODY_FORMAT))
+            BlueshiftBlobCodec.decode(it, format)
         }
         val authRequired = cursor.getInt(cursor.getColumnIndexOrThrow(AUTH_REQUIRED)) == 1
         val retryBalance = cursor.getInt(cursor.getColumnIndexOrThrow(RETRY_BALANCE))
         val retryTimestamp = cursor.getLong(cursor.getColumnIndexOrThrow(RETRY_TIMESTAMP))
         val timestamp = cursor.getLong(cursor.getColumnIndexOrThrow(TIMESTAMP))
+        val priority = cursor.getInt(cursor.getColumnIndexOrThrow(PRIORITY))
+        val idempotencyKey = cursor.getString(cursor.getColumnIndexOrThrow(IDEMPOTENCY_KEY))
+        val acknowledged = cursor.getInt(cursor.getColumnIndexOrThrow(ACKNOWLEDGED)) == 1
 
         return BlueshiftNetworkRequest(
             id = id,
             url = url,
             method = BlueshiftNetworkRequest.Method.fromString(method),
-            header = headerJson,
-            body = bodyJson,
+            headerBytes = headerBytes,
+            bodyBytes = bodyBytes,
             authorizationRequired = authRequired,
             retryAttemptBalance = retryBalance,
             retryAttemptTimestamp = retryTimestamp,
-            timestamp = timestamp
+            timestamp = timestamp,
+            priority = BlueshiftNetworkRequest.Priority.fromValue(priority),
+            idempotencyKey = idempotencyKey,
+            isAcknowledged = acknowledged,
         )
     }
 
@@ -85,9 +179,16 @@ class BlueshiftNetworkRequestRepositoryImpl(
         RETRY_BALANCE to FieldType.Integer,
         RETRY_TIMESTAMP to FieldType.Integer,
         TIMESTAMP to FieldType.Integer,
+        SIZE to FieldType.Integer,
+        BODY_FORMAT to FieldType.Integer,
+        PRIORITY to FieldType.Integer,
+        IDEMPOTENCY_KEY to FieldType.Text,
+        ACKNOWLEDGED to FieldType.Integer,
     )
 
     companion object {
+        private const val TAG = "NetworkRequestRepository"
+        private const val DATABASE_VERSION = 8
         private const val URL = "url"
         private const val METHOD = "method"
         private const val HEADER = "header"
@@ -96,10 +197,57 @@ class BlueshiftNetworkRequestRepositoryImpl(
         private const val RETRY_BALANCE = "retry_balance"
         private const val RETRY_TIMESTAMP = "retry_timestamp"
         private const val TIMESTAMP = "timestamp"
+        private const val SIZE = "size"
+        private const val BODY_FORMAT = "body_format"
+        private const val PRIORITY = "priority"
+        private const val IDEMPOTENCY_KEY = "idempotency_key"
+        private const val ACKNOWLEDGED = "acknowledged"
+        const val DEFAULT_PRIORITY_AGING_MILLIS = 5 * 60 * 1000L // 5 minutes
     }
 
     override suspend fun insertRequest(networkRequest: BlueshiftNetworkRequest) {
-        insert(networkRequest)
+        if (quota.isUnlimited) {
+            insert(networkRequest)
+            return
+        }
+
+        // the quota is enforced in the transaction of the insert.
+        withContext(Dispatchers.IO) {
+            synchronized(this@BlueshiftNetworkRequestRepositoryImpl) {
+                val db = writableDatabase
+                db.beginTransaction()
+                try {
+                    insertRequest(db, networkRequest)
+                    db.setTransactionSuccessful()
+                } finally {
+                    db.endTransaction()
+                }
+            }
+        }
+    }
+
+    /**
+     * Same as [insertRequest], for the callers already holding a transaction on [db].
+     */
+    internal fun insertRequest(db: SQLiteDatabase, networkRequest: BlueshiftNetworkRequest) {
+        synchronized(this) {
+            db.insert(tableName, null, getContentValues(networkRequest))
+            if (!quota.isUnlimited) evictRequests(db)
+        }
+    }
+
+    private fun evictRequests(db: SQLiteDatabase) {
+        val orderBy = when (quota.evictionPolicy) {
+            BlueshiftStoreQuota.EvictionPolicy.DROP_LOWEST_PRIORITY -> lowestPriorityFirst
+            else -> oldestFirst
+        }
+
+        val count = evictRows(db, quota, SIZE, orderBy)
+
+        if (count > 0) {
+            val total = BlueshiftMetrics.increment(BlueshiftMetrics.EVICTED_REQUESTS, count.toLong())
+            BlueshiftLogger.d("$TAG: Evicted $count request(s) due to quota. Total evicted = $total")
+        }
     }
 
     override suspend fun updateRequest(networkRequest: BlueshiftNetworkRequest) {
@@ -110,32 +258,183 @@ class BlueshiftNetworkRequestRepositoryImpl(
         delete(networkRequest)
     }
 
+    override suspend fun updateRequests(networkRequests: List<BlueshiftNetworkRequest>) {
+        if (networkRequests.isEmpty()) return
+
+        withContext(Dispatchers.IO) {
+            synchronized(this@BlueshiftNetworkRequestRepositoryImpl) {
+                val db = writableDatabase
+                db.beginTransaction()
+                try {
+                    networkRequests.forEach {
+                        db.update(tableName, getContentValues(it), "$ID=?", arrayOf("${it.id}"))
+                    }
+                    db.setTransactionSuccessful()
+                } finally {
+                    db.endTransaction()
+                }
+
+                BlueshiftLogger.d("$TAG: Successfully updated ${networkRequests.size} request(s).")
+            }
+        }
+    }
+
+    override suspend fun writeBack(
+        acknowledged: List<BlueshiftNetworkRequest>,
+        retries: List<BlueshiftNetworkRequest>,
+        completed: List<BlueshiftNetworkRequest>,
+    ) {
+        if (acknowledged.isEmpty() && retries.isEmpty() && completed.isEmpty()) return
+
+        withContext(Dispatchers.IO) {
+            synchronized(this@BlueshiftNetworkRequestRepositoryImpl) {
+                val db = writableDatabase
+                val acknowledgedValues = ContentValues()
+                acknowledgedValues.put(ACKNOWLEDGED, 1)
+
+                db.beginTransaction()
+                val count = try {
+                    acknowledged.forEach {
+                        db.update(tableName, acknowledgedValues, "$ID=?", arrayOf("${it.id}"))
+                        it.isAcknowledged = true
+                    }
+                    retries.forEach {
+                        db.update(tableName, getContentValues(it), "$ID=?", arrayOf("${it.id}"))
+                    }
+
+                    // a failed delete does not roll back the acknowledgements above, the
+                    // acknowledged requests are deleted without sending them when read again.
+                    val deleted = try {
+                        deleteByIds(db, completed.map { "${it.id}" })
+                    } catch (e: SQLiteException) {
+                        BlueshiftLogger.e("$TAG: Could not delete the completed requests. ${e.message}")
+                        0
+                    }
+
+                    db.setTransactionSuccessful()
+                    deleted
+                } finally {
+                    db.endTransaction()
+                }
+
+                BlueshiftLogger.d("$TAG: Wrote back ${retries.size} retried and $count deleted request(s).")
+            }
+        }
+    }
+
+    override suspend fun deleteRequests(networkRequests: List<BlueshiftNetworkRequest>) {
+        if (networkRequests.isEmpty()) return
+
+        withContext(Dispatchers.IO) {
+            synchronized(this@BlueshiftNetworkRequestRepositoryImpl) {
+                val db = writableDatabase
+                db.beginTransaction()
+                val count = try {
+                    deleteByIds(db, networkRequests.map { "${it.id}" }).also {
+                        db.setTransactionSuccessful()
+                    }
+                } finally {
+                    db.endTransaction()
+                }
+
+                BlueshiftLogger.d("$TAG: Successfully deleted $count request(s).")
+            }
+        }
+    }
+
     override suspend fun readNextRequest(): BlueshiftNetworkRequest? {
+        return readNextRequests(1).firstOrNull()
+    }
+
+    override suspend fun readNextRequests(
+        limit: Int, bulkCreatedBefore: Long
+    ): List<BlueshiftNetworkRequest> {
         return withContext(Dispatchers.IO) {
-            synchronized(this) {
-                var request: BlueshiftNetworkRequest? = null
-                val cursor = readableDatabase.query(
-                    tableName,
-                    null,
-                    "$RETRY_BALANCE > 0 AND $RETRY_TIMESTAMP < ${System.currentTimeMillis()}",
-                    null,
-                    null,
-                    null,
-                    "$TIMESTAMP ASC",
-                    "1"
-                )
+            synchronized(this@BlueshiftNetworkRequestRepositoryImpl) {
+                val now = System.currentTimeMillis()
+                val requests = mutableListOf<BlueshiftNetworkRequest>()
+                val corruptedIds = mutableListOf<String>()
 
-                if (cursor.moveToFirst()) {
-                    request = getObject(cursor)
+                // Within a priority class, an older request never has a higher aged priority than
+                // a newer one. Hence the next requests overall are among the first [limit] ready
+                // requests of each class, read in the (priority, timestamp) index order without
+                // sorting the whole queue. Those few are then sorted by their aged priority.
+                for (priority in BlueshiftNetworkRequest.Priority.entries) {
+                    var selection = "$PRIORITY = ${priority.value} AND $RETRY_BALANCE > 0 AND $RETRY_TIMESTAMP < $now"
+                    if (priority == BlueshiftNetworkRequest.Priority.BULK && bulkCreatedBefore != Long.MAX_VALUE) {
+                        selection += " AND $TIMESTAMP < $bulkCreatedBefore"
+                    }
+
+                    val cursor = readableDatabase.query(
+                        tableName, null, selection, null, null, null, oldestFirst, "$limit"
+                    )
+
+                    while (cursor.moveToNext()) {
+                        try {
+                            requests.add(getObject(cursor))
+                        } catch (e: DataFormatException) {
+                            BlueshiftLogger.e("$TAG: Could not decode the body of request ${getId(cursor)}. ${e.message}")
+                            corruptedIds.add("${getId(cursor)}")
+                        }
+                    }
+
+                    cursor.close()
                 }
 
+                // a request without its body is not worth sending, drop it instead of sending nothing.
+                if (corruptedIds.isNotEmpty()) {
+                    val dropped = deleteByIds(writableDatabase, corruptedIds)
+                    BlueshiftLogger.d("$TAG: Dropped $dropped request(s) that could not be decoded.")
+                }
+
+                requests.sortedWith(
+                    compareBy<BlueshiftNetworkRequest>({ agedPriority(it, now) }, { it.timestamp }, { it.id })
+                ).take(limit)
+            }
+        }
+    }
+
+    override suspend fun readBacklog(
+        readyBefore: Long, bulkCreatedBefore: Long
+    ): BlueshiftRequestBacklog {
+        var selection = "$RETRY_BALANCE > 0 AND $RETRY_TIMESTAMP < $readyBefore"
+        if (bulkCreatedBefore != Long.MAX_VALUE) {
+            val bulk = BlueshiftNetworkRequest.Priority.BULK.value
+            selection += " AND ($PRIORITY != $bulk OR $TIMESTAMP < $bulkCreatedBefore)"
+        }
+
+        return readBacklog(selection)
+    }
+
+    override suspend fun readHeldBulkBacklog(bulkCreatedBefore: Long): BlueshiftRequestBacklog {
+        val bulk = BlueshiftNetworkRequest.Priority.BULK.value
+        return readBacklog("$PRIORITY = $bulk AND $TIMESTAMP >= $bulkCreatedBefore AND $RETRY_BALANCE > 0")
+    }
+
+    private suspend fun readBacklog(selection: String): BlueshiftRequestBacklog {
+        return withContext(Dispatchers.IO) {
+            synchronized(this@BlueshiftNetworkRequestRepositoryImpl) {
+                var backlog = BlueshiftRequestBacklog(0, 0)
+                val cursor = readableDatabase.rawQuery(
+                    "SELECT COUNT(*), TOTAL($SIZE), MIN($TIMESTAMP) FROM $tableName WHERE $selection", null
+                )
+                if (cursor.moveToFirst()) {
+                    backlog = BlueshiftRequestBacklog(cursor.getLong(0), cursor.getLong(1), cursor.getLong(2))
+                }
                 cursor.close()
 
-                request
+                backlog
             }
         }
     }
 
+    // the priority class, lowered by one for every aging interval the request has waited.
+    private fun agedPriority(request: BlueshiftNetworkRequest, now: Long): Long {
+        val priority = request.priority.value.toLong()
+        if (priorityAgingMillis <= 0) return priority
+        return maxOf(0, priority - (now - request.timestamp) / priorityAgingMillis)
+    }
+
     override suspend fun clear() {
         withContext(Dispatchers.IO) {
             deleteAll(whereClause = null, selectionArgs = null)
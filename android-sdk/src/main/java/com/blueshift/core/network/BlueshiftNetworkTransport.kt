@@ -0,0 +1,19 @@
+package com.blueshift.core.network
+
+import java.io.IOException
+
+/**
+ * Sends a [BlueshiftNetworkRequest] over the wire. The default is [BlueshiftUrlConnectionTransport].
+ * An app that already ships an HTTP client (ex: OkHttp for HTTP/2) can plug it in here to share
+ * its connection pool with the SDK.
+ *
+ * The method is called on a background thread and can block. The response body should be read
+ * as asked by [BlueshiftNetworkRequest.responseHandling].
+ */
+interface BlueshiftNetworkTransport {
+    /**
+     * @throws IOException when the request could not reach the server (ex: no internet connection)
+     */
+    @Throws(IOException::class)
+    fun execute(networkRequest: BlueshiftNetworkRequest): BlueshiftNetworkResponse
+}
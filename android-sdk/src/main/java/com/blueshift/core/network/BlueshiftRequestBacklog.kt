@@ -0,0 +1,7 @@
+package com.blueshift.core.network
+
+/**
+ * The number of requests waiting in the queue and the total size of their headers and bodies.
+ * [oldestTimestamp] is the creation time of the oldest of those requests, 0 when there are none.
+ */
+data class BlueshiftRequestBacklog(val count: Long, val bytes: Long, val oldestTimestamp: Long = 0)
@@ -0,0 +1,66 @@
+package com.blueshift.core.network
+
+import org.json.JSONObject
+
+/**
+ * Compact encoding of the request headers, stored in the db and read back without any parsing.
+ * The headers are written the way they go on the wire, one `Name: value` per line.
+ *
+ * The rows stored before this encoding hold the headers as a json object. Those are told apart by
+ * the leading `{`, which is not allowed in a header name.
+ */
+object BlueshiftRequestHeaders {
+    const val CONTENT_TYPE = "Content-Type"
+    private const val SEPARATOR = ": "
+    private const val LINE_END = '\n'
+
+    /**
+     * The Content-Type header of a json body. Shared, hence should not be modified.
+     */
+    val JSON_CONTENT_TYPE: ByteArray = encode(mapOf(CONTENT_TYPE to "application/json"))
+
+    fun encode(headers: Map<String, String>): ByteArray {
+        val builder = StringBuilder()
+        headers.forEach { (name, value) ->
+            builder.append(name).append(SEPARATOR).append(value).append(LINE_END)
+        }
+
+        return builder.toString().toByteArray(Charsets.UTF_8)
+    }
+
+    fun encode(headers: JSONObject): ByteArray {
+        val map = LinkedHashMap<String, String>()
+        headers.keys().forEach { map[it] = headers.optString(it) }
+
+        return encode(map)
+    }
+
+    fun forEach(bytes: ByteArray, action: (name: String, value: String) -> Unit) {
+        val text = String(bytes, Charsets.UTF_8)
+        if (text.startsWith("{")) {
+            val json = JSONObject(text)
+            json.keys().forEach { action(it, json.optString(it)) }
+            return
+        }
+
+        var start = 0
+        while (start < text.length) {
+            var end = text.indexOf(LINE_END, start)
+            if (end < 0) end = text.length
+
+            val separator = text.indexOf(SEPARATOR, start)
+            if (separator in start until end) {
+                action(text.substring(start, separator), text.substring(separator + SEPARATOR.length, end))
+            }
+
+            start = end + 1
+        }
+    }
+
+    fun toJson(bytes: ByteArray): JSONObject {
+        val json = JSONObject()
+        forEach(bytes) { name, value -> json.put(name, value) }
+
+        return json
+    }
+}
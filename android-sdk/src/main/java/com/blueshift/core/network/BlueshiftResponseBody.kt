@@ -0,0 +1,52 @@
+package com.blueshift.core.network
+
+import java.io.ByteArrayOutputStream
+import java.io.InputStream
+
+/**
+ * Reads the response bodies. Every function reads the stream to the end and closes it, which is
+ * needed for the connection to be reused.
+ */
+object BlueshiftResponseBody {
+    const val MAX_ERROR_BODY_BYTES = 4 * 1024
+    private const val BUFFER_SIZE = 8 * 1024
+
+    // one scratch buffer per thread, as the requests can be in flight on several threads.
+    private val scratchBuffer = object : ThreadLocal<ByteArray>() {
+        override fun initialValue() = ByteArray(BUFFER_SIZE)
+    }
+
+    fun readFully(inputStream: InputStream): String {
+        return inputStream.use { it.bufferedReader().readText() }
+    }
+
+    /**
+     * Reads the body without keeping any of it.
+     */
+    fun discard(inputStream: InputStream) {
+        inputStream.use {
+            val buffer = scratchBuffer.get()!!
+            while (it.read(buffer) != -1) continue
+        }
+    }
+
+    /**
+     * Decodes the first [maxBytes] of the body and discards the rest.
+     */
+    fun readCapped(inputStream: InputStream, maxBytes: Int = MAX_ERROR_BODY_BYTES): String {
+        return inputStream.use {
+            val buffer = scratchBuffer.get()!!
+            val captured = ByteArrayOutputStream(minOf(maxBytes, BUFFER_SIZE))
+            while (true) {
+                val count = it.read(buffer)
+                if (count == -1) break
+
+                val remaining = maxBytes - captured.size()
+                if (remaining > 0) captured.write(buffer, 0, minOf(count, remaining))
+            }
+
+            // a multi-byte character cut at the cap is decoded as a replacement character.
+            captured.toString(Charsets.UTF_8.name())
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.blueshift.core.network
+
+import kotlin.random.Random
+
+/**
+ * Exponential backoff with full jitter. The delay before the nth retry is picked at random between
+ * 0 and baseMillis * 2^(n-1), capped at maxMillis, so that the devices that failed together during
+ * an outage do not retry together.
+ */
+class BlueshiftRetryBackoff(private val random: Random = Random.Default) {
+    /**
+     * @param attempt the number of failed attempts so far, starting from 1
+     */
+    fun nextDelayMillis(attempt: Int, baseMillis: Long, maxMillis: Long): Long {
+        if (baseMillis <= 0) return 0
+
+        // stop doubling once the cap is reached, to avoid overflowing the shift.
+        var ceiling = baseMillis
+        repeat((attempt - 1).coerceAtLeast(0)) {
+            if (ceiling >= maxMillis) return@repeat
+            ceiling *= 2
+        }
+        if (maxMillis > 0) ceiling = ceiling.coerceAtMost(maxMillis)
+
+        return random.nextLong(ceiling + 1)
+    }
+}
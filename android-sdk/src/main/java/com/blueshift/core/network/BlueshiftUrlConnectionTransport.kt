@@ -0,0 +1,141 @@
+package com.blueshift.core.network
+
+import com.blueshift.core.common.BlueshiftLogger
+import java.net.HttpURLConnection.HTTP_UNSUPPORTED_TYPE
+import java.net.URL
+import java.util.zip.GZIPOutputStream
+import javax.net.ssl.HttpsURLConnection
+
+/**
+ * [BlueshiftNetworkTransport] on top of [HttpsURLConnection]. The connection is not disconnected
+ * after a request. Instead, the response body is read to the end and closed, which hands the
+ * socket back to the platform's keep-alive pool, so the requests to the same datacenter host reuse
+ * one TLS connection instead of paying for a new handshake every time.
+ *
+ * The bodies of [gzipThresholdBytes] or more are sent gzip encoded when the threshold is above 0.
+ * If the server answers an encoded request with 415 (Unsupported Media Type), the request is sent
+ * again as it is and the encoding is not used for the rest of the app session.
+ */
+class BlueshiftUrlConnectionTransport internal constructor(
+    private val connectTimeoutMillis: Int,
+    private val readTimeoutMillis: Int,
+    private val gzipThresholdBytes: Int,
+    private val openConnection: (URL) -> HttpsURLConnection,
+) : BlueshiftNetworkTransport {
+    @JvmOverloads
+    constructor(
+        connectTimeoutMillis: Int = DEFAULT_CONNECT_TIMEOUT_MILLIS,
+        readTimeoutMillis: Int = DEFAULT_READ_TIMEOUT_MILLIS,
+        gzipThresholdBytes: Int = 0,
+    ) : this(connectTimeoutMillis, readTimeoutMillis, gzipThresholdBytes, { it.openConnection() as HttpsURLConnection })
+
+    @Volatile
+    private var isGzipRejected = false
+
+    override fun execute(networkRequest: BlueshiftNetworkRequest): BlueshiftNetworkResponse {
+        val bodySize = networkRequest.bodyBytes?.size ?: 0
+        val useGzip = gzipThresholdBytes > 0 && bodySize >= gzipThresholdBytes && !isGzipRejected
+
+        val response = execute(networkRequest, useGzip)
+        if (useGzip && response.responseCode == HTTP_UNSUPPORTED_TYPE) {
+            BlueshiftLogger.d("$TAG: The server rejected the gzip encoded body. Sending it as it is.")
+            isGzipRejected = true
+            return execute(networkRequest, false)
+        }
+
+        return response
+    }
+
+    private fun execute(networkRequest: BlueshiftNetworkRequest, useGzip: Boolean): BlueshiftNetworkResponse {
+        val connection = openConnection(URL(networkRequest.url))
+
+        try {
+            connection.connectTimeout = connectTimeoutMillis
+            connection.readTimeout = readTimeoutMillis
+
+            if (networkRequest.authorizationRequired) {
+                val authorization = networkRequest.authorization
+                authorization?.let { connection.setRequestProperty("Authorization", it) }
+            }
+
+            networkRequest.forEachHeader { name, value ->
+                connection.setRequestProperty(name, value)
+            }
+
+            networkRequest.idempotencyKey?.let {
+                connection.setRequestProperty(BlueshiftNetworkRepositoryImpl.IDEMPOTENCY_KEY_HEADER, it)
+            }
+
+            when (networkRequest.method) {
+                BlueshiftNetworkRequest.Method.GET -> prepareGetRequest(connection)
+                BlueshiftNetworkRequest.Method.POST -> preparePostRequest(connection, networkRequest, useGzip)
+            }
+
+            return readResponse(connection, networkRequest)
+        } catch (e: Exception) {
+            // a connection in an unknown state should not go back to the pool.
+            connection.disconnect()
+            throw e
+        }
+    }
+
+    private fun prepareGetRequest(connection: HttpsURLConnection) {
+        connection.requestMethod = "GET"
+    }
+
+    private fun preparePostRequest(
+        connection: HttpsURLConnection, request: BlueshiftNetworkRequest, useGzip: Boolean
+    ) {
+        connection.doOutput = true
+        connection.requestMethod = "POST"
+
+        request.bodyBytes?.let { bodyBytes ->
+            if (useGzip) {
+                // the compressed size is not known upfront, the body is compressed straight into
+                // the socket in chunks instead of being buffered as a second copy.
+                connection.setRequestProperty("Content-Encoding", "gzip")
+                connection.setChunkedStreamingMode(0)
+                GZIPOutputStream(connection.outputStream, GZIP_BUFFER_SIZE).use { it.write(bodyBytes) }
+            } else {
+                // a known length avoids the chunked encoding.
+                connection.setFixedLengthStreamingMode(bodyBytes.size)
+                connection.outputStream.use { it.write(bodyBytes) }
+            }
+        }
+    }
+
+    private fun readResponse(
+        connection: HttpsURLConnection, request: BlueshiftNetworkRequest
+    ): BlueshiftNetworkResponse {
+        val responseCode = connection.responseCode
+        val isSuccess = responseCode in 200..299
+
+        val responseBody = try {
+            // the error responses carry their body in the error stream.
+            val inputStream = if (isSuccess) connection.inputStream else connection.errorStream
+            when {
+                inputStream == null -> ""
+                !isSuccess -> BlueshiftResponseBody.readCapped(inputStream)
+                request.responseHandling == BlueshiftNetworkRequest.ResponseHandling.READ_BODY -> {
+                    BlueshiftResponseBody.readFully(inputStream)
+                }
+                else -> {
+                    BlueshiftResponseBody.discard(inputStream)
+                    ""
+                }
+            }
+        } catch (e: Exception) {
+            BlueshiftLogger.d("$TAG - Error reading the response body: $e")
+            ""
+        }
+
+        return BlueshiftNetworkResponse(responseCode = responseCode, responseBody = responseBody)
+    }
+
+    companion object {
+        private const val TAG = "UrlConnectionTransport"
+        const val DEFAULT_CONNECT_TIMEOUT_MILLIS = 15 * 1000 // 15 seconds
+        const val DEFAULT_READ_TIMEOUT_MILLIS = 30 * 1000 // 30 seconds
+        private const val GZIP_BUFFER_SIZE = 8 * 1024
+    }
+}
@@ -0,0 +1,156 @@
+package com.blueshift.core.schedule.network
+
+import android.Manifest
+import android.annotation.SuppressLint
+import android.content.Context
+import android.net.ConnectivityManager
+import android.net.Network
+import android.net.NetworkCapabilities
+import android.net.NetworkRequest
+import android.os.Build
+import com.blueshift.core.BlueshiftNetworkRequestQueueManager
+import com.blueshift.core.common.BlueshiftLogger
+import com.blueshift.util.NetworkUtils
+import com.blueshift.util.PermissionUtils
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+
+/**
+ * Keeps the state of the network up to date with a [ConnectivityManager.NetworkCallback], so that
+ * reading it is a volatile read instead of a binder call on every tracked event. When the network
+ * comes back, the request queue is synced after [SYNC_DEBOUNCE_MILLIS], instead of waiting for the
+ * next run of [BlueshiftNetworkChangeJobService]. The debounce absorbs the flapping of the network
+ * during a handover (ex: wifi to cellular).
+ */
+object BlueshiftConnectivityMonitor {
+    private const val TAG = "ConnectivityMonitor"
+    const val SYNC_DEBOUNCE_MILLIS = 2000L
+
+    enum class NetworkType { NONE, METERED, UNMETERED }
+
+    @Volatile
+    var networkType = NetworkType.NONE
+        private set
+
+    @Volatile
+    private var isStarted = false
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private var pendingSync: Job? = null
+
+    /**
+     * @return true if there is a network connection. Falls back to asking the [ConnectivityManager]
+     * when the monitor is not running.
+     */
+    fun isConnected(context: Context): Boolean {
+        return if (isStarted) networkType != NetworkType.NONE else NetworkUtils.isConnected(context)
+    }
+
+    /**
+     * @return true if the current network is unmetered (ex: wifi)
+     */
+    fun isUnmetered(): Boolean {
+        return networkType == NetworkType.UNMETERED
+    }
+
+    @SuppressLint("MissingPermission")
+    fun start(context: Context) {
+        synchronized(this) {
+            if (isStarted) return
+            if (!PermissionUtils.hasPermission(context, Manifest.permission.ACCESS_NETWORK_STATE)) {
+                BlueshiftLogger.d("$TAG: ACCESS_NETWORK_STATE permission is missing. Not monitoring the network.")
+                return
+            }
+
+            val connectivityManager = context.applicationContext
+                .getSystemService(Context.CONNECTIVITY_SERVICE) as? ConnectivityManager ?: return
+
+            try {
+                networkType = typeOf(connectivityManager.getNetworkCapabilities(connectivityManager.activeNetwork))
+
+                val callback = object : ConnectivityManager.NetworkCallback() {
+                    override fun onCapabilitiesChanged(network: Network, networkCapabilities: NetworkCapabilities) {
+                        onNetworkType(typeOf(networkCapabilities))
+                    }
+
+                    override fun onLost(network: Network) {
+                        onNetworkLost(connectivityManager, network)
+                    }
+                }
+
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                    connectivityManager.registerDefaultNetworkCallback(callback)
+                } else {
+                    val request = NetworkRequest.Builder()
+                        .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                        .build()
+                    connectivityManager.registerNetworkCallback(request, callback)
+                }
+
+                isStarted = true
+            } catch (e: Exception) {
+                BlueshiftLogger.e("$TAG: Could not register the network callback. ${e.message}")
+            }
+        }
+    }
+
+    /**
+     * A lost network does not mean that the device is offline. On API 23, the callback hears about
+     * every network with internet, and on the newer versions the default network may already have
+     * moved to another one. Hence the state is read from the active network.
+     */
+    @SuppressLint("MissingPermission")
+    internal fun onNetworkLost(connectivityManager: ConnectivityManager, lostNetwork: Network) {
+        val type = try {
+            val activeNetwork = connectivityManager.activeNetwork
+            if (activeNetwork == null || activeNetwork == lostNetwork) {
+                NetworkType.NONE
+            } else {
+                typeOf(connectivityManager.getNetworkCapabilities(activeNetwork))
+            }
+        } catch (e: Exception) {
+            BlueshiftLogger.e("$TAG: Could not read the active network. ${e.message}")
+            NetworkType.NONE
+        }
+
+        onNetworkType(type)
+    }
+
+    internal val isSyncPending: Boolean
+        get() = pendingSync?.isActive == true
+
+    private fun typeOf(capabilities: NetworkCapabilities?): NetworkType {
+        return when {
+            capabilities == null -> NetworkType.NONE
+            !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET) -> NetworkType.NONE
+            capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED) -> NetworkType.UNMETERED
+            else -> NetworkType.METERED
+        }
+    }
+
+    internal fun onNetworkType(type: NetworkType) {
+        synchronized(this) {
+            val wasConnected = networkType != NetworkType.NONE
+            networkType = type
+
+            if (type == NetworkType.NONE) {
+                pendingSync?.cancel()
+                pendingSync = null
+            } else if (!wasConnected) {
+                BlueshiftLogger.d("$TAG: Network available ($type). Syncing in $SYNC_DEBOUNCE_MILLIS ms.")
+                pendingSync?.cancel()
+                pendingSync = scope.launch {
+                    delay(SYNC_DEBOUNCE_MILLIS)
+                    try {
+                        BlueshiftNetworkRequestQueueManager.sync()
+                    } catch (e: Exception) {
+                        BlueshiftLogger.e("$TAG: Sync failed. ${e.message}")
+                    }
+                }
+            }
+        }
+    }
+}
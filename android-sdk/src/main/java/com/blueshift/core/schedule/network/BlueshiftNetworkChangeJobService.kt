@@ -1,5 +1,6 @@
 package com.blueshift.core.schedule.network
 
+import android.app.job.JobInfo
 import android.app.job.JobParameters
 import android.app.job.JobService
 import android.os.Build
@@ -7,47 +8,108 @@ import androidx.annotation.RequiresApi
 import com.blueshift.core.BlueshiftEventManager
 import com.blueshift.core.BlueshiftNetworkRequestQueueManager
 import com.blueshift.core.common.BlueshiftLogger
-import com.blueshift.util.NetworkUtils
+import com.blueshift.core.network.BlueshiftRequestBacklog
+import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
 import kotlinx.coroutines.launch
 
 class BlueshiftNetworkChangeJobService : JobService() {
+    @Volatile
+    private var backgroundWork: Job? = null
+
     override fun onStartJob(params: JobParameters?): Boolean {
-        doBackgroundWork(jobParameters = params)
+        backgroundWork = doBackgroundWork(jobParameters = params)
 
         // The job should continue running as the enqueue operation may take a while
         // we have the jobFinished method called once the task is complete.
         return true
     }
 
-    private fun doBackgroundWork(jobParameters: JobParameters?) {
-        CoroutineScope(Dispatchers.Default).launch {
+    private fun doBackgroundWork(jobParameters: JobParameters?): Job {
+        return CoroutineScope(Dispatchers.Default).launch {
+            var needsReschedule = false
+
             try {
                 BlueshiftLogger.d("$TAG: doBackgroundWork - START")
 
+                val uploadPolicy = BlueshiftNetworkRequestQueueManager.uploadPolicy
+                val deadline = System.currentTimeMillis() + uploadPolicy.maxRunMillis
+
                 // Create batches of events and add it to request queue
                 BlueshiftEventManager.buildAndEnqueueBatchEvents()
 
                 // If internet is available, sync the queue
-                if (NetworkUtils.isConnected(applicationContext)) {
-                    BlueshiftNetworkRequestQueueManager.sync()
+                if (BlueshiftConnectivityMonitor.isConnected(applicationContext)) {
+                    val requestCount = BlueshiftNetworkRequestQueueManager.sync(
+                        uploadPolicy.maxRequestsPerRun, deadline
+                    )
+
+                    val backlog = BlueshiftNetworkRequestQueueManager.readBacklog()
+                    if (System.currentTimeMillis() >= deadline && backlog.count > 0) {
+                        // out of time, let the job scheduler run the rest of the backlog.
+                        BlueshiftLogger.d("$TAG: doBackgroundWork - out of time, remaining backlog = $backlog")
+                        reportRemainingWork(jobParameters, backlog)
+                        needsReschedule = true
+                    } else {
+                        scheduleFollowUp(uploadPolicy, requestCount, backlog)
+                    }
                 }
 
                 BlueshiftLogger.d("$TAG: doBackgroundWork - FINISH")
+            } catch (e: CancellationException) {
+                // stopped by onStopJob, the job scheduler has already been told about the reschedule.
+                BlueshiftLogger.d("$TAG: doBackgroundWork - CANCELLED")
+                throw e
             } catch (e: Exception) {
                 BlueshiftLogger.e("$TAG: doBackgroundWork - ERROR : ${e.stackTraceToString()}")
             }
 
-            // this is a periodic job, we don't need the job scheduler to
-            // reschedule this with available backoff policy. hence passing
-            // false as 2nd argument.
-            jobFinished(jobParameters, false)
+            // the periodic job does not need a reschedule when the queue is drained, the
+            // next period takes care of the new requests. A run that ran out of time asks
+            // for one, so that the rest of the backlog does not wait for the next period.
+            jobFinished(jobParameters, needsReschedule)
+        }
+    }
+
+    private fun reportRemainingWork(jobParameters: JobParameters?, backlog: BlueshiftRequestBacklog) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE && jobParameters != null) {
+            try {
+                updateEstimatedNetworkBytes(jobParameters, backlog.bytes, JobInfo.NETWORK_BYTES_UNKNOWN)
+            } catch (e: Exception) {
+                BlueshiftLogger.e("$TAG: Failed to update the estimated network bytes: ${e.message}")
+            }
+        }
+    }
+
+    private suspend fun scheduleFollowUp(
+        uploadPolicy: BlueshiftUploadPolicy, requestCount: Int, backlog: BlueshiftRequestBacklog
+    ) {
+        val isLimitReached = uploadPolicy.maxRequestsPerRun in 1..requestCount
+        if (isLimitReached && backlog.count > 0) {
+            // a large backlog is split across the runs, continue in a new run.
+            BlueshiftNetworkChangeScheduler.scheduleFollowUp(applicationContext, backlog, waitForUnmetered = false)
+            return
+        }
+
+        // the requests waiting for their retry time are left to the periodic job, only the held
+        // bulk requests are worth a job that waits for an unmetered network.
+        val heldBulkBacklog = BlueshiftNetworkRequestQueueManager.readHeldBulkBacklog()
+        if (heldBulkBacklog.count > 0) {
+            BlueshiftNetworkChangeScheduler.scheduleFollowUp(
+                applicationContext, heldBulkBacklog, waitForUnmetered = true, uploadPolicy.maxBulkDeferralMillis
+            )
         }
     }
 
     override fun onStopJob(params: JobParameters?): Boolean {
         BlueshiftLogger.d("$TAG: onStopJob called")
+
+        // stop sending. The requests in flight are awaited and the current page is written back
+        // before the sync returns.
+        backgroundWork?.cancel()
+        backgroundWork = null
         
         // Add stop reason handling for Android 16+
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S && params != null) {
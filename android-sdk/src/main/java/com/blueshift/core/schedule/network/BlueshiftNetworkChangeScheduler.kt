@@ -8,15 +8,20 @@ import android.content.Context
 import android.os.Build
 import androidx.annotation.RequiresApi
 import com.blueshift.core.common.BlueshiftLogger
+import com.blueshift.core.network.BlueshiftRequestBacklog
 import com.blueshift.model.Configuration
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
 
 object BlueshiftNetworkChangeScheduler {
+    @Volatile
+    private var followUpJobId = 0
+
     fun scheduleWithJobScheduler(context: Context, configuration: Configuration) {
         val jobScheduler = context.getSystemService(Context.JOB_SCHEDULER_SERVICE) as JobScheduler
         val jobID = configuration.networkChangeListenerJobId
+        followUpJobId = configuration.uploadFollowUpJobId
 
         // Check if the job exists already, if yes, skip scheduling a new one
         val jobExists = jobScheduler.allPendingJobs.any { it.id == jobID }
@@ -58,6 +63,64 @@ object BlueshiftNetworkChangeScheduler {
         }
     }
 
+    /**
+     * Schedules a one-off run of [BlueshiftNetworkChangeJobService] for the [backlog] left behind
+     * by a run. The backlog of a run that stopped at its request limit continues on any network.
+     * The bulk requests held back by the upload policy wait for an unmetered network, but not
+     * longer than [maxDelayMillis] counted from the creation of the oldest of them. The size of the backlog is given to the OS, so that it can
+     * run the job along with the network work of the other apps.
+     *
+     * A pending follow-up run is replaced by the new one.
+     */
+    fun scheduleFollowUp(
+        context: Context,
+        backlog: BlueshiftRequestBacklog,
+        waitForUnmetered: Boolean,
+        maxDelayMillis: Long = 0,
+    ) {
+        if (followUpJobId == 0) return
+
+        try {
+            val jobScheduler = context.getSystemService(Context.JOB_SCHEDULER_SERVICE) as JobScheduler
+            val componentName = ComponentName(context, BlueshiftNetworkChangeJobService::class.java)
+
+            val builder = JobInfo.Builder(followUpJobId, componentName)
+            if (waitForUnmetered) {
+                builder.setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
+                // runs on any network once the deadline is reached.
+                builder.setOverrideDeadline(
+                    overrideDeadlineMillis(maxDelayMillis, backlog.oldestTimestamp, System.currentTimeMillis())
+                )
+            } else {
+                builder.setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+            }
+
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                builder.setRequiresBatteryNotLow(true)
+            }
+
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+                // the responses are tiny acks, the download size is not known upfront.
+                builder.setEstimatedNetworkBytes(backlog.bytes, JobInfo.NETWORK_BYTES_UNKNOWN)
+            }
+
+            val result = jobScheduler.schedule(builder.build())
+            BlueshiftLogger.d("job = BlueshiftNetworkChangeJobService (follow-up), jobId = $followUpJobId, result = $result, backlog = $backlog, waitForUnmetered = $waitForUnmetered")
+        } catch (e: Exception) {
+            BlueshiftLogger.e("Failed to schedule the follow-up job: ${e.stackTraceToString()}")
+        }
+    }
+
+    /**
+     * @return the delay that ends [maxDelayMillis] after the [oldestTimestamp], 0 if that is already
+     * past. The override deadline of a job counts from the time it is scheduled, while the held
+     * requests have been waiting since they were created.
+     */
+    internal fun overrideDeadlineMillis(maxDelayMillis: Long, oldestTimestamp: Long, now: Long): Long {
+        if (oldestTimestamp <= 0) return maxDelayMillis
+        return (maxDelayMillis - (now - oldestTimestamp)).coerceIn(0, maxDelayMillis)
+    }
+
     /**
      * Get optimized job interval based on app standby bucket for Android 15+
      * This helps adapt to the new JobScheduler quota system
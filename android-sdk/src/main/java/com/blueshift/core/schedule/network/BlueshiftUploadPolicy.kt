@@ -0,0 +1,37 @@
+package com.blueshift.core.schedule.network
+
+/**
+ * Decides when the queued requests go out. The campaign tracking and the real-time events are
+ * sent on any network. When [deferBulkUntilUnmeteredOrCharging] is set, the bulk events wait for
+ * an unmetered network or for the device to charge, but never longer than [maxBulkDeferralMillis].
+ * When [maxRequestsPerRun] is above 0, a job run sends at most that many requests and leaves the
+ * rest of the backlog to a follow-up run. A job run stops picking new requests once it has run for
+ * [maxRunMillis], so that it finishes cleanly within the execution window of the job, and asks for
+ * a reschedule when some work is left.
+ */
+class BlueshiftUploadPolicy @JvmOverloads constructor(
+    val deferBulkUntilUnmeteredOrCharging: Boolean = false,
+    val maxBulkDeferralMillis: Long = DEFAULT_MAX_BULK_DEFERRAL_MILLIS,
+    val maxRequestsPerRun: Int = 0,
+    val maxRunMillis: Long = DEFAULT_MAX_RUN_MILLIS,
+) {
+    /**
+     * @return the bulk requests created before this time can be sent now
+     */
+    fun bulkCreatedBefore(now: Long, isUnmetered: Boolean, isCharging: Boolean): Long {
+        if (!deferBulkUntilUnmeteredOrCharging || isUnmetered || isCharging) return Long.MAX_VALUE
+
+        return now - maxBulkDeferralMillis
+    }
+
+    override fun toString(): String {
+        return "BlueshiftUploadPolicy(deferBulkUntilUnmeteredOrCharging=$deferBulkUntilUnmeteredOrCharging, " +
+                "maxBulkDeferralMillis=$maxBulkDeferralMillis, maxRequestsPerRun=$maxRequestsPerRun, maxRunMillis=$maxRunMillis)"
+    }
+
+    companion object {
+        const val DEFAULT_MAX_BULK_DEFERRAL_MILLIS = 6 * 60 * 60 * 1000L // 6 hours
+        // the jobs get 10 minutes at most, leave room for the requests of the last page.
+        const val DEFAULT_MAX_RUN_MILLIS = 8 * 60 * 1000L // 8 minutes
+    }
+}
@@ -3,11 +3,24 @@ package com.blueshift.model;
 import android.app.AlarmManager;
 import android.text.TextUtils;
 
+import androidx.annotation.NonNull;
+
 import com.blueshift.Blueshift;
 import com.blueshift.BlueshiftLogger;
 import com.blueshift.BlueshiftRegion;
+import com.blueshift.core.BlueshiftLambdaQueue;
+import com.blueshift.core.BlueshiftNetworkRequestQueueManager;
+import com.blueshift.core.database.BlueshiftStoreQuota;
+import com.blueshift.core.events.BlueshiftEventBatchPolicy;
+import com.blueshift.core.events.BlueshiftEventRateLimit;
+import com.blueshift.core.network.BlueshiftNetworkRequestRepositoryImpl;
+import com.blueshift.core.network.BlueshiftNetworkTransport;
+import com.blueshift.core.network.BlueshiftUrlConnectionTransport;
+import com.blueshift.core.schedule.network.BlueshiftUploadPolicy;
 import com.blueshift.inappmessage.InAppConstants;
 
+import java.util.HashMap;
+
 /**
  * @author Rahul Raveendran V P
  * Created on 19/2/15 @ 1:01 PM
@@ -23,6 +36,40 @@ public class Configuration {
 
     // bulk event
     private long batchInterval;
+    // limits of a single bulk event request
+    private int bulkEventMaxCount;
+    private long bulkEventMaxBytes;
+    // group-commit window for writing batch events to the db
+    private long eventGroupCommitWindow;
+    private int eventGroupCommitMaxEvents;
+    // quota of the on-disk event store and request queue
+    private int eventStoreMaxRows;
+    private long eventStoreMaxBytes;
+    private int requestQueueMaxRows;
+    private long requestQueueMaxBytes;
+    private BlueshiftStoreQuota.EvictionPolicy storeEvictionPolicy;
+    // compress the event params and request bodies stored in the db
+    private boolean storageCompressionEnabled = false;
+    // capacity and overflow policy of the event processing lanes
+    private final HashMap<BlueshiftLambdaQueue.Lane, BlueshiftLambdaQueue.LaneConfig> eventQueueLaneConfigs = new HashMap<>();
+    // rate limits and sampling per event name
+    private final HashMap<String, BlueshiftEventRateLimit> eventRateLimits = new HashMap<>();
+    private long droppedEventsReportInterval = 0;
+    // merge the repeated identical events tracked within this window (millis)
+    private long eventCoalescingWindow = 0;
+    // the shorter window of the real-time events, as they are sent right away otherwise
+    private long realtimeEventCoalescingWindow = 1000;
+    // time after which a queued request moves up by one priority class
+    private long requestPriorityAging = BlueshiftNetworkRequestRepositoryImpl.DEFAULT_PRIORITY_AGING_MILLIS;
+    private int maxInFlightRequests = BlueshiftNetworkRequestQueueManager.DEFAULT_MAX_IN_FLIGHT_REQUESTS;
+    private int realtimeEventBatchThreshold = 0;
+    private BlueshiftUploadPolicy uploadPolicy = new BlueshiftUploadPolicy();
+    private BlueshiftNetworkTransport networkTransport = null;
+    private int networkConnectTimeout = BlueshiftUrlConnectionTransport.DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private int networkReadTimeout = BlueshiftUrlConnectionTransport.DEFAULT_READ_TIMEOUT_MILLIS;
+    private int requestCompressionThreshold = 0;
+    // keep the events and the request queue in one database
+    private boolean singleStoreEnabled = false;
 
     // notifications
     private int smallIconResId;
@@ -35,6 +82,7 @@ public class Configuration {
 
     // job scheduler
     private int networkChangeListenerJobId;
+    private int uploadFollowUpJobId;
     // todo: Fix the version in comments
     /**
      * @deprecated starting v3.5.? we are deprecating this field. The bulk events will be created
@@ -94,12 +142,28 @@ public class Configuration {
         // Default bulk event interval: 30min
         batchInterval = AlarmManager.INTERVAL_HALF_HOUR;
 
+        // Default bulk event limits: 100 events or 512 KB
+        bulkEventMaxCount = BlueshiftEventBatchPolicy.DEFAULT_MAX_COUNT;
+        bulkEventMaxBytes = BlueshiftEventBatchPolicy.DEFAULT_MAX_BYTES;
+
+        // Default quota: none, the events and requests are kept until they are sent
+        eventStoreMaxRows = 0;
+        eventStoreMaxBytes = 0;
+        requestQueueMaxRows = 0;
+        requestQueueMaxBytes = 0;
+        storeEvictionPolicy = BlueshiftStoreQuota.EvictionPolicy.DROP_OLDEST;
+
+        // Default group-commit window for batch events: 50ms or 200 events
+        eventGroupCommitWindow = 50;
+        eventGroupCommitMaxEvents = 200;
+
         // Default app_open: will not be fired
         enableAutoAppOpen = false;
 
         // Job ids used in the SDK
         networkChangeListenerJobId = 901;
         bulkEventsJobId = 902;
+        uploadFollowUpJobId = 903;
 
         // The default value is 86400 seconds (24 hours). When set to 0, an app_open
         // event will be fired on each app restart.
@@ -168,6 +232,378 @@ public class Configuration {
         this.batchInterval = batchInterval;
     }
 
+    public int getBulkEventMaxCount() {
+        return bulkEventMaxCount;
+    }
+
+    /**
+     * Set the maximum number of events sent in one bulk event api call.
+     * Default value is 100. A value less than 1 is ignored.
+     *
+     * @param maxCount maximum number of events in a bulk event api call
+     */
+    public void setBulkEventMaxCount(int maxCount) {
+        if (maxCount < 1) {
+            BlueshiftLogger.e(null, "Invalid bulk event max count: " + maxCount + ". It should be 1 or more.");
+        } else {
+            this.bulkEventMaxCount = maxCount;
+        }
+    }
+
+    public long getBulkEventMaxBytes() {
+        return bulkEventMaxBytes;
+    }
+
+    /**
+     * Set the maximum size of the events sent in one bulk event api call. An event bigger
+     * than this limit is sent alone. Default value is 512 KB. A value less than 1 is ignored.
+     *
+     * @param maxBytes maximum size of the events in a bulk event api call in bytes
+     */
+    public void setBulkEventMaxBytes(long maxBytes) {
+        if (maxBytes < 1) {
+            BlueshiftLogger.e(null, "Invalid bulk event max bytes: " + maxBytes + ". It should be 1 or more.");
+        } else {
+            this.bulkEventMaxBytes = maxBytes;
+        }
+    }
+
+    public long getEventGroupCommitWindow() {
+        return eventGroupCommitWindow;
+    }
+
+    /**
+     * Set the time for which the batch events are gathered in memory before writing them to
+     * the database in a single transaction. Set 0 to write every event as soon as it is tracked.
+     * Default value is 50 milliseconds.
+     *
+     * @param windowInMilliseconds group-commit window in milliseconds
+     */
+    public void setEventGroupCommitWindow(long windowInMilliseconds) {
+        this.eventGroupCommitWindow = windowInMilliseconds;
+    }
+
+    public int getEventGroupCommitMaxEvents() {
+        return eventGroupCommitMaxEvents;
+    }
+
+    /**
+     * Set the maximum number of batch events gathered in memory before writing them to
+     * the database in a single transaction. Default value is 200.
+     *
+     * @param maxEvents maximum number of events in one group-commit
+     */
+    public void setEventGroupCommitMaxEvents(int maxEvents) {
+        this.eventGroupCommitMaxEvents = maxEvents;
+    }
+
+    public int getEventStoreMaxRows() {
+        return eventStoreMaxRows;
+    }
+
+    public long getEventStoreMaxBytes() {
+        return eventStoreMaxBytes;
+    }
+
+    /**
+     * Set the maximum number of batch events and their total size kept on the device while
+     * waiting to be sent. When a limit is reached, the events are removed as per the
+     * {@link #setStoreEvictionPolicy(BlueshiftStoreQuota.EvictionPolicy)}. Set 0 to remove a
+     * limit. By default, there are no limits.
+     *
+     * @param maxRows  maximum number of events
+     * @param maxBytes maximum total size of the events in bytes
+     */
+    public void setEventStoreQuota(int maxRows, long maxBytes) {
+        this.eventStoreMaxRows = maxRows;
+        this.eventStoreMaxBytes = maxBytes;
+    }
+
+    public int getRequestQueueMaxRows() {
+        return requestQueueMaxRows;
+    }
+
+    public long getRequestQueueMaxBytes() {
+        return requestQueueMaxBytes;
+    }
+
+    /**
+     * Set the maximum number of api requests and their total size kept on the device while
+     * waiting to be sent. When a limit is reached, the requests are removed as per the
+     * {@link #setStoreEvictionPolicy(BlueshiftStoreQuota.EvictionPolicy)}. Set 0 to remove a
+     * limit. By default, there are no limits.
+     *
+     * @param maxRows  maximum number of requests
+     * @param maxBytes maximum total size of the requests in bytes
+     */
+    public void setRequestQueueQuota(int maxRows, long maxBytes) {
+        this.requestQueueMaxRows = maxRows;
+        this.requestQueueMaxBytes = maxBytes;
+    }
+
+    public BlueshiftStoreQuota.EvictionPolicy getStoreEvictionPolicy() {
+        return storeEvictionPolicy;
+    }
+
+    /**
+     * Set the policy used for removing events and requests when their quota is exceeded.
+     * Default value is {@link BlueshiftStoreQuota.EvictionPolicy#DROP_OLDEST}
+     * <p>
+     * The requests do not carry the event name, hence
+     * {@link BlueshiftStoreQuota.EvictionPolicy#COLLAPSE_BY_EVENT_NAME} applies to the events
+     * only. The request queue uses {@link BlueshiftStoreQuota.EvictionPolicy#DROP_OLDEST} instead.
+     *
+     * @param evictionPolicy valid eviction policy
+     */
+    public void setStoreEvictionPolicy(@NonNull BlueshiftStoreQuota.EvictionPolicy evictionPolicy) {
+        this.storeEvictionPolicy = evictionPolicy;
+    }
+
+    public boolean isStorageCompressionEnabled() {
+        return storageCompressionEnabled;
+    }
+
+    /**
+     * Enable/disable the compression of the events and requests stored on the device while
+     * waiting to be sent. The rows stored earlier stay readable when this is changed.
+     * Default value is false.
+     *
+     * @param storageCompressionEnabled true to store compressed data, else false
+     */
+    public void setStorageCompressionEnabled(boolean storageCompressionEnabled) {
+        this.storageCompressionEnabled = storageCompressionEnabled;
+    }
+
+    public HashMap<BlueshiftLambdaQueue.Lane, BlueshiftLambdaQueue.LaneConfig> getEventQueueLaneConfigs() {
+        return eventQueueLaneConfigs;
+    }
+
+    /**
+     * Set the capacity and the overflow policy of an event processing lane. By default, all the
+     * lanes are unbounded. A lane with the SUSPEND policy keeps up to twice its capacity, as the
+     * events are tracked without waiting for space, and drops its oldest block beyond that.
+     *
+     * @param lane   the lane to configure
+     * @param config capacity and overflow policy of the lane
+     */
+    public void setEventQueueLaneConfig(@NonNull BlueshiftLambdaQueue.Lane lane, @NonNull BlueshiftLambdaQueue.LaneConfig config) {
+        eventQueueLaneConfigs.put(lane, config);
+    }
+
+    public HashMap<String, BlueshiftEventRateLimit> getEventRateLimits() {
+        return eventRateLimits;
+    }
+
+    /**
+     * Limit the rate at which the events with the given name are tracked. The events going above
+     * the limit are dropped. By default, no event is rate limited.
+     *
+     * @param eventName       name of the event to limit
+     * @param eventsPerSecond the sustained rate of events allowed
+     * @param burst           the number of events allowed at once before the rate applies
+     */
+    public void setEventRateLimit(@NonNull String eventName, double eventsPerSecond, int burst) {
+        BlueshiftEventRateLimit current = eventRateLimits.get(eventName);
+        double sampleRate = current != null ? current.getSampleRate() : 1.0;
+        eventRateLimits.put(eventName, new BlueshiftEventRateLimit(eventsPerSecond, burst, sampleRate));
+    }
+
+    /**
+     * Track only a fraction of the events with the given name. The sampling is deterministic,
+     * a sample rate of 0.1 keeps exactly one event out of every ten. By default, all events are kept.
+     *
+     * @param eventName  name of the event to sample
+     * @param sampleRate the fraction of events to keep, between 0.0 and 1.0
+     */
+    public void setEventSampleRate(@NonNull String eventName, double sampleRate) {
+        BlueshiftEventRateLimit current = eventRateLimits.get(eventName);
+        double eventsPerSecond = current != null ? current.getEventsPerSecond() : 0;
+        int burst = current != null ? current.getBurst() : 1;
+        eventRateLimits.put(eventName, new BlueshiftEventRateLimit(eventsPerSecond, burst, sampleRate));
+    }
+
+    public long getDroppedEventsReportInterval() {
+        return droppedEventsReportInterval;
+    }
+
+    /**
+     * Report the number of events dropped by the rate limits and sampling, as a batch event
+     * sent at most once in the given interval. Default value is 0 (no report).
+     *
+     * @param droppedEventsReportInterval interval in milliseconds
+     */
+    public void setDroppedEventsReportInterval(long droppedEventsReportInterval) {
+        this.droppedEventsReportInterval = droppedEventsReportInterval;
+    }
+
+    public long getEventCoalescingWindow() {
+        return eventCoalescingWindow;
+    }
+
+    /**
+     * Merge the events with the same name and params that are tracked within the given window of
+     * the first one into one event. The merged event carries the number of events and the time of
+     * the first and the last one. The real-time events use a shorter window, see
+     * {@link #setRealtimeEventCoalescingWindow(long)}. The held events are written out when the
+     * app goes to the background. Default value is 0 (no coalescing).
+     *
+     * @param eventCoalescingWindow window in milliseconds
+     */
+    public void setEventCoalescingWindow(long eventCoalescingWindow) {
+        this.eventCoalescingWindow = eventCoalescingWindow;
+    }
+
+    public long getRealtimeEventCoalescingWindow() {
+        return realtimeEventCoalescingWindow;
+    }
+
+    /**
+     * The coalescing window of the real-time events, as holding them delays them by that much. It
+     * is never longer than the window set by {@link #setEventCoalescingWindow(long)}. Default
+     * value is 1000 (1 second), 0 turns the coalescing off for the real-time events.
+     *
+     * @param realtimeEventCoalescingWindow window in milliseconds
+     */
+    public void setRealtimeEventCoalescingWindow(long realtimeEventCoalescingWindow) {
+        this.realtimeEventCoalescingWindow = realtimeEventCoalescingWindow;
+    }
+
+    public long getRequestPriorityAging() {
+        return requestPriorityAging;
+    }
+
+    /**
+     * The queued requests are sent in the order of their priority (campaign tracking, then the
+     * real-time events, then the bulk events). A request moves up by one priority class for every
+     * interval it waits, so that the lower priority requests are not held back forever.
+     * Default value is 5 minutes. Set 0 to turn the aging off.
+     *
+     * @param requestPriorityAging interval in milliseconds
+     */
+    public void setRequestPriorityAging(long requestPriorityAging) {
+        this.requestPriorityAging = requestPriorityAging;
+    }
+
+    public int getMaxInFlightRequests() {
+        return maxInFlightRequests;
+    }
+
+    /**
+     * The number of queued requests sent in parallel while draining the request queue, ex: 4 for
+     * faster catch up on high latency networks after the device reconnects. The requests are
+     * still started in the order of their priority. Default value is 1 (one request at a time).
+     *
+     * @param maxInFlightRequests number of requests in flight at a time
+     */
+    public void setMaxInFlightRequests(int maxInFlightRequests) {
+        this.maxInFlightRequests = maxInFlightRequests;
+    }
+
+    public int getRealtimeEventBatchThreshold() {
+        return realtimeEventBatchThreshold;
+    }
+
+    /**
+     * When the request queue has more real-time events ready to send than this threshold (ex:
+     * after being offline for a while), they are sent together as bulk event requests instead of
+     * one request per event. A shallow queue is still sent one event at a time. Default value is
+     * 0 (always one request per event).
+     *
+     * @param realtimeEventBatchThreshold number of ready real-time events
+     */
+    public void setRealtimeEventBatchThreshold(int realtimeEventBatchThreshold) {
+        this.realtimeEventBatchThreshold = realtimeEventBatchThreshold;
+    }
+
+    public BlueshiftUploadPolicy getUploadPolicy() {
+        return uploadPolicy;
+    }
+
+    /**
+     * Decides when the queued events are uploaded, ex: hold the bulk events until the device is
+     * on an unmetered network or charging, and split a large backlog across several job runs.
+     * The campaign tracking and the real-time events are always sent on any network.
+     * See {@link BlueshiftUploadPolicy}. By default, everything is sent on any network.
+     *
+     * @param uploadPolicy valid upload policy
+     */
+    public void setUploadPolicy(BlueshiftUploadPolicy uploadPolicy) {
+        if (uploadPolicy != null) this.uploadPolicy = uploadPolicy;
+    }
+
+    public BlueshiftNetworkTransport getNetworkTransport() {
+        return networkTransport;
+    }
+
+    /**
+     * Replace the HTTP client used for sending the events to Blueshift, ex: with one that is
+     * backed by the OkHttp client of the app, for HTTP/2 and a shared connection pool. When not
+     * set, the SDK uses {@link BlueshiftUrlConnectionTransport}.
+     *
+     * @param networkTransport the transport to use, or null for the default one
+     */
+    public void setNetworkTransport(BlueshiftNetworkTransport networkTransport) {
+        this.networkTransport = networkTransport;
+    }
+
+    public int getNetworkConnectTimeout() {
+        return networkConnectTimeout;
+    }
+
+    /**
+     * Connect timeout of the default network transport. Default value is 15 seconds.
+     *
+     * @param networkConnectTimeout timeout in milliseconds
+     */
+    public void setNetworkConnectTimeout(int networkConnectTimeout) {
+        this.networkConnectTimeout = networkConnectTimeout;
+    }
+
+    public int getNetworkReadTimeout() {
+        return networkReadTimeout;
+    }
+
+    /**
+     * Read timeout of the default network transport. Default value is 30 seconds.
+     *
+     * @param networkReadTimeout timeout in milliseconds
+     */
+    public void setNetworkReadTimeout(int networkReadTimeout) {
+        this.networkReadTimeout = networkReadTimeout;
+    }
+
+    public int getRequestCompressionThreshold() {
+        return requestCompressionThreshold;
+    }
+
+    /**
+     * The request bodies of this size or more are sent gzip encoded by the default network
+     * transport. The bulk events compress well since the events repeat the same attributes. If
+     * the server does not accept the encoding, the bodies are sent as they are. Default value
+     * is 0 (no compression).
+     *
+     * @param requestCompressionThreshold size in bytes
+     */
+    public void setRequestCompressionThreshold(int requestCompressionThreshold) {
+        this.requestCompressionThreshold = requestCompressionThreshold;
+    }
+
+    public boolean isSingleStoreEnabled() {
+        return singleStoreEnabled;
+    }
+
+    /**
+     * Keep the batch events and the request queue in one WAL database, so that a batch of events
+     * moves into the request queue in one transaction (no duplicates after a crash, fewer disk
+     * syncs). The events and requests queued before turning this on or off are moved into the
+     * database in use, in the background, when the SDK is initialized. Default value is false.
+     *
+     * @param singleStoreEnabled true to use a single database, else false
+     */
+    public void setSingleStoreEnabled(boolean singleStoreEnabled) {
+        this.singleStoreEnabled = singleStoreEnabled;
+    }
+
     public int getSmallIconResId() {
         return smallIconResId == 0 ? appIcon : smallIconResId;
     }
@@ -229,6 +665,20 @@ public class Configuration {
         this.networkChangeListenerJobId = networkChangeListenerJobId;
     }
 
+    public int getUploadFollowUpJobId() {
+        return uploadFollowUpJobId;
+    }
+
+    /**
+     * Job id of the one-off job that uploads the backlog left behind by the periodic job, as
+     * decided by the {@link BlueshiftUploadPolicy}. Default value is 903.
+     *
+     * @param uploadFollowUpJobId a job id not used by the app
+     */
+    public void setUploadFollowUpJobId(int uploadFollowUpJobId) {
+        this.uploadFollowUpJobId = uploadFollowUpJobId;
+    }
+
     /**
      * @deprecated The field bulkEventsJobId is deprecated.
      * @return bulkEventsJobId
@@ -130,10 +130,20 @@ public class CommonUtils {
     }
 
     public static String getCurrentUtcTimestamp() {
+        return getUtcTimestamp(System.currentTimeMillis());
+    }
+
+    /**
+     * Formats the given epoch time in the same UTC format used by {@link #getCurrentUtcTimestamp()}.
+     *
+     * @param timeInMillis epoch time in milliseconds
+     * @return formatted UTC timestamp
+     */
+    public static String getUtcTimestamp(long timeInMillis) {
         String formatString = "yyyy-MM-dd'T'HH:mm:ss.SSSSSS'Z'";
         SimpleDateFormat sdf = new SimpleDateFormat(formatString, Locale.getDefault());
         sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
-        return sdf.format(new Date());
+        return sdf.format(new Date(timeInMillis));
     }
 
     public static long iso8601ToEpochSeconds(String iso8601String) {
@@ -1,12 +1,22 @@
 package com.blueshift.core
 
+import android.content.Context
 import android.util.Log
+import com.blueshift.BlueshiftAttributesApp
+import com.blueshift.BlueshiftAttributesUser
 import com.blueshift.core.events.BlueshiftEvent
 import com.blueshift.core.events.FakeEventsRepo
 import com.blueshift.core.network.FakeNetworkRequestRepo
+import com.blueshift.core.schedule.network.BlueshiftConnectivityMonitor
 import io.mockk.every
+import io.mockk.mockk
+import io.mockk.mockkObject
 import io.mockk.mockkStatic
+import io.mockk.unmockkObject
+import io.mockk.unmockkStatic
+import kotlinx.coroutines.CompletableDeferred
 import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
 import org.json.JSONObject
 import org.junit.After
 import org.junit.Before
@@ -119,6 +129,32 @@ class BlueshiftEventManagerTest {
             assert(fakeEventsRepo.blueshiftEvents.size == 0)
         }
 
+    @Test
+    fun clearAsync_shouldClearTheEventsTrackedBeforeIt() = runBlocking {
+        val release = CompletableDeferred<Unit>()
+        val done = CompletableDeferred<Unit>()
+
+        // keep the batch events lane busy, so that the clear is pushed before the events are stored.
+        BlueshiftLambdaQueue.push(BlueshiftLambdaQueue.Lane.BATCH_EVENTS) { release.await() }
+
+        BlueshiftEventManager.enqueueEvent(
+            BlueshiftEvent(id = 1, eventName = "batch", eventParams = JSONObject(), timestamp = 0L),
+            isBatchEvent = true
+        )
+        BlueshiftEventManager.enqueueEvent(
+            BlueshiftEvent(id = 2, eventName = "realtime", eventParams = JSONObject(), timestamp = 0L),
+            isBatchEvent = false
+        )
+        BlueshiftEventManager.clearAsync()
+
+        release.complete(Unit)
+        BlueshiftLambdaQueue.pushBarrier { done.complete(Unit) }
+        withTimeout(5000) { done.await() }
+
+        assert(fakeEventsRepo.blueshiftEvents.isEmpty())
+        assert(fakeNetworkRequestRepo.requests.isEmpty())
+    }
+
     @Test
     fun clear_shouldDeleteAllEventsAndNetworkRequests() = runBlocking {
         BlueshiftEventManager.trackEvent(
@@ -146,4 +182,96 @@ class BlueshiftEventManagerTest {
         assert(fakeNetworkRequestRepo.requests.size == 0)
         assert(fakeEventsRepo.blueshiftEvents.size == 0)
     }
+
+    /**
+     * Mocks the app and user attributes and the connectivity check, recording the threads the
+     * enrichment ran on.
+     */
+    private fun mockEnrichment(enrichmentThreads: MutableList<Thread>) {
+        val appAttributes = mockk<BlueshiftAttributesApp>(relaxed = true)
+        every { appAttributes.sync(any()) } answers {
+            enrichmentThreads.add(Thread.currentThread())
+            appAttributes
+        }
+        mockkStatic(BlueshiftAttributesApp::class)
+        every { BlueshiftAttributesApp.getInstance() } returns appAttributes
+
+        val userAttributes = mockk<BlueshiftAttributesUser>(relaxed = true)
+        every { userAttributes.sync(any()) } answers {
+            enrichmentThreads.add(Thread.currentThread())
+            userAttributes
+        }
+        mockkStatic(BlueshiftAttributesUser::class)
+        every { BlueshiftAttributesUser.getInstance() } returns userAttributes
+
+        mockkObject(BlueshiftConnectivityMonitor)
+        every { BlueshiftConnectivityMonitor.isConnected(any()) } answers {
+            enrichmentThreads.add(Thread.currentThread())
+            true
+        }
+    }
+
+    private fun unmockEnrichment() {
+        unmockkStatic(BlueshiftAttributesApp::class)
+        unmockkStatic(BlueshiftAttributesUser::class)
+        unmockkObject(BlueshiftConnectivityMonitor)
+    }
+
+    @Test
+    fun trackEventWithData_shouldEnrichTheEventOffTheCallerThread() = runBlocking {
+        val enrichmentThreads = mutableListOf<Thread>()
+        mockEnrichment(enrichmentThreads)
+        val context = mockk<Context> { every { applicationContext } returns this@mockk }
+        val release = CompletableDeferred<Unit>()
+        val done = CompletableDeferred<Unit>()
+
+        try {
+            // keep the batch events lane busy, so that nothing tracked can be processed yet.
+            BlueshiftLambdaQueue.push(BlueshiftLambdaQueue.Lane.BATCH_EVENTS) { release.await() }
+
+            BlueshiftEventManager.trackEventWithData(context, "test_event", hashMapOf("sku" to "123"), true)
+
+            // the call returned without touching the attributes or the network state.
+            assert(enrichmentThreads.isEmpty())
+
+            release.complete(Unit)
+            BlueshiftLambdaQueue.pushBarrier { done.complete(Unit) }
+            withTimeout(5000) { done.await() }
+
+            assert(enrichmentThreads.size == 3)
+            assert(enrichmentThreads.none { it == Thread.currentThread() })
+            assert(fakeEventsRepo.blueshiftEvents.map { it.eventName } == listOf("test_event"))
+        } finally {
+            release.complete(Unit)
+            unmockEnrichment()
+        }
+    }
+
+    @Test
+    fun trackEventWithData_shouldStampTheEventWithTheTrackingTime() = runBlocking {
+        mockEnrichment(mutableListOf())
+        val context = mockk<Context> { every { applicationContext } returns this@mockk }
+        val release = CompletableDeferred<Unit>()
+        val done = CompletableDeferred<Unit>()
+
+        try {
+            BlueshiftLambdaQueue.push(BlueshiftLambdaQueue.Lane.BATCH_EVENTS) { release.await() }
+
+            val trackedAfter = System.currentTimeMillis()
+            BlueshiftEventManager.trackEventWithData(context, "test_event", null, true)
+            val trackedBefore = System.currentTimeMillis()
+
+            // the event waits in the queue, which should not shift its timestamp.
+            Thread.sleep(50)
+            release.complete(Unit)
+            BlueshiftLambdaQueue.pushBarrier { done.complete(Unit) }
+            withTimeout(5000) { done.await() }
+
+            val event = fakeEventsRepo.blueshiftEvents.single()
+            assert(event.timestamp in trackedAfter..trackedBefore)
+        } finally {
+            release.complete(Unit)
+            unmockEnrichment()
+        }
+    }
 }
@@ -0,0 +1,80 @@
+package com.blueshift.core
+
+import com.blueshift.core.common.BlueshiftMetrics
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.Test
+import java.util.Collections
+
+class BlueshiftLambdaQueueTest {
+
+    @Test
+    fun push_shouldRunTheBlocksOfALaneInTheOrderTheyWerePushed() = runBlocking {
+        val results = Collections.synchronizedList(mutableListOf<Int>())
+        val done = CompletableDeferred<Unit>()
+
+        for (i in 1..100) {
+            BlueshiftLambdaQueue.push(BlueshiftLambdaQueue.Lane.BATCH_EVENTS) {
+                results.add(i)
+                if (i == 100) done.complete(Unit)
+            }
+        }
+
+        withTimeout(5000) { done.await() }
+
+        assert(results == (1..100).toList())
+    }
+
+    @Test
+    fun push_shouldNotBlockALaneWhenAnotherLaneIsBusy() = runBlocking {
+        val release = CompletableDeferred<Unit>()
+        val done = CompletableDeferred<Unit>()
+
+        // keep the campaign lane busy until the realtime lane completes its block
+        BlueshiftLambdaQueue.push(BlueshiftLambdaQueue.Lane.CAMPAIGN_EVENTS) { release.await() }
+        BlueshiftLambdaQueue.push(BlueshiftLambdaQueue.Lane.REALTIME_EVENTS) { done.complete(Unit) }
+
+        withTimeout(5000) { done.await() }
+        release.complete(Unit)
+
+        assert(done.isCompleted)
+    }
+
+    @Test
+    fun pushBarrier_shouldRunAfterTheBlocksPushedBeforeItOnEveryLane() = runBlocking {
+        val results = Collections.synchronizedList(mutableListOf<String>())
+        val release = CompletableDeferred<Unit>()
+        val done = CompletableDeferred<Unit>()
+
+        BlueshiftLambdaQueue.push(BlueshiftLambdaQueue.Lane.BATCH_EVENTS) {
+            release.await()
+            results.add("before")
+        }
+        BlueshiftLambdaQueue.pushBarrier { results.add("barrier") }
+        BlueshiftLambdaQueue.push(BlueshiftLambdaQueue.Lane.BATCH_EVENTS) {
+            results.add("after")
+            done.complete(Unit)
+        }
+
+        release.complete(Unit)
+        withTimeout(5000) { done.await() }
+
+        assert(results == listOf("before", "barrier", "after"))
+    }
+
+    @Test
+    fun push_shouldNotKeepMoreThanTwiceTheCapacityOfASuspendLane() {
+        BlueshiftMetrics.reset()
+        val laneQueue = BlueshiftLambdaQueue.LaneQueue(
+            BlueshiftLambdaQueue.Lane.BATCH_EVENTS,
+            BlueshiftLambdaQueue.LaneConfig(capacity = 2, overflowPolicy = BlueshiftLambdaQueue.OverflowPolicy.SUSPEND),
+        )
+
+        // no consumer is running, hence every block stays in the lane.
+        repeat(6) { laneQueue.offer({}, isBarrier = false) }
+
+        assert(laneQueue.size == 4)
+        assert(BlueshiftMetrics.get(BlueshiftMetrics.DROPPED_BLOCKS) == 2L)
+    }
+}
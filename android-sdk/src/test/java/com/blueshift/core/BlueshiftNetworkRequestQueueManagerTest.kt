@@ -1,17 +1,28 @@
 package com.blueshift.core
 
 import android.util.Log
+import com.blueshift.core.common.BlueshiftAPI
+import com.blueshift.core.events.BlueshiftEventBatchPolicy
+import com.blueshift.core.network.BlueshiftCircuitBreaker
 import com.blueshift.core.network.BlueshiftNetworkConfiguration
+import com.blueshift.core.network.BlueshiftNetworkRepository
 import com.blueshift.core.network.BlueshiftNetworkRequest
+import com.blueshift.core.network.BlueshiftNetworkRequestRepository
+import com.blueshift.core.network.BlueshiftNetworkResponse
 import com.blueshift.core.network.FakeNetworkRepoWithAPIError
 import com.blueshift.core.network.FakeNetworkRepoWithAPISuccess
 import com.blueshift.core.network.FakeNetworkRequestRepo
+import com.blueshift.core.schedule.network.BlueshiftUploadPolicy
 import io.mockk.every
 import io.mockk.mockkStatic
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
 import org.junit.After
 import org.junit.Before
 import org.junit.Test
+import java.util.UUID
 
 class BlueshiftNetworkRequestQueueManagerTest {
     private lateinit var networkRequestRepo: FakeNetworkRequestRepo
@@ -155,4 +166,541 @@ class BlueshiftNetworkRequestQueueManagerTest {
 
         assert(networkRequestRepo.requests.size == REQUEST_COUNT)
     }
-}
\ No newline at end of file
+
+    @Test
+    fun sync_ShouldNotResendAnAcknowledgedRequestWhoseDeleteFailed() = runBlocking {
+        mockkStatic(Log::class)
+        every { Log.d(any(), any()) } returns 0
+
+        networkRequestRepo.requests.clear()
+        networkRequestRepo.insertRequest(
+            BlueshiftNetworkRequest(
+                id = 1,
+                url = "https://fakeapi.com",
+                method = BlueshiftNetworkRequest.Method.GET,
+                idempotencyKey = "key-1"
+            )
+        )
+
+        var failWriteBack = true
+        val requestRepo = object : BlueshiftNetworkRequestRepository by networkRequestRepo {
+            override suspend fun writeBack(
+                acknowledged: List<BlueshiftNetworkRequest>,
+                retries: List<BlueshiftNetworkRequest>,
+                completed: List<BlueshiftNetworkRequest>,
+            ) {
+                if (failWriteBack) {
+                    failWriteBack = false
+                    throw IllegalStateException("write back failed")
+                }
+                networkRequestRepo.writeBack(acknowledged, retries, completed)
+            }
+        }
+
+        var sentCount = 0
+        val networkRepo = object : BlueshiftNetworkRepository {
+            override suspend fun makeNetworkRequest(networkRequest: BlueshiftNetworkRequest): BlueshiftNetworkResponse {
+                sentCount++
+                return BlueshiftNetworkResponse(responseCode = 200, responseBody = "")
+            }
+        }
+
+        val requestQueueManager = BlueshiftNetworkRequestQueueManager
+        requestQueueManager.initialize(requestRepo, networkRepo)
+
+        try {
+            requestQueueManager.sync()
+        } catch (_: IllegalStateException) {
+        }
+        requestQueueManager.sync()
+
+        // The request should be sent once and removed by the second sync
+        assert(sentCount == 1)
+        assert(networkRequestRepo.requests.isEmpty())
+    }
+
+    @Test
+    fun sync_ShouldKeepTheAcknowledgementWhenTheDeleteFails() = runBlocking {
+        mockkStatic(Log::class)
+        every { Log.d(any(), any()) } returns 0
+
+        networkRequestRepo.requests.clear()
+        networkRequestRepo.insertRequest(
+            BlueshiftNetworkRequest(
+                id = 1,
+                url = "https://fakeapi.com",
+                method = BlueshiftNetworkRequest.Method.GET,
+                idempotencyKey = UUID.randomUUID().toString()
+            )
+        )
+
+        // the acknowledgements are written, the delete fails.
+        val requestRepo = object : BlueshiftNetworkRequestRepository by networkRequestRepo {
+            override suspend fun writeBack(
+                acknowledged: List<BlueshiftNetworkRequest>,
+                retries: List<BlueshiftNetworkRequest>,
+                completed: List<BlueshiftNetworkRequest>,
+            ) {
+                networkRequestRepo.writeBack(acknowledged, retries, emptyList())
+            }
+        }
+
+        val requestQueueManager = BlueshiftNetworkRequestQueueManager
+        requestQueueManager.initialize(requestRepo, FakeNetworkRepoWithAPISuccess())
+
+        requestQueueManager.sync()
+
+        // The request left in the queue should be known as acknowledged, even after a restart
+        assert(networkRequestRepo.requests.size == 1)
+        assert(networkRequestRepo.requests[0].isAcknowledged)
+    }
+
+    @Test
+    fun sync_ShouldSyncAgainWhenAskedWhileRunning() = runBlocking {
+        mockkStatic(Log::class)
+        every { Log.d(any(), any()) } returns 0
+
+        val requestQueueManager = BlueshiftNetworkRequestQueueManager
+        var skippedSyncCount = -1
+        val requestRepo = object : BlueshiftNetworkRequestRepository by networkRequestRepo {
+            override suspend fun readNextRequests(
+                limit: Int, bulkCreatedBefore: Long
+            ): List<BlueshiftNetworkRequest> {
+                val networkRequests = networkRequestRepo.readNextRequests(limit, bulkCreatedBefore)
+                if (networkRequests.isEmpty() && skippedSyncCount < 0) {
+                    // a request comes in after the running sync found the queue empty.
+                    networkRequestRepo.insertRequest(
+                        BlueshiftNetworkRequest(id = 100, url = "https://fakeapi.com", method = BlueshiftNetworkRequest.Method.GET)
+                    )
+                    skippedSyncCount = requestQueueManager.sync()
+                }
+                return networkRequests
+            }
+        }
+
+        requestQueueManager.initialize(requestRepo, FakeNetworkRepoWithAPISuccess())
+
+        val requestCount = requestQueueManager.sync()
+
+        requestQueueManager.initialize(networkRequestRepo, FakeNetworkRepoWithAPISuccess())
+
+        // the second sync is skipped, the running one goes again and sends the new request.
+        assert(skippedSyncCount == 0)
+        assert(requestCount == REQUEST_COUNT + 1)
+        assert(networkRequestRepo.requests.isEmpty())
+    }
+
+    @Test
+    fun sync_ShouldNotExceedTheMaxInFlightRequests() = runBlocking {
+        mockkStatic(Log::class)
+        every { Log.d(any(), any()) } returns 0
+
+        (3..10).forEach {
+            networkRequestRepo.insertRequest(
+                BlueshiftNetworkRequest(id = it.toLong(), url = "https://fakeapi.com", method = BlueshiftNetworkRequest.Method.GET)
+            )
+        }
+
+        var inFlight = 0
+        var maxInFlight = 0
+        val startOrder = mutableListOf<Long>()
+        val networkRepo = object : BlueshiftNetworkRepository {
+            override suspend fun makeNetworkRequest(networkRequest: BlueshiftNetworkRequest): BlueshiftNetworkResponse {
+                startOrder.add(networkRequest.id)
+                inFlight++
+                maxInFlight = maxOf(maxInFlight, inFlight)
+                delay(10)
+                inFlight--
+                return BlueshiftNetworkResponse(responseCode = 200, responseBody = "")
+            }
+        }
+
+        val requestQueueManager = BlueshiftNetworkRequestQueueManager
+        requestQueueManager.initialize(networkRequestRepo, networkRepo, maxInFlightRequests = 3)
+
+        requestQueueManager.sync()
+
+        requestQueueManager.initialize(networkRequestRepo, networkRepo)
+
+        assert(maxInFlight == 3)
+        assert(startOrder == (1L..10L).toList())
+        assert(networkRequestRepo.requests.isEmpty())
+    }
+
+    @Test
+    fun sync_ShouldWriteTheCompletedRequestsInOneBatch() = runBlocking {
+        mockkStatic(Log::class)
+        every { Log.d(any(), any()) } returns 0
+
+        val deleteBatches = mutableListOf<Int>()
+        val requestRepo = object : BlueshiftNetworkRequestRepository by networkRequestRepo {
+            override suspend fun writeBack(
+                acknowledged: List<BlueshiftNetworkRequest>,
+                retries: List<BlueshiftNetworkRequest>,
+                completed: List<BlueshiftNetworkRequest>,
+            ) {
+                if (completed.isNotEmpty()) deleteBatches.add(completed.size)
+                networkRequestRepo.writeBack(acknowledged, retries, completed)
+            }
+        }
+
+        val requestQueueManager = BlueshiftNetworkRequestQueueManager
+        requestQueueManager.initialize(requestRepo, FakeNetworkRepoWithAPISuccess(), maxInFlightRequests = 2)
+
+        requestQueueManager.sync()
+
+        requestQueueManager.initialize(networkRequestRepo, FakeNetworkRepoWithAPISuccess())
+
+        assert(deleteBatches == listOf(REQUEST_COUNT))
+        assert(networkRequestRepo.requests.isEmpty())
+    }
+
+    @Test
+    fun sync_ShouldKeepTheUnsentRequestsWhenThereIsNoInternet() = runBlocking {
+        mockkStatic(Log::class)
+        every { Log.d(any(), any()) } returns 0
+
+        var sentCount = 0
+        val networkRepo = object : BlueshiftNetworkRepository {
+            override suspend fun makeNetworkRequest(networkRequest: BlueshiftNetworkRequest): BlueshiftNetworkResponse {
+                sentCount++
+                return BlueshiftNetworkResponse(responseCode = 0, responseBody = "")
+            }
+        }
+
+        val requestQueueManager = BlueshiftNetworkRequestQueueManager
+        requestQueueManager.initialize(networkRequestRepo, networkRepo)
+
+        requestQueueManager.sync()
+
+        assert(sentCount == 1)
+        assert(networkRequestRepo.requests.filter { it.retryAttemptBalance == 3 }.size == REQUEST_COUNT)
+    }
+
+    @Test
+    fun sync_ShouldDeferTheRequestsToAPausedEndpointWithoutUsingARetryAttempt() = runBlocking {
+        mockkStatic(Log::class)
+        every { Log.d(any(), any()) } returns 0
+
+        val circuitBreaker = BlueshiftCircuitBreaker(failureThreshold = 1, openMillis = 60000)
+
+        val requestQueueManager = BlueshiftNetworkRequestQueueManager
+        requestQueueManager.initialize(
+            networkRequestRepo, FakeNetworkRepoWithAPIError(), circuitBreaker = circuitBreaker
+        )
+
+        requestQueueManager.sync()
+
+        requestQueueManager.initialize(networkRequestRepo, FakeNetworkRepoWithAPIError())
+
+        // the first request trips the breaker, the second one waits for it without being sent.
+        assert(networkRequestRepo.requests.map { it.retryAttemptBalance } == listOf(2, 3))
+        assert(networkRequestRepo.requests[1].retryAttemptTimestamp == circuitBreaker.reopensAt("https://fakeapi.com"))
+    }
+
+    private fun realtimeEventRequests(count: Int) = (1..count).map {
+        BlueshiftNetworkRequest(
+            id = 100L + it,
+            url = BlueshiftAPI.eventURL(),
+            method = BlueshiftNetworkRequest.Method.POST,
+            bodyBytes = "{\"event\":\"e$it\"}".toByteArray(),
+            // unique keys, the acknowledged keys are remembered across the tests.
+            idempotencyKey = UUID.randomUUID().toString()
+        )
+    }
+
+    @Test
+    fun sync_ShouldFoldTheReadyRealtimeEventsIntoABulkEventWhenAboveTheThreshold() = runBlocking {
+        mockkStatic(Log::class)
+        every { Log.d(any(), any()) } returns 0
+
+        networkRequestRepo.requests.clear()
+        realtimeEventRequests(5).forEach { networkRequestRepo.insertRequest(it) }
+
+        val sent = mutableListOf<BlueshiftNetworkRequest>()
+        val networkRepo = object : BlueshiftNetworkRepository {
+            override suspend fun makeNetworkRequest(networkRequest: BlueshiftNetworkRequest): BlueshiftNetworkResponse {
+                sent.add(networkRequest)
+                return BlueshiftNetworkResponse(responseCode = 200, responseBody = "")
+            }
+        }
+
+        val requestQueueManager = BlueshiftNetworkRequestQueueManager
+        requestQueueManager.initialize(networkRequestRepo, networkRepo, realtimeBatchThreshold = 3)
+
+        requestQueueManager.sync()
+
+        requestQueueManager.initialize(networkRequestRepo, networkRepo)
+
+        assert(sent.size == 1)
+        assert(sent[0].url == BlueshiftAPI.bulkEventsURL())
+        assert(String(sent[0].bodyBytes!!) == "{\"events\":[" + (1..5).joinToString(",") { "{\"event\":\"e$it\"}" } + "]}")
+        assert(networkRequestRepo.requests.isEmpty())
+    }
+
+    @Test
+    fun sync_ShouldFoldTheRealtimeEventsWithinTheConfiguredBatchPolicy() = runBlocking {
+        mockkStatic(Log::class)
+        every { Log.d(any(), any()) } returns 0
+
+        networkRequestRepo.requests.clear()
+        realtimeEventRequests(5).forEach { networkRequestRepo.insertRequest(it) }
+
+        val sent = mutableListOf<BlueshiftNetworkRequest>()
+        val networkRepo = object : BlueshiftNetworkRepository {
+            override suspend fun makeNetworkRequest(networkRequest: BlueshiftNetworkRequest): BlueshiftNetworkResponse {
+                sent.add(networkRequest)
+                return BlueshiftNetworkResponse(responseCode = 200, responseBody = "")
+            }
+        }
+
+        val requestQueueManager = BlueshiftNetworkRequestQueueManager
+        requestQueueManager.initialize(
+            networkRequestRepo, networkRepo, realtimeBatchThreshold = 3,
+            batchPolicy = BlueshiftEventBatchPolicy(maxCount = 2)
+        )
+
+        requestQueueManager.sync()
+
+        requestQueueManager.initialize(networkRequestRepo, networkRepo)
+
+        // a page of 4 events folded into 2 bulk event requests, then the 1 event left on its own
+        assert(sent.map { it.url } == List(2) { BlueshiftAPI.bulkEventsURL() } + BlueshiftAPI.eventURL())
+        assert(sent.take(2).all { String(it.bodyBytes!!).split("\"event\"").size - 1 == 2 })
+        assert(networkRequestRepo.requests.isEmpty())
+    }
+
+    @Test
+    fun sync_ShouldSendTheRealtimeEventsOneByOneWhenTheQueueIsShallow() = runBlocking {
+        mockkStatic(Log::class)
+        every { Log.d(any(), any()) } returns 0
+
+        networkRequestRepo.requests.clear()
+        realtimeEventRequests(3).forEach { networkRequestRepo.insertRequest(it) }
+
+        val sentUrls = mutableListOf<String>()
+        val networkRepo = object : BlueshiftNetworkRepository {
+            override suspend fun makeNetworkRequest(networkRequest: BlueshiftNetworkRequest): BlueshiftNetworkResponse {
+                sentUrls.add(networkRequest.url)
+                return BlueshiftNetworkResponse(responseCode = 200, responseBody = "")
+            }
+        }
+
+        val requestQueueManager = BlueshiftNetworkRequestQueueManager
+        requestQueueManager.initialize(networkRequestRepo, networkRepo, realtimeBatchThreshold = 3)
+
+        requestQueueManager.sync()
+
+        requestQueueManager.initialize(networkRequestRepo, networkRepo)
+
+        assert(sentUrls == List(3) { BlueshiftAPI.eventURL() })
+        assert(networkRequestRepo.requests.isEmpty())
+    }
+
+    @Test
+    fun sync_ShouldSendTheRealtimeEventsOneByOneWhenTheBulkEventIsRejected() = runBlocking {
+        mockkStatic(Log::class)
+        every { Log.d(any(), any()) } returns 0
+
+        networkRequestRepo.requests.clear()
+        realtimeEventRequests(5).forEach { networkRequestRepo.insertRequest(it) }
+
+        val sentUrls = mutableListOf<String>()
+        val networkRepo = object : BlueshiftNetworkRepository {
+            override suspend fun makeNetworkRequest(networkRequest: BlueshiftNetworkRequest): BlueshiftNetworkResponse {
+                sentUrls.add(networkRequest.url)
+                val responseCode = if (networkRequest.url == BlueshiftAPI.bulkEventsURL()) 400 else 200
+                return BlueshiftNetworkResponse(responseCode = responseCode, responseBody = "")
+            }
+        }
+
+        val requestQueueManager = BlueshiftNetworkRequestQueueManager
+        requestQueueManager.initialize(networkRequestRepo, networkRepo, realtimeBatchThreshold = 3)
+
+        requestQueueManager.sync()
+
+        requestQueueManager.initialize(networkRequestRepo, networkRepo)
+
+        assert(sentUrls == listOf(BlueshiftAPI.bulkEventsURL()) + List(5) { BlueshiftAPI.eventURL() })
+        assert(networkRequestRepo.requests.isEmpty())
+    }
+
+    @Test
+    fun sync_ShouldRetryAllTheFoldedRealtimeEventsLaterWhenTheBulkEventFails() = runBlocking {
+        mockkStatic(Log::class)
+        every { Log.d(any(), any()) } returns 0
+
+        networkRequestRepo.requests.clear()
+        realtimeEventRequests(5).forEach { networkRequestRepo.insertRequest(it) }
+
+        val sentUrls = mutableListOf<String>()
+        val networkRepo = object : BlueshiftNetworkRepository {
+            override suspend fun makeNetworkRequest(networkRequest: BlueshiftNetworkRequest): BlueshiftNetworkResponse {
+                sentUrls.add(networkRequest.url)
+                return BlueshiftNetworkResponse(responseCode = 503, responseBody = "")
+            }
+        }
+
+        val requestQueueManager = BlueshiftNetworkRequestQueueManager
+        requestQueueManager.initialize(networkRequestRepo, networkRepo, realtimeBatchThreshold = 3)
+
+        requestQueueManager.sync()
+
+        requestQueueManager.initialize(networkRequestRepo, networkRepo)
+
+        // one failure of the bulk event uses up one retry attempt of every member.
+        assert(sentUrls == listOf(BlueshiftAPI.bulkEventsURL()))
+        assert(networkRequestRepo.requests.size == 5)
+        assert(networkRequestRepo.requests.all { it.retryAttemptBalance == 2 && it.retryAttemptTimestamp != 0L })
+    }
+
+    @Test
+    fun sync_ShouldHoldTheRecentBulkRequestsOnAMeteredNetwork() = runBlocking {
+        mockkStatic(Log::class)
+        every { Log.d(any(), any()) } returns 0
+
+        val now = System.currentTimeMillis()
+        networkRequestRepo.requests.clear()
+        listOf(now, now - 120_000).forEachIndexed { index, timestamp ->
+            networkRequestRepo.insertRequest(
+                BlueshiftNetworkRequest(
+                    id = 10L + index,
+                    url = "https://fakeapi.com/bulk",
+                    method = BlueshiftNetworkRequest.Method.POST,
+                    timestamp = timestamp,
+                    priority = BlueshiftNetworkRequest.Priority.BULK,
+                )
+            )
+        }
+        networkRequestRepo.insertRequest(
+            BlueshiftNetworkRequest(
+                id = 20, url = "https://fakeapi.com", method = BlueshiftNetworkRequest.Method.GET
+            )
+        )
+
+        val requestQueueManager = BlueshiftNetworkRequestQueueManager
+        requestQueueManager.initialize(networkRequestRepo, FakeNetworkRepoWithAPISuccess())
+        requestQueueManager.configureUploadPolicy(BlueshiftUploadPolicy(true, 60_000), null)
+
+        try {
+            requestQueueManager.sync()
+        } finally {
+            requestQueueManager.configureUploadPolicy(BlueshiftUploadPolicy(), null)
+        }
+
+        // the bulk request older than the max deferral is sent along with the normal one.
+        assert(networkRequestRepo.requests.map { it.id } == listOf(10L))
+    }
+
+    @Test
+    fun readHeldBulkBacklog_ShouldCountOnlyTheBulkRequestsHeldBack() = runBlocking {
+        val now = System.currentTimeMillis()
+        networkRequestRepo.requests.clear()
+
+        val requestQueueManager = BlueshiftNetworkRequestQueueManager
+        requestQueueManager.initialize(networkRequestRepo, FakeNetworkRepoWithAPISuccess())
+        requestQueueManager.configureUploadPolicy(BlueshiftUploadPolicy(true, 60_000), null)
+
+        try {
+            // holding back the bulk requests, but there are none.
+            assert(requestQueueManager.readHeldBulkBacklog().count == 0L)
+
+            networkRequestRepo.insertRequest(
+                BlueshiftNetworkRequest(
+                    id = 10,
+                    url = "https://fakeapi.com/bulk",
+                    method = BlueshiftNetworkRequest.Method.POST,
+                    timestamp = now,
+                    priority = BlueshiftNetworkRequest.Priority.BULK,
+                )
+            )
+            // waiting for its retry time, not held back by the upload policy.
+            networkRequestRepo.insertRequest(
+                BlueshiftNetworkRequest(
+                    id = 20,
+                    url = "https://fakeapi.com",
+                    method = BlueshiftNetworkRequest.Method.GET,
+                    retryAttemptTimestamp = now + 60_000,
+                )
+            )
+
+            assert(requestQueueManager.readHeldBulkBacklog().count == 1L)
+            assert(requestQueueManager.readHeldBulkBacklog().oldestTimestamp == now)
+            assert(requestQueueManager.readBacklog().count == 0L)
+        } finally {
+            requestQueueManager.configureUploadPolicy(BlueshiftUploadPolicy(), null)
+        }
+    }
+
+    @Test
+    fun sync_ShouldStopAtTheGivenNumberOfRequests() = runBlocking {
+        mockkStatic(Log::class)
+        every { Log.d(any(), any()) } returns 0
+
+        val requestQueueManager = BlueshiftNetworkRequestQueueManager
+        requestQueueManager.initialize(networkRequestRepo, FakeNetworkRepoWithAPISuccess())
+
+        val requestCount = requestQueueManager.sync(maxRequests = 1)
+
+        assert(requestCount == 1)
+        assert(networkRequestRepo.requests.size == REQUEST_COUNT - 1)
+        assert(requestQueueManager.readBacklog().count == REQUEST_COUNT - 1L)
+    }
+
+    @Test
+    fun sync_ShouldNotPickNewRequestsAfterTheDeadline() = runBlocking {
+        mockkStatic(Log::class)
+        every { Log.d(any(), any()) } returns 0
+
+        val requestQueueManager = BlueshiftNetworkRequestQueueManager
+        requestQueueManager.initialize(networkRequestRepo, FakeNetworkRepoWithAPISuccess())
+
+        val requestCount = requestQueueManager.sync(deadline = System.currentTimeMillis() - 1)
+
+        assert(requestCount == 0)
+        assert(networkRequestRepo.requests.size == REQUEST_COUNT)
+    }
+
+    @Test
+    fun sync_ShouldWriteBackTheSentRequestsWhenCancelled() = runBlocking {
+        mockkStatic(Log::class)
+        every { Log.d(any(), any()) } returns 0
+
+        networkRequestRepo.insertRequest(
+            BlueshiftNetworkRequest(
+                id = REQUEST_COUNT + 1L,
+                url = "https://fakeapi.com",
+                method = BlueshiftNetworkRequest.Method.GET,
+            )
+        )
+
+        var sentCount = 0
+        val inFlight = CompletableDeferred<Unit>()
+        val response = CompletableDeferred<Unit>()
+        val networkRepo = object : BlueshiftNetworkRepository {
+            override suspend fun makeNetworkRequest(networkRequest: BlueshiftNetworkRequest): BlueshiftNetworkResponse {
+                sentCount++
+                if (sentCount == 2) {
+                    inFlight.complete(Unit)
+                    response.await()
+                }
+                return BlueshiftNetworkResponse(responseCode = 200, responseBody = "")
+            }
+        }
+
+        val requestQueueManager = BlueshiftNetworkRequestQueueManager
+        requestQueueManager.initialize(networkRequestRepo, networkRepo)
+
+        val sync = launch { requestQueueManager.sync() }
+        inFlight.await()
+        sync.cancel()
+        response.complete(Unit)
+        sync.join()
+
+        // the request in flight when cancelled is awaited and deleted with the first one. The
+        // last request is not started and stays in the queue untouched.
+        assert(sentCount == 2)
+        assert(networkRequestRepo.requests.map { it.id } == listOf(REQUEST_COUNT + 1L))
+        assert(networkRequestRepo.requests.all { it.retryAttemptBalance == 3 })
+    }
+}
@@ -0,0 +1,31 @@
+package com.blueshift.core.common
+
+import org.json.JSONObject
+import org.junit.Test
+
+class BlueshiftJsonBytesTest {
+    private fun bytes(json: String) = json.toByteArray(Charsets.UTF_8)
+
+    @Test
+    fun merge_shouldJoinTheKeysOfBothObjects() {
+        val merged = BlueshiftJsonBytes.merge(bytes("{\"event\":\"view\"}"), bytes("{\"app_name\":\"ü\"}"))
+
+        assert(String(merged, Charsets.UTF_8) == "{\"event\":\"view\",\"app_name\":\"ü\"}")
+        assert(JSONObject(String(merged, Charsets.UTF_8)).length() == 2)
+    }
+
+    @Test
+    fun merge_shouldReturnTheFirstObjectWhenTheSecondIsMissingOrEmpty() {
+        val first = bytes("{\"event\":\"view\"}")
+
+        assert(BlueshiftJsonBytes.merge(first, null) === first)
+        assert(BlueshiftJsonBytes.merge(first, bytes("{ }")) === first)
+    }
+
+    @Test
+    fun merge_shouldReturnTheSecondObjectWhenTheFirstIsEmpty() {
+        val second = bytes("{\"app_name\":\"test\"}")
+
+        assert(BlueshiftJsonBytes.merge(bytes("{}"), second) === second)
+    }
+}
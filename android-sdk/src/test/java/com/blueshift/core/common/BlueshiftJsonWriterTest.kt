@@ -0,0 +1,67 @@
+package com.blueshift.core.common
+
+import org.json.JSONArray
+import org.json.JSONObject
+import org.junit.Test
+
+class BlueshiftJsonWriterTest {
+    private fun write(block: (BlueshiftJsonWriter) -> Unit): String {
+        val writer = BlueshiftJsonWriter.obtain()
+        try {
+            writer.beginObject()
+            block(writer)
+            writer.endObject()
+            return String(writer.toByteArray(), Charsets.UTF_8)
+        } finally {
+            BlueshiftJsonWriter.recycle(writer)
+        }
+    }
+
+    @Test
+    fun value_shouldWriteThePrimitivesAsJson() {
+        val json = write {
+            it.name("long").value(-1234567890123L)
+            it.name("zero").value(0L)
+            it.name("double").value(1.5)
+            it.name("bool").value(true)
+            it.name("null").value(null as String?)
+        }
+
+        assert(json == "{\"long\":-1234567890123,\"zero\":0,\"double\":1.5,\"bool\":true,\"null\":null}")
+    }
+
+    @Test
+    fun value_shouldEscapeAndEncodeTheStrings() {
+        val text = "quote\" back\\ tab\t line\n ü € 😀"
+        val json = write { it.name("text").value(text) }
+
+        assert(JSONObject(json).getString("text") == text)
+    }
+
+    @Test
+    fun value_shouldWriteTheOtherValuesLikeJSONObject() {
+        val values = mapOf(
+            "int" to 12,
+            "float" to 1.1f,
+            "nested" to JSONObject(mapOf("a" to 1)),
+            "array" to JSONArray(listOf(1, 2)),
+        )
+        val json = write { writer -> values.forEach { writer.name(it.key).value(it.value) } }
+
+        val parsed = JSONObject(json)
+        assert(parsed.getInt("int") == 12)
+        assert(parsed.get("float").toString() == "1.1")
+        assert(parsed.getJSONObject("nested").getInt("a") == 1)
+        assert(parsed.getJSONArray("array").length() == 2)
+    }
+
+    @Test
+    fun rawMembers_shouldAppendTheMembersWithAComma() {
+        val json = write {
+            it.name("a").value(1L)
+            it.rawMembers("\"b\":2,\"c\":3".toByteArray(Charsets.UTF_8))
+        }
+
+        assert(json == "{\"a\":1,\"b\":2,\"c\":3}")
+    }
+}
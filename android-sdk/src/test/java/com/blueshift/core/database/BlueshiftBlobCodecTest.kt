@@ -0,0 +1,61 @@
+package com.blueshift.core.database
+
+import org.junit.Test
+import java.util.Base64
+import java.util.zip.DataFormatException
+
+class BlueshiftBlobCodecTest {
+    private val json = "{\"event\":\"view\",\"timestamp\":\"2024-01-01T00:00:00.000000Z\"," +
+            "\"device_id\":\"abc\",\"device_type\":\"android\",\"os_name\":\"Android 14\"," +
+            "\"app_name\":\"com.example\",\"app_version\":\"1.0\",\"bsft_sdk_version\":\"4.2.1\"}"
+
+    @Test
+    fun encode_shouldKeepTheBytesAsTheyAreForPlainFormat() {
+        val bytes = json.toByteArray(Charsets.UTF_8)
+        val encoded = BlueshiftBlobCodec.encode(bytes, BlueshiftBlobCodec.FORMAT_PLAIN)
+
+        assert(encoded.contentEquals(bytes))
+    }
+
+    @Test
+    fun decode_shouldReturnTheOriginalBytesForDeflateFormat() {
+        val bytes = json.toByteArray(Charsets.UTF_8)
+        val encoded = BlueshiftBlobCodec.encode(bytes, BlueshiftBlobCodec.FORMAT_DEFLATE_V1)
+        val decoded = BlueshiftBlobCodec.decode(encoded, BlueshiftBlobCodec.FORMAT_DEFLATE_V1)
+
+        // The dictionary should make the event payload noticeably smaller
+        assert(encoded.size < bytes.size)
+        assert(decoded.contentEquals(bytes))
+    }
+
+    @Test
+    fun encodeCompact_shouldFallBackToPlainFormatWhenEncodingDoesNotHelp() {
+        val bytes = "{}".toByteArray(Charsets.UTF_8)
+        val (format, encoded) = BlueshiftBlobCodec.encodeCompact(
+            bytes, BlueshiftBlobCodec.FORMAT_DEFLATE_V1
+        )
+
+        assert(format == BlueshiftBlobCodec.FORMAT_PLAIN)
+        assert(encoded.contentEquals(bytes))
+    }
+
+    @Test
+    fun decode_shouldReadTheBlobsWrittenWithTheFrozenDictionary() {
+        // written with FORMAT_DEFLATE_V1, this blob breaks if the dictionary is ever changed.
+        val blob = Base64.getDecoder().decode("eD9dYssvq4YrA0UHUA2q2Qi9CJfCTDE0ASrH4joTPSM9Q6VaAGlGHaQ=")
+        val decoded = BlueshiftBlobCodec.decode(blob, BlueshiftBlobCodec.FORMAT_DEFLATE_V1)
+
+        val expected = "{\"event\":\"view\",\"device_type\":\"android\",\"os_name\":\"Android 14\"," +
+                "\"bsft_sdk_version\":\"4.2.1\"}"
+        assert(String(decoded, Charsets.UTF_8) == expected)
+    }
+
+    @Test(expected = DataFormatException::class)
+    fun decode_shouldThrowWhenTheBlobIsCorrupted() {
+        val bytes = json.toByteArray(Charsets.UTF_8)
+        val encoded = BlueshiftBlobCodec.encode(bytes, BlueshiftBlobCodec.FORMAT_DEFLATE_V1)
+        encoded[encoded.size / 2] = (encoded[encoded.size / 2].toInt() xor 0xFF).toByte()
+
+        BlueshiftBlobCodec.decode(encoded.copyOf(encoded.size - 4), BlueshiftBlobCodec.FORMAT_DEFLATE_V1)
+    }
+}
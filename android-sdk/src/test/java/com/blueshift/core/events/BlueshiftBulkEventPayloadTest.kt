@@ -0,0 +1,35 @@
+package com.blueshift.core.events
+
+import org.json.JSONObject
+import org.junit.Test
+
+class BlueshiftBulkEventPayloadTest {
+
+    @Test
+    fun build_shouldCreateAnEmptyEventsArrayWhenThereAreNoEvents() {
+        val payload = BlueshiftBulkEventPayload.build(emptyList())
+
+        assert(String(payload, Charsets.UTF_8) == "{\"events\":[]}")
+    }
+
+    @Test
+    fun build_shouldSpliceTheStoredParamsOfAllEventsInOrder() {
+        val events = (1..3).map {
+            BlueshiftEvent(
+                id = it.toLong(),
+                eventName = "test",
+                timestamp = 0L,
+                eventParamsBytes = "{\"index\":$it,\"name\":\"ü\"}".toByteArray(Charsets.UTF_8)
+            )
+        }
+
+        val payload = JSONObject(String(BlueshiftBulkEventPayload.build(events), Charsets.UTF_8))
+        val eventsArray = payload.getJSONArray("events")
+
+        assert(eventsArray.length() == 3)
+        for (i in 0 until 3) {
+            assert(eventsArray.getJSONObject(i).getInt("index") == i + 1)
+            assert(eventsArray.getJSONObject(i).getString("name") == "ü")
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.blueshift.core.events
+
+import org.json.JSONObject
+import org.junit.Test
+
+class BlueshiftEventBuilderTest {
+    @Test
+    fun build_shouldSerializeTheTypedParams() {
+        val builder = BlueshiftEventBuilder.name("level_completed")
+            .putLong("level", 12)
+            .putString("mode", "hard")
+            .putDouble("score", 99.5)
+            .putBoolean("first_try", false)
+            .batch(true)
+
+        val params = builder.build()
+        val json = JSONObject("{" + String(params.bytes, Charsets.UTF_8) + "}")
+
+        assert(builder.isBatchEvent)
+        assert(params.keys == setOf("level", "mode", "score", "first_try"))
+        assert(json.getLong("level") == 12L)
+        assert(json.getString("mode") == "hard")
+        assert(json.getDouble("score") == 99.5)
+        assert(!json.getBoolean("first_try"))
+    }
+
+    @Test
+    fun putAll_shouldMatchTheLegacyMapParams() {
+        val map = hashMapOf<String, Any?>("sku" to "123", "quantity" to 2, "price" to 9.99)
+
+        val fromBuilder = BlueshiftEventBuilder.name("add_to_cart").putAll(map).build()
+        val fromMap = BlueshiftEventParams.fromMap(map)
+
+        assert(fromBuilder == fromMap)
+        assert(fromBuilder.keys == map.keys)
+    }
+
+    @Test
+    fun fromMap_shouldLeaveOutTheNullValuesLikeJSONObject() {
+        val map = linkedMapOf<String, Any?>("sku" to "123", "coupon" to null, "gift" to JSONObject.NULL)
+        val legacy = JSONObject()
+        map.forEach { (key, value) -> legacy.put(key, value) }
+
+        val fromMap = BlueshiftEventParams.fromMap(map)
+        val fromBuilder = BlueshiftEventBuilder.name("add_to_cart")
+            .putString("sku", "123")
+            .putString("coupon", null)
+            .put("gift", JSONObject.NULL)
+            .build()
+
+        assert(String(fromMap.bytes, Charsets.UTF_8) == "\"sku\":\"123\",\"gift\":null")
+        assert(fromMap.keys == setOf("sku", "gift"))
+        val json = JSONObject("{" + String(fromMap.bytes, Charsets.UTF_8) + "}")
+        assert(json.keys().asSequence().toSet() == legacy.keys().asSequence().toSet())
+        assert(fromBuilder == fromMap)
+    }
+}
@@ -0,0 +1,109 @@
+package com.blueshift.core.events
+
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import org.junit.Test
+import java.util.concurrent.CopyOnWriteArrayList
+
+class BlueshiftEventCoalescerTest {
+    private val groups = CopyOnWriteArrayList<BlueshiftEventCoalescer.Group>()
+
+    @Test
+    fun offer_shouldNotHoldTheEventWhenCoalescingIsOff() {
+        val coalescer = BlueshiftEventCoalescer(windowMillis = 0)
+
+        assert(!coalescer.offer("view", BlueshiftEventParams.EMPTY, 0L, true) { groups.add(it) })
+    }
+
+    @Test
+    fun offer_shouldMergeTheIdenticalEventsWithinTheWindow() = runBlocking {
+        val coalescer = BlueshiftEventCoalescer(windowMillis = 100)
+
+        for (i in 1..5) coalescer.offer("view", BlueshiftEventParams.fromMap(mapOf("sku" to "123")), i.toLong(), true) { groups.add(it) }
+
+        // Nothing should come out until the window ends
+        assert(groups.isEmpty())
+
+        delay(500)
+
+        assert(groups.size == 1)
+        assert(groups[0].count == 5)
+        assert(groups[0].firstTimestamp == 1L)
+        assert(groups[0].lastTimestamp == 5L)
+    }
+
+    @Test
+    fun offer_shouldMergeTheRepeatsInterleavedWithOtherEvents() = runBlocking {
+        val coalescer = BlueshiftEventCoalescer(windowMillis = 100)
+        val first = BlueshiftEventParams.fromMap(mapOf("sku" to "123"))
+        val second = BlueshiftEventParams.fromMap(mapOf("sku" to "456"))
+
+        for (i in 1..3) {
+            coalescer.offer("view", first, i * 2L - 1, true) { groups.add(it) }
+            coalescer.offer("view", second, i * 2L, true) { groups.add(it) }
+        }
+
+        delay(500)
+
+        // one group per event, in the order of their first event.
+        assert(groups.map { it.params } == listOf(first, second))
+        assert(groups.all { it.count == 3 })
+    }
+
+    @Test
+    fun offer_shouldMergeTheRealtimeEventsWithinTheirShorterWindow() = runBlocking {
+        val coalescer = BlueshiftEventCoalescer(windowMillis = 60_000, realtimeWindowMillis = 100)
+
+        for (i in 1..3) coalescer.offer("purchase", BlueshiftEventParams.EMPTY, i.toLong(), false) { groups.add(it) }
+        coalescer.offer("view", BlueshiftEventParams.EMPTY, 4L, true) { groups.add(it) }
+
+        delay(500)
+
+        // the real-time group goes out after its short window, the batch group is still held.
+        assert(groups.size == 1)
+        assert(!groups[0].isBatchEvent)
+        assert(groups[0].count == 3)
+    }
+
+    @Test
+    fun offer_shouldNotHoldTheRealtimeEventsWhenTheirWindowIsOff() {
+        val coalescer = BlueshiftEventCoalescer(windowMillis = 60_000, realtimeWindowMillis = 0)
+
+        assert(!coalescer.offer("purchase", BlueshiftEventParams.EMPTY, 1L, false) { groups.add(it) })
+    }
+
+    @Test
+    fun offer_shouldNotHoldTheEventsThatCanNotBeMerged() {
+        val coalescer = BlueshiftEventCoalescer(windowMillis = 60_000)
+        coalescer.offer("view", BlueshiftEventParams.EMPTY, 1L, true) { groups.add(it) }
+
+        // an event with its own uuid is processed right away, after the waiting group of its path.
+        val unique = BlueshiftEventParams.fromMap(mapOf(BlueshiftEvent.KEY_EVENT_UUID to "abc"))
+        assert(!coalescer.offer("view", unique, 2L, true) { groups.add(it) })
+        assert(groups.size == 1)
+        assert(groups[0].eventName == "view")
+    }
+
+    @Test
+    fun flush_shouldHandOutTheWaitingGroupRightAway() {
+        val coalescer = BlueshiftEventCoalescer(windowMillis = 60_000)
+        coalescer.offer("view", BlueshiftEventParams.EMPTY, 1L, true) { groups.add(it) }
+        coalescer.offer("view", BlueshiftEventParams.EMPTY, 2L, true) { groups.add(it) }
+
+        coalescer.flush()
+
+        assert(groups.size == 1)
+        assert(groups[0].count == 2)
+    }
+
+    @Test
+    fun discard_shouldDropTheEventsWaitingForTheirWindow() = runBlocking {
+        val coalescer = BlueshiftEventCoalescer(windowMillis = 100)
+        coalescer.offer("view", BlueshiftEventParams.EMPTY, 0L, true) { groups.add(it) }
+        coalescer.discard()
+
+        delay(500)
+
+        assert(groups.isEmpty())
+    }
+}
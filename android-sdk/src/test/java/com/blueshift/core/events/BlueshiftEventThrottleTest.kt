@@ -0,0 +1,48 @@
+package com.blueshift.core.events
+
+import org.junit.Test
+
+class BlueshiftEventThrottleTest {
+    private var now = 0L
+
+    private fun throttle(limit: BlueshiftEventRateLimit, reportIntervalMillis: Long = 0) =
+        BlueshiftEventThrottle(mapOf("view" to limit), reportIntervalMillis) { now }
+
+    @Test
+    fun tryAcquire_shouldAllowTheEventsWithoutALimit() {
+        val throttle = throttle(BlueshiftEventRateLimit(eventsPerSecond = 1.0))
+
+        assert((1..100).all { throttle.tryAcquire("click") })
+    }
+
+    @Test
+    fun tryAcquire_shouldAllowTheBurstAndThenTheRate() {
+        val throttle = throttle(BlueshiftEventRateLimit(eventsPerSecond = 2.0, burst = 3))
+
+        assert((1..10).count { throttle.tryAcquire("view") } == 3)
+
+        now += 1000
+        assert((1..10).count { throttle.tryAcquire("view") } == 2)
+    }
+
+    @Test
+    fun tryAcquire_shouldKeepEveryNthEventWhenSampling() {
+        val throttle = throttle(BlueshiftEventRateLimit(sampleRate = 0.25))
+
+        val kept = (1..8).map { throttle.tryAcquire("view") }
+
+        assert(kept == listOf(false, false, false, true, false, false, false, true))
+    }
+
+    @Test
+    fun takeReport_shouldReturnTheDroppedCountsOncePerInterval() {
+        val throttle = throttle(BlueshiftEventRateLimit(sampleRate = 0.0), reportIntervalMillis = 1000)
+        repeat(5) { throttle.tryAcquire("view") }
+
+        assert(throttle.takeReport() == null)
+
+        now += 1000
+        assert(throttle.takeReport() == mapOf("view" to 5L))
+        assert(throttle.takeReport() == null)
+    }
+}
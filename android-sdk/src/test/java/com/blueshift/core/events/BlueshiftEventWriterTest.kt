@@ -0,0 +1,131 @@
+package com.blueshift.core.events
+
+import android.util.Log
+import com.blueshift.core.common.BlueshiftMetrics
+import io.mockk.every
+import io.mockk.mockkStatic
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import org.json.JSONObject
+import org.junit.Before
+import org.junit.Test
+
+class BlueshiftEventWriterTest {
+    private lateinit var fakeEventsRepo: FakeEventsRepo
+
+    @Before
+    fun setUp() {
+        mockkStatic(Log::class)
+        every { Log.d(any(), any()) } returns 0
+
+        fakeEventsRepo = FakeEventsRepo()
+    }
+
+    private fun newEvent(id: Long) = BlueshiftEvent(
+        id = id, eventName = "test", eventParams = JSONObject(), timestamp = 0L
+    )
+
+    @Test
+    fun write_shouldWriteThroughWhenWindowIsZero() = runBlocking {
+        val writer = BlueshiftEventWriter(fakeEventsRepo, windowMillis = 0)
+        writer.write(newEvent(1))
+
+        assert(fakeEventsRepo.blueshiftEvents.size == 1)
+    }
+
+    @Test
+    fun write_shouldBufferEventsUntilTheWindowEnds() = runBlocking {
+        val writer = BlueshiftEventWriter(fakeEventsRepo, windowMillis = 100, maxEvents = 200)
+        for (i in 1..10) writer.write(newEvent(i.toLong()))
+
+        // The events should stay in the buffer until the window ends
+        assert(fakeEventsRepo.blueshiftEvents.isEmpty())
+
+        delay(500)
+
+        assert(fakeEventsRepo.blueshiftEvents.size == 10)
+    }
+
+    @Test
+    fun write_shouldCommitWhenMaxEventsIsReached() = runBlocking {
+        val writer = BlueshiftEventWriter(fakeEventsRepo, windowMillis = 60_000, maxEvents = 5)
+        for (i in 1..12) writer.write(newEvent(i.toLong()))
+
+        // Two full groups should be committed, the remaining 2 events stay in the buffer
+        assert(fakeEventsRepo.blueshiftEvents.size == 10)
+    }
+
+    @Test
+    fun flush_shouldWriteAllBufferedEvents() = runBlocking {
+        val writer = BlueshiftEventWriter(fakeEventsRepo, windowMillis = 60_000, maxEvents = 200)
+        for (i in 1..3) writer.write(newEvent(i.toLong()))
+
+        writer.flush()
+
+        assert(fakeEventsRepo.blueshiftEvents.size == 3)
+    }
+
+    @Test
+    fun discard_shouldDropAllBufferedEvents() = runBlocking {
+        val writer = BlueshiftEventWriter(fakeEventsRepo, windowMillis = 60_000, maxEvents = 200)
+        for (i in 1..3) writer.write(newEvent(i.toLong()))
+
+        writer.discard()
+        writer.flush()
+
+        assert(fakeEventsRepo.blueshiftEvents.isEmpty())
+    }
+
+    @Test
+    fun flush_shouldKeepTheBufferedEventsWhenTheInsertFails() = runBlocking {
+        var shouldFail = true
+        val eventsRepo = object : BlueshiftEventRepository by fakeEventsRepo {
+            override suspend fun insertEvents(events: List<BlueshiftEvent>) {
+                if (shouldFail) throw IllegalStateException("disk full")
+                fakeEventsRepo.insertEvents(events)
+            }
+        }
+
+        val writer = BlueshiftEventWriter(eventsRepo, windowMillis = 60_000, maxEvents = 200)
+        for (i in 1..3) writer.write(newEvent(i.toLong()))
+
+        try {
+            writer.flush()
+        } catch (e: IllegalStateException) {
+            // expected
+        }
+
+        shouldFail = false
+        writer.flush()
+
+        assert(fakeEventsRepo.blueshiftEvents.map { it.id } == listOf(1L, 2L, 3L))
+    }
+
+    @Test
+    fun write_shouldDropTheOldestEventsWhenTheInsertsKeepFailing() = runBlocking {
+        BlueshiftMetrics.reset()
+        var shouldFail = true
+        val eventsRepo = object : BlueshiftEventRepository by fakeEventsRepo {
+            override suspend fun insertEvents(events: List<BlueshiftEvent>) {
+                if (shouldFail) throw IllegalStateException("disk full")
+                fakeEventsRepo.insertEvents(events)
+            }
+        }
+
+        val writer = BlueshiftEventWriter(eventsRepo, windowMillis = 0, maxEvents = 2, maxBufferedEvents = 5)
+        for (i in 1..12) {
+            try {
+                writer.write(newEvent(i.toLong()))
+            } catch (e: IllegalStateException) {
+                // expected
+            }
+        }
+
+        shouldFail = false
+        writer.flush()
+
+        // only the newest events are kept while the inserts fail
+        assert(fakeEventsRepo.blueshiftEvents.map { it.id } == (8L..12L).toList())
+        assert(BlueshiftMetrics.get(BlueshiftMetrics.DROPPED_BUFFERED_EVENTS) == 7L)
+    }
+}
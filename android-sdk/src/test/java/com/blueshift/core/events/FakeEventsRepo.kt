@@ -8,14 +8,21 @@ class FakeEventsRepo : BlueshiftEventRepository {
         blueshiftEvents.add(event)
     }
 
+    override suspend fun insertEvents(events: List<BlueshiftEvent>) {
+        blueshiftEvents.addAll(events)
+    }
+
     override suspend fun deleteEvents(events: List<BlueshiftEvent>) {
         blueshiftEvents.removeAll(events)
     }
 
-    override suspend fun readOneBatch(batchCount: Int): List<BlueshiftEvent> {
+    override suspend fun readOneBatch(batchCount: Int, batchSizeInBytes: Long): List<BlueshiftEvent> {
         val result = mutableListOf<BlueshiftEvent>()
         val limit = min(batchCount, blueshiftEvents.size)
+        var totalSize = 0L
         for (i in 0 until limit) {
+            totalSize += blueshiftEvents[i].payloadBytes.size
+            if (result.isNotEmpty() && totalSize > batchSizeInBytes) break
             result.add(blueshiftEvents[i])
         }
 
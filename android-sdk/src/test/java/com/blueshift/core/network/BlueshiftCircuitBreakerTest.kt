@@ -0,0 +1,87 @@
+package com.blueshift.core.network
+
+import com.blueshift.core.common.BlueshiftMetrics
+import org.junit.Before
+import org.junit.Test
+
+class BlueshiftCircuitBreakerTest {
+    private val endpoint = "https://api.com/event"
+    private var now = 0L
+
+    private fun breaker() = BlueshiftCircuitBreaker(failureThreshold = 3, openMillis = 1000) { now }
+
+    @Before
+    fun setUp() {
+        BlueshiftMetrics.reset()
+    }
+
+    @Test
+    fun recordFailure_shouldOpenTheBreakerAfterTheConsecutiveFailures() {
+        val breaker = breaker()
+
+        repeat(2) { breaker.recordFailure(endpoint) }
+        assert(breaker.allowRequest(endpoint))
+
+        breaker.recordFailure(endpoint)
+        assert(!breaker.allowRequest(endpoint))
+        assert(breaker.reopensAt(endpoint) == 1000L)
+        assert(BlueshiftMetrics.get("${BlueshiftMetrics.CIRCUIT_BREAKER_STATE}.$endpoint") == 1L)
+        assert(BlueshiftMetrics.get(BlueshiftMetrics.CIRCUIT_BREAKER_OPENED) == 1L)
+    }
+
+    @Test
+    fun recordSuccess_shouldResetTheConsecutiveFailures() {
+        val breaker = breaker()
+
+        repeat(2) { breaker.recordFailure(endpoint) }
+        breaker.recordSuccess(endpoint)
+        repeat(2) { breaker.recordFailure(endpoint) }
+
+        assert(breaker.allowRequest(endpoint))
+    }
+
+    @Test
+    fun allowRequest_shouldLetOneProbeThroughAfterTheOpenInterval() {
+        val breaker = breaker()
+        repeat(3) { breaker.recordFailure(endpoint) }
+
+        now += 1000
+        assert(breaker.allowRequest(endpoint))
+        assert(!breaker.allowRequest(endpoint))
+        assert(breaker.state(endpoint) == BlueshiftCircuitBreaker.State.HALF_OPEN)
+
+        breaker.recordSuccess(endpoint)
+        assert(breaker.allowRequest(endpoint))
+        assert(breaker.state(endpoint) == BlueshiftCircuitBreaker.State.CLOSED)
+    }
+
+    @Test
+    fun recordFailure_shouldOpenTheBreakerAgainWhenTheProbeFails() {
+        val breaker = breaker()
+        repeat(3) { breaker.recordFailure(endpoint) }
+
+        now += 1000
+        assert(breaker.allowRequest(endpoint))
+        breaker.recordFailure(endpoint)
+
+        assert(!breaker.allowRequest(endpoint))
+        assert(breaker.reopensAt(endpoint) == 2000L)
+    }
+
+    @Test
+    fun allowRequest_shouldKeepTheEndpointsApart() {
+        val breaker = breaker()
+        repeat(3) { breaker.recordFailure(endpoint) }
+
+        assert(breaker.allowRequest("https://api.com/bulkevents"))
+    }
+
+    @Test
+    fun endpointOf_shouldIgnoreTheQuery() {
+        val request = BlueshiftNetworkRequest(
+            url = "https://api.com/track?a=1&b=2", method = BlueshiftNetworkRequest.Method.GET
+        )
+
+        assert(BlueshiftCircuitBreaker.endpointOf(request) == "https://api.com/track")
+    }
+}
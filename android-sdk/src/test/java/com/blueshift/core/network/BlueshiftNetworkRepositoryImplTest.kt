@@ -0,0 +1,37 @@
+package com.blueshift.core.network
+
+import kotlinx.coroutines.runBlocking
+import org.junit.Test
+import java.io.IOException
+
+class BlueshiftNetworkRepositoryImplTest {
+    private val request = BlueshiftNetworkRequest(
+        url = "https://fakeapi.com", method = BlueshiftNetworkRequest.Method.GET
+    )
+
+    private fun repository(onExecute: (BlueshiftNetworkRequest) -> BlueshiftNetworkResponse) =
+        BlueshiftNetworkRepositoryImpl(object : BlueshiftNetworkTransport {
+            override fun execute(networkRequest: BlueshiftNetworkRequest) = onExecute(networkRequest)
+        })
+
+    @Test
+    fun makeNetworkRequest_shouldReturnTheResponseOfTheTransport() = runBlocking {
+        val repository = repository { BlueshiftNetworkResponse(responseCode = 200, responseBody = "ok") }
+
+        assert(repository.makeNetworkRequest(request) == BlueshiftNetworkResponse(200, "ok"))
+    }
+
+    @Test
+    fun makeNetworkRequest_shouldReturnZeroWhenTheServerIsNotReachable() = runBlocking {
+        val repository = repository { throw IOException("no route to host") }
+
+        assert(repository.makeNetworkRequest(request).responseCode == 0)
+    }
+
+    @Test
+    fun makeNetworkRequest_shouldReturnMinusOneForOtherErrors() = runBlocking {
+        val repository = repository { throw IllegalStateException("bad request") }
+
+        assert(repository.makeNetworkRequest(request) == BlueshiftNetworkResponse(-1, "bad request"))
+    }
+}
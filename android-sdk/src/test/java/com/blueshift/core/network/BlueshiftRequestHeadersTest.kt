@@ -0,0 +1,58 @@
+package com.blueshift.core.network
+
+import org.json.JSONObject
+import org.junit.Test
+
+class BlueshiftRequestHeadersTest {
+    private fun decode(bytes: ByteArray): Map<String, String> {
+        val headers = LinkedHashMap<String, String>()
+        BlueshiftRequestHeaders.forEach(bytes) { name, value -> headers[name] = value }
+        return headers
+    }
+
+    @Test
+    fun encode_shouldWriteOneHeaderPerLine() {
+        val bytes = BlueshiftRequestHeaders.encode(
+            linkedMapOf("Content-Type" to "application/json", "X-Trace" to "a: b")
+        )
+
+        assert(String(bytes) == "Content-Type: application/json\nX-Trace: a: b\n")
+    }
+
+    @Test
+    fun forEach_shouldReadTheEncodedHeaders() {
+        val headers = linkedMapOf("Content-Type" to "application/json", "X-Trace" to "a: b")
+
+        assert(decode(BlueshiftRequestHeaders.encode(headers)) == headers)
+    }
+
+    @Test
+    fun forEach_shouldReadTheHeadersStoredAsJson() {
+        val json = JSONObject().put("Content-Type", "application/json")
+
+        assert(decode(json.toString().toByteArray()) == mapOf("Content-Type" to "application/json"))
+    }
+
+    @Test
+    fun header_shouldBeCreatedFromTheBytesOnlyWhenAskedFor() {
+        val request = BlueshiftNetworkRequest(
+            url = "https://fakeapi.com",
+            method = BlueshiftNetworkRequest.Method.POST,
+            headerBytes = BlueshiftRequestHeaders.JSON_CONTENT_TYPE
+        )
+
+        assert(request.headerBytes === BlueshiftRequestHeaders.JSON_CONTENT_TYPE)
+        assert(request.header?.getString("Content-Type") == "application/json")
+    }
+
+    @Test
+    fun headerBytes_shouldBeEncodedFromTheJson() {
+        val request = BlueshiftNetworkRequest(
+            url = "https://fakeapi.com",
+            method = BlueshiftNetworkRequest.Method.POST,
+            header = JSONObject().put("Content-Type", "application/json")
+        )
+
+        assert(request.headerBytes!!.contentEquals(BlueshiftRequestHeaders.JSON_CONTENT_TYPE))
+    }
+}
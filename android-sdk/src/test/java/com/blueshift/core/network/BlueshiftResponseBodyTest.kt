@@ -0,0 +1,50 @@
+package com.blueshift.core.network
+
+import org.junit.Test
+import java.io.ByteArrayInputStream
+
+class BlueshiftResponseBodyTest {
+    private class TrackedStream(bytes: ByteArray) : ByteArrayInputStream(bytes) {
+        var isClosed = false
+
+        override fun close() {
+            isClosed = true
+            super.close()
+        }
+    }
+
+    @Test
+    fun discard_shouldReadTheStreamToTheEndAndCloseIt() {
+        val stream = TrackedStream(ByteArray(20 * 1024) { 'a'.code.toByte() })
+
+        BlueshiftResponseBody.discard(stream)
+
+        assert(stream.available() == 0)
+        assert(stream.isClosed)
+    }
+
+    @Test
+    fun readCapped_shouldDecodeOnlyUpToTheCap() {
+        val stream = TrackedStream("{\"status\":\"error\",\"message\":\"bad request\"}".toByteArray())
+
+        val body = BlueshiftResponseBody.readCapped(stream, maxBytes = 17)
+
+        assert(body == "{\"status\":\"error\"")
+        assert(stream.available() == 0)
+        assert(stream.isClosed)
+    }
+
+    @Test
+    fun readCapped_shouldReturnTheWholeBodyWhenBelowTheCap() {
+        val body = BlueshiftResponseBody.readCapped(TrackedStream("{}".toByteArray()))
+
+        assert(body == "{}")
+    }
+
+    @Test
+    fun readFully_shouldReturnTheWholeBody() {
+        val text = "x".repeat(10 * 1024)
+
+        assert(BlueshiftResponseBody.readFully(TrackedStream(text.toByteArray())) == text)
+    }
+}
@@ -0,0 +1,34 @@
+package com.blueshift.core.network
+
+import org.junit.Test
+import kotlin.random.Random
+
+class BlueshiftRetryBackoffTest {
+    @Test
+    fun nextDelayMillis_shouldStayWithinTheDoublingCeiling() {
+        val backoff = BlueshiftRetryBackoff(Random(42))
+
+        repeat(100) {
+            assert(backoff.nextDelayMillis(1, 1000, 60000) in 0..1000)
+            assert(backoff.nextDelayMillis(3, 1000, 60000) in 0..4000)
+        }
+    }
+
+    @Test
+    fun nextDelayMillis_shouldNotGoAboveTheCap() {
+        val backoff = BlueshiftRetryBackoff(Random(42))
+
+        repeat(100) {
+            assert(backoff.nextDelayMillis(100, 1000, 60000) in 0..60000)
+        }
+    }
+
+    @Test
+    fun nextDelayMillis_shouldSpreadTheDelays() {
+        val backoff = BlueshiftRetryBackoff(Random(42))
+
+        val delays = (1..100).map { backoff.nextDelayMillis(1, 1000, 60000) }.toSet()
+
+        assert(delays.size > 50)
+    }
+}
@@ -0,0 +1,83 @@
+package com.blueshift.core.network
+
+import org.junit.Test
+import java.net.URL
+import java.util.zip.GZIPInputStream
+
+class BlueshiftUrlConnectionTransportTest {
+    private val bodyBytes = "{\"event\":\"test_event\",\"params\":\"${"x".repeat(100)}\"}".toByteArray()
+    private val request = BlueshiftNetworkRequest(
+        url = "https://fakeapi.com", method = BlueshiftNetworkRequest.Method.POST, bodyBytes = bodyBytes
+    )
+
+    private val connections = mutableListOf<FakeHttpsURLConnection>()
+
+    private fun transport(gzipThresholdBytes: Int, vararg responseCodes: Int): BlueshiftUrlConnectionTransport {
+        val codes = responseCodes.toMutableList()
+        return BlueshiftUrlConnectionTransport(1000, 1000, gzipThresholdBytes) { url: URL ->
+            FakeHttpsURLConnection(url, codes.removeFirstOrNull() ?: 200).also { connections.add(it) }
+        }
+    }
+
+    private fun FakeHttpsURLConnection.gunzippedBody(): ByteArray {
+        return GZIPInputStream(body.toByteArray().inputStream()).use { it.readBytes() }
+    }
+
+    @Test
+    fun execute_shouldSendTheBodyGzipEncodedWhenItReachesTheThreshold() {
+        val response = transport(gzipThresholdBytes = 10).execute(request)
+
+        assert(response.responseCode == 200)
+        assert(connections.size == 1)
+        assert(connections[0].getRequestProperty("Content-Encoding") == "gzip")
+        assert(connections[0].isChunked)
+        assert(connections[0].gunzippedBody().contentEquals(bodyBytes))
+    }
+
+    @Test
+    fun execute_shouldSendTheBodyAsItIsBelowTheThreshold() {
+        transport(gzipThresholdBytes = bodyBytes.size + 1).execute(request)
+
+        assert(connections[0].getRequestProperty("Content-Encoding") == null)
+        assert(!connections[0].isChunked)
+        assert(connections[0].body.toByteArray().contentEquals(bodyBytes))
+    }
+
+    @Test
+    fun execute_shouldSendTheBodyAsItIsWhenTheThresholdIsZero() {
+        transport(gzipThresholdBytes = 0).execute(request)
+
+        assert(connections[0].getRequestProperty("Content-Encoding") == null)
+        assert(connections[0].body.toByteArray().contentEquals(bodyBytes))
+    }
+
+    @Test
+    fun execute_shouldSendTheBodyAgainWithoutGzipAfterA415() {
+        val response = transport(10, 415, 200).execute(request)
+
+        assert(response.responseCode == 200)
+        assert(connections.size == 2)
+        assert(connections[0].getRequestProperty("Content-Encoding") == "gzip")
+        assert(connections[1].getRequestProperty("Content-Encoding") == null)
+        assert(connections[1].body.toByteArray().contentEquals(bodyBytes))
+    }
+
+    @Test
+    fun execute_shouldNotUseGzipAgainOnceTheServerRejectedIt() {
+        val transport = transport(10, 415, 200, 200)
+        transport.execute(request)
+        transport.execute(request)
+
+        assert(connections.size == 3)
+        assert(connections[2].getRequestProperty("Content-Encoding") == null)
+        assert(connections[2].body.toByteArray().contentEquals(bodyBytes))
+    }
+
+    @Test
+    fun execute_shouldNotRetryA415OfABodySentAsItIs() {
+        val response = transport(0, 415).execute(request)
+
+        assert(response.responseCode == 415)
+        assert(connections.size == 1)
+    }
+}
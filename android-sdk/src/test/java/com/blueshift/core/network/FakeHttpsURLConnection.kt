@@ -0,0 +1,38 @@
+package com.blueshift.core.network
+
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.InputStream
+import java.io.OutputStream
+import java.net.URL
+import java.security.cert.Certificate
+import javax.net.ssl.HttpsURLConnection
+
+/**
+ * Records what the transport writes into the connection and answers with the [responseCode].
+ */
+class FakeHttpsURLConnection(url: URL, private val fakeResponseCode: Int) : HttpsURLConnection(url) {
+    val body = ByteArrayOutputStream()
+    val isChunked: Boolean
+        get() = chunkLength != -1
+
+    override fun getOutputStream(): OutputStream = body
+
+    override fun getResponseCode(): Int = fakeResponseCode
+
+    override fun getInputStream(): InputStream = ByteArrayInputStream(ByteArray(0))
+
+    override fun getErrorStream(): InputStream = ByteArrayInputStream(ByteArray(0))
+
+    override fun connect() {}
+
+    override fun disconnect() {}
+
+    override fun usingProxy() = false
+
+    override fun getCipherSuite() = ""
+
+    override fun getLocalCertificates(): Array<Certificate>? = null
+
+    override fun getServerCertificates(): Array<Certificate> = emptyArray()
+}
@@ -23,10 +23,44 @@ class FakeNetworkRequestRepo : BlueshiftNetworkRequestRepository {
         return if (requests.isEmpty()) {
             null
         } else {
-            requests.find { it.retryAttemptBalance > 0 && it.retryAttemptTimestamp < System.currentTimeMillis() }
+            requests.filter { it.retryAttemptBalance > 0 && it.retryAttemptTimestamp < System.currentTimeMillis() }
+                .minByOrNull { it.priority.value }
         }
     }
 
+    override suspend fun readNextRequests(
+        limit: Int, bulkCreatedBefore: Long
+    ): List<BlueshiftNetworkRequest> {
+        return requests.filter { it.retryAttemptBalance > 0 && it.retryAttemptTimestamp < System.currentTimeMillis() }
+            .filter { it.priority != BlueshiftNetworkRequest.Priority.BULK || it.timestamp < bulkCreatedBefore }
+            .sortedBy { it.priority.value }
+            .take(limit)
+    }
+
+    override suspend fun readBacklog(
+        readyBefore: Long, bulkCreatedBefore: Long
+    ): BlueshiftRequestBacklog {
+        return backlogOf(
+            requests.filter { it.retryAttemptBalance > 0 && it.retryAttemptTimestamp < readyBefore }
+                .filter { it.priority != BlueshiftNetworkRequest.Priority.BULK || it.timestamp < bulkCreatedBefore }
+        )
+    }
+
+    override suspend fun readHeldBulkBacklog(bulkCreatedBefore: Long): BlueshiftRequestBacklog {
+        return backlogOf(
+            requests.filter { it.retryAttemptBalance > 0 }
+                .filter { it.priority == BlueshiftNetworkRequest.Priority.BULK && it.timestamp >= bulkCreatedBefore }
+        )
+    }
+
+    private fun backlogOf(pending: List<BlueshiftNetworkRequest>): BlueshiftRequestBacklog {
+        return BlueshiftRequestBacklog(
+            pending.size.toLong(),
+            pending.sumOf { (it.headerBytes?.size ?: 0) + (it.bodyBytes?.size ?: 0) }.toLong(),
+            pending.minOfOrNull { it.timestamp } ?: 0
+        )
+    }
+
     override suspend fun clear() {
         requests.clear()
     }
@@ -0,0 +1,86 @@
+package com.blueshift.core.schedule.network
+
+import android.net.ConnectivityManager
+import android.net.Network
+import android.net.NetworkCapabilities
+import io.mockk.every
+import io.mockk.mockk
+import org.junit.After
+import org.junit.Test
+
+class BlueshiftConnectivityMonitorTest {
+    private val lostNetwork = mockk<Network>()
+    private val otherNetwork = mockk<Network>()
+
+    @After
+    fun tearDown() {
+        BlueshiftConnectivityMonitor.onNetworkType(BlueshiftConnectivityMonitor.NetworkType.NONE)
+    }
+
+    private fun capabilities(isUnmetered: Boolean) = mockk<NetworkCapabilities> {
+        every { hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET) } returns true
+        every { hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED) } returns isUnmetered
+    }
+
+    private fun connectivityManager(activeNetwork: Network?, capabilities: NetworkCapabilities?) =
+        mockk<ConnectivityManager> {
+            every { this@mockk.activeNetwork } returns activeNetwork
+            every { getNetworkCapabilities(any()) } returns capabilities
+        }
+
+    @Test
+    fun onNetworkLost_shouldKeepTheStateOfTheNetworkThatIsStillUp() {
+        BlueshiftConnectivityMonitor.onNetworkType(BlueshiftConnectivityMonitor.NetworkType.METERED)
+
+        BlueshiftConnectivityMonitor.onNetworkLost(
+            connectivityManager(otherNetwork, capabilities(isUnmetered = true)), lostNetwork
+        )
+
+        assert(BlueshiftConnectivityMonitor.networkType == BlueshiftConnectivityMonitor.NetworkType.UNMETERED)
+    }
+
+    @Test
+    fun onNetworkLost_shouldGoOfflineWhenNoNetworkIsLeft() {
+        BlueshiftConnectivityMonitor.onNetworkType(BlueshiftConnectivityMonitor.NetworkType.METERED)
+
+        BlueshiftConnectivityMonitor.onNetworkLost(connectivityManager(null, null), lostNetwork)
+
+        assert(BlueshiftConnectivityMonitor.networkType == BlueshiftConnectivityMonitor.NetworkType.NONE)
+        assert(!BlueshiftConnectivityMonitor.isSyncPending)
+    }
+
+    @Test
+    fun onNetworkLost_shouldGoOfflineWhenTheActiveNetworkIsTheLostOne() {
+        BlueshiftConnectivityMonitor.onNetworkType(BlueshiftConnectivityMonitor.NetworkType.UNMETERED)
+
+        BlueshiftConnectivityMonitor.onNetworkLost(
+            connectivityManager(lostNetwork, capabilities(isUnmetered = true)), lostNetwork
+        )
+
+        assert(BlueshiftConnectivityMonitor.networkType == BlueshiftConnectivityMonitor.NetworkType.NONE)
+    }
+
+    @Test
+    fun onNetworkType_shouldScheduleASyncOnlyWhenTheNetworkComesBack() {
+        BlueshiftConnectivityMonitor.onNetworkType(BlueshiftConnectivityMonitor.NetworkType.NONE)
+        assert(!BlueshiftConnectivityMonitor.isSyncPending)
+
+        BlueshiftConnectivityMonitor.onNetworkType(BlueshiftConnectivityMonitor.NetworkType.METERED)
+        assert(BlueshiftConnectivityMonitor.isSyncPending)
+
+        BlueshiftConnectivityMonitor.onNetworkType(BlueshiftConnectivityMonitor.NetworkType.NONE)
+        assert(!BlueshiftConnectivityMonitor.isSyncPending)
+    }
+
+    @Test
+    fun onNetworkLost_shouldNotCancelTheSyncWhenAnotherNetworkIsStillUp() {
+        BlueshiftConnectivityMonitor.onNetworkType(BlueshiftConnectivityMonitor.NetworkType.UNMETERED)
+
+        BlueshiftConnectivityMonitor.onNetworkLost(
+            connectivityManager(otherNetwork, capabilities(isUnmetered = false)), lostNetwork
+        )
+
+        assert(BlueshiftConnectivityMonitor.networkType == BlueshiftConnectivityMonitor.NetworkType.METERED)
+        assert(BlueshiftConnectivityMonitor.isSyncPending)
+    }
+}
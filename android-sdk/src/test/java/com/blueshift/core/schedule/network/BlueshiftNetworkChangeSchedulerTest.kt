@@ -0,0 +1,45 @@
+package com.blueshift.core.schedule.network
+
+import org.junit.Test
+
+class BlueshiftNetworkChangeSchedulerTest {
+    private val maxDelayMillis = 60 * 60 * 1000L
+    private val now = 10 * maxDelayMillis
+
+    @Test
+    fun overrideDeadlineMillis_shouldCountFromTheOldestHeldRequest() {
+        val deadline = BlueshiftNetworkChangeScheduler.overrideDeadlineMillis(
+            maxDelayMillis, oldestTimestamp = now - 45 * 60 * 1000L, now = now
+        )
+
+        assert(deadline == 15 * 60 * 1000L)
+    }
+
+    @Test
+    fun overrideDeadlineMillis_shouldBeZeroWhenTheMaxDelayHasPassed() {
+        val deadline = BlueshiftNetworkChangeScheduler.overrideDeadlineMillis(
+            maxDelayMillis, oldestTimestamp = now - 2 * maxDelayMillis, now = now
+        )
+
+        assert(deadline == 0L)
+    }
+
+    @Test
+    fun overrideDeadlineMillis_shouldNotGoBeyondTheMaxDelay() {
+        // a timestamp from the future (ex: the clock was changed) should not push the deadline out.
+        val deadline = BlueshiftNetworkChangeScheduler.overrideDeadlineMillis(
+            maxDelayMillis, oldestTimestamp = now + maxDelayMillis, now = now
+        )
+
+        assert(deadline == maxDelayMillis)
+    }
+
+    @Test
+    fun overrideDeadlineMillis_shouldUseTheMaxDelayWhenTheOldestRequestIsNotKnown() {
+        val deadline = BlueshiftNetworkChangeScheduler.overrideDeadlineMillis(
+            maxDelayMillis, oldestTimestamp = 0, now = now
+        )
+
+        assert(deadline == maxDelayMillis)
+    }
+}